@@ -0,0 +1,162 @@
+package gov.usdot.cv.common.dialog;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the JMS queue encodings of data bundles, Base64 text versus binary, prefixing payloads with a
+ * text or binary receipt id, and generating receipt ids.
+ * Encoding benchmarks also report the wireBytes counter; dividing its rate by the operation rate gives
+ * the number of message body bytes the broker has to carry per data bundle.
+ * The route benchmarks read only the destination, fully decoding the bundle versus using a {@link DataBundleView}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataBundleUtilBenchmark {
+
+	@Param({ "64", "512", "1400" })
+	public int payloadSize;
+
+	private DataBundle bundle;
+	private String encoded;
+	private byte[] encodedBinary;
+	private ByteBuffer buffer;
+	private ActiveMQBytesMessage message;
+	private ByteBuffer encodedBuffer;
+	private final DataBundleView view = new DataBundleView();
+	private UUID receiptId;
+	private byte[] payload;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class WireBytes {
+		public long wireBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			wireBytes = 0;
+		}
+	}
+
+	@Setup
+	public void setup() throws JMSException {
+		payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+		receiptId = UUID.randomUUID();
+		bundle = new DataBundle.Builder()
+			.setReceiptId(receiptId.toString())
+			.setDestHost("127.0.0.1")
+			.setDestPort(46751)
+			.setFromForwarder(true)
+			.setPayload(payload)
+			.build();
+		encoded = DataBundleUtil.encode(bundle);
+		encodedBinary = DataBundleUtil.encodeBinary(bundle);
+		buffer = ByteBuffer.allocate(encodedBinary.length);
+		encodedBuffer = ByteBuffer.wrap(encodedBinary);
+		message = new ActiveMQBytesMessage();
+		DataBundleUtil.encodeBinary(bundle, message);
+		message.reset();
+	}
+
+	@Benchmark
+	public String encode(WireBytes counter) {
+		String text = DataBundleUtil.encode(bundle);
+		counter.wireBytes += text.length();
+		return text;
+	}
+
+	@Benchmark
+	public DataBundle decode() {
+		return DataBundleUtil.decode(encoded);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeBinary(WireBytes counter) {
+		buffer.clear();
+		DataBundleUtil.encodeBinary(bundle, buffer);
+		counter.wireBytes += buffer.position();
+		return buffer;
+	}
+
+	@Benchmark
+	public DataBundle decodeBinary() {
+		return DataBundleUtil.decodeBinary(encodedBinary);
+	}
+
+	@Benchmark
+	public int routeDecodeBinary() {
+		DataBundle decoded = DataBundleUtil.decodeBinary(encodedBinary);
+		return decoded.getDestHost().length() + decoded.getDestPort();
+	}
+
+	@Benchmark
+	public int routeView() {
+		view.wrap(encodedBuffer);
+		return view.getDestHost().length() + view.getDestPort();
+	}
+
+	@Benchmark
+	public int routeViewText() {
+		view.wrap(encoded);
+		return view.getDestHost().length() + view.getDestPort();
+	}
+
+	@Benchmark
+	public ActiveMQBytesMessage encodeBytesMessage(WireBytes counter) throws JMSException {
+		ActiveMQBytesMessage message = new ActiveMQBytesMessage();
+		DataBundleUtil.encodeBinary(bundle, message);
+		message.reset();
+		counter.wireBytes += message.getBodyLength();
+		return message;
+	}
+
+	@Benchmark
+	public DataBundle decodeBytesMessage() throws JMSException {
+		message.reset();
+		return DataBundleUtil.decodeBinary(message);
+	}
+
+	@Benchmark
+	public byte[] prependReceiptId() {
+		return DataBundleUtil.prependReceiptId(receiptId, payload);
+	}
+
+	@Benchmark
+	public byte[] prependBinaryReceiptId() {
+		return DataBundleUtil.prependBinaryReceiptId(receiptId, payload);
+	}
+
+	@Benchmark
+	public UUID secureReceiptId() {
+		return ReceiptIdGenerator.SECURE.next();
+	}
+
+	@Benchmark
+	public UUID fastReceiptId() {
+		return ReceiptIdGenerator.FAST.next();
+	}
+}
@@ -0,0 +1,67 @@
+package gov.usdot.cv.common.dialog;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures reading the receipt id of one second's worth of receipts at 50k receipts/s, the way
+ * {@link ReceiptReceiver} does for every JMS message: json-lib parsing, the receipt id scanner, and
+ * the 16 byte binary receipt. The score is the time spent per second of traffic, so a score of 100 ms
+ * means the receiver thread is 10% busy parsing receipts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiptParseBenchmark {
+
+	public static final int RECEIPTS_PER_SECOND = 50000;
+
+	private String[] texts;
+	private byte[][] binaries;
+
+	@Setup
+	public void setup() {
+		texts = new String[RECEIPTS_PER_SECOND];
+		binaries = new byte[RECEIPTS_PER_SECOND][];
+		for (int i = 0; i < RECEIPTS_PER_SECOND; i++) {
+			UUID receiptId = UUID.randomUUID();
+			texts[i] = new Receipt.Builder().setReceiptId(receiptId.toString()).build().toString();
+			binaries[i] = new Receipt(receiptId).toBytes();
+		}
+	}
+
+	@Benchmark
+	public void jsonLib(Blackhole bh) {
+		for (String text : texts)
+			bh.consume(JSONObject.fromObject(text).getString("receiptId"));
+	}
+
+	@Benchmark
+	public void scanner(Blackhole bh) {
+		for (String text : texts)
+			bh.consume(new Receipt(text).getReceiptId());
+	}
+
+	@Benchmark
+	public void binary(Blackhole bh) {
+		for (byte[] bytes : binaries)
+			bh.consume(Receipt.fromBytes(bytes).getReceiptUuid());
+	}
+}
@@ -0,0 +1,60 @@
+package gov.usdot.cv.common.inet;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building a bundle for a destination point, allocating with {@link InetPacket#getBundle()}
+ * versus writing into a reused direct buffer with {@link InetPacket#writeBundle(ByteBuffer)}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InetPacketEncodeBenchmark {
+
+	@Param({ "64", "512", "1400" })
+	public int payloadSize;
+
+	@Param({ "127.0.0.1", "::1" })
+	public String destination;
+
+	private InetPacket packet;
+	private ByteBuffer buffer;
+
+	@Setup
+	public void setup() throws UnknownHostException {
+		byte[] payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+		packet = new InetPacket(destination, 46751, payload);
+		buffer = ByteBuffer.allocateDirect(packet.bundleLength());
+	}
+
+	@Benchmark
+	public byte[] getBundle() {
+		return packet.getBundle();
+	}
+
+	@Benchmark
+	public ByteBuffer writeBundle() {
+		buffer.clear();
+		packet.writeBundle(buffer);
+		return buffer;
+	}
+}
@@ -0,0 +1,87 @@
+package gov.usdot.cv.common.inet;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares copying InetPacket constructors against the in-place InetPacketView
+ * when parsing a received bundle.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InetPacketParseBenchmark {
+
+	@Param({ "64", "512", "1400" })
+	public int payloadSize;
+
+	@Param({ "127.0.0.1", "::1" })
+	public String destination;
+
+	private byte[] bundle;
+	private DatagramPacket datagram;
+	private ByteBuffer received;
+	private InetSocketAddress source;
+	private final InetPacketView view = new InetPacketView();
+
+	@Setup
+	public void setup() throws UnknownHostException {
+		byte[] payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+		bundle = new InetPacket(destination, 46751, payload).getBundle();
+		source = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 46752);
+		datagram = new DatagramPacket(bundle, bundle.length, source);
+		received = ByteBuffer.allocateDirect(bundle.length);
+		received.put(bundle);
+		received.flip();
+	}
+
+	@Benchmark
+	public void inetPacketFromDatagram(Blackhole bh) {
+		InetPacket packet = new InetPacket(datagram);
+		bh.consume(packet.getPoint());
+		bh.consume(packet.getPayload());
+	}
+
+	@Benchmark
+	public void inetPacketFromBundle(Blackhole bh) {
+		InetPacket packet = new InetPacket(bundle);
+		bh.consume(packet.getPoint());
+		bh.consume(packet.getPayload());
+	}
+
+	@Benchmark
+	public void inetPacketView(Blackhole bh) {
+		view.wrap(received, source);
+		bh.consume(view.getPort());
+		bh.consume(view.getPayload());
+	}
+
+	@Benchmark
+	public void inetPacketViewWithPoint(Blackhole bh) {
+		view.wrap(received, source);
+		bh.consume(view.getPoint());
+		bh.consume(view.getPayload());
+	}
+}
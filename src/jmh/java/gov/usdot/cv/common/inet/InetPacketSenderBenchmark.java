@@ -0,0 +1,103 @@
+package gov.usdot.cv.common.inet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link InetPacketSender} sending and forwarding over the loopback interface.
+ * The receiving channel is drained after every iteration only, so the kernel may drop datagrams
+ * once its receive buffer is full; that does not affect the cost measured on the sending side.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InetPacketSenderBenchmark {
+
+	private static final int BATCH_SIZE = 16;
+
+	@Param({ "64", "1400" })
+	public int payloadSize;
+
+	private DatagramChannel receiver;
+	private InetPacketSender sender;
+	private InetPoint target;
+	private byte[] payload;
+	private List<byte[]> payloads;
+
+	@Setup
+	public void setup() throws IOException {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		receiver = DatagramChannel.open();
+		receiver.bind(new InetSocketAddress(loopback, 0));
+		receiver.configureBlocking(false);
+		target = new InetPoint(loopback, ((InetSocketAddress)receiver.getLocalAddress()).getPort());
+		// forward to the same receiver so both modes cost one datagram per payload
+		sender = new InetPacketSender(target);
+		sender.setForwardAll(true);
+		payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+		payloads = new ArrayList<byte[]>(BATCH_SIZE);
+		for ( int i = 0; i < BATCH_SIZE; i++ )
+			payloads.add(payload);
+	}
+
+	@TearDown(Level.Iteration)
+	public void drain() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(65535);
+		while ( receiver.receive(buffer) != null )
+			buffer.clear();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		sender.close();
+		receiver.close();
+	}
+
+	@Benchmark
+	public void send() throws InetPacketException {
+		sender.send(target, payload);
+	}
+
+	@Benchmark
+	public void forward() throws InetPacketException {
+		sender.forward(target, payload);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void sendBatch() throws InetPacketException {
+		sender.sendBatch(target, payloads);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void forwardBatch() throws InetPacketException {
+		sender.forwardBatch(target, payloads);
+	}
+}
@@ -0,0 +1,60 @@
+package gov.usdot.cv.common.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the byte at a time CRC-CCITT table loop against the slicing-by-8 implementation
+ * for IPv4/IPv6 bundle headers, typical payloads, and the maximum datagram size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CrcCccittBenchmark {
+
+	@Param({ "13", "25", "64", "512", "1400", "65536" })
+	public int length;
+
+	private byte[] msg;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setup() {
+		msg = new byte[length];
+		new Random(length).nextBytes(msg);
+		direct = ByteBuffer.allocateDirect(length);
+		direct.put(msg);
+		direct.flip();
+	}
+
+	@Benchmark
+	public int bytewise() {
+		return CrcCccitt.calculateCrcCccittBytewise(msg, 0, length);
+	}
+
+	@Benchmark
+	public int slicing() {
+		return CrcCccitt.calculateCrcCccitt(msg, 0, length);
+	}
+
+	@Benchmark
+	public int slicingDirectBuffer() {
+		return CrcCccitt.calculateBufferCrcCccitt(direct);
+	}
+}
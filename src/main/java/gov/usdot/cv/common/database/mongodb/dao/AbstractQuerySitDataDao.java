@@ -3,12 +3,33 @@ package gov.usdot.cv.common.database.mongodb.dao;
 import gov.usdot.cv.common.database.mongodb.criteria.DateRange;
 import gov.usdot.cv.common.database.mongodb.geospatial.Geometry;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.Mongo;
 
+/**
+ * Base class of the geospatial query data access objects. Runs {@link GeoQuery} queries so that
+ * every DAO shares the same query building, cursor options and result handling.
+ * The find methods return all matching documents in a list, the stream methods hand documents
+ * over as the cursor advances, so only one batch of documents is held in memory at a time.
+ * The find methods are answered from the {@link GeoQueryCache} when one is set.
+ */
 public abstract class AbstractQuerySitDataDao extends AbstractMongoDbDao {
+	private final Logger logger = Logger.getLogger(getClass());
+	
 	private static final String GEO_WITHIN_OPERATOR 	= "$geoWithin";
 	private static final String GEO_INTERSECTS_OPERATOR = "$geoIntersects";
 	private static final String GEOMETRY_OPERATOR 		= "$geometry";
@@ -16,11 +37,320 @@ public abstract class AbstractQuerySitDataDao extends AbstractMongoDbDao {
 	private static final String AND_OPERATOR			= "$and";
 	private static final String GTE_OPERATOR			= "$gte";
 	private static final String LTE_OPERATOR			= "$lte";
+	private static final String NOT_IN_OPERATOR			= "$nin";
+	
+	protected static final String ID_FIELD				= "_id";
+	protected static final String SERVICE_ID_FIELD		= "serviceId";
+	
+	private static final DBObject ID_PROJECTION = new BasicDBObject(ID_FIELD, 1);
+	
+	// above this many within matches the ids are not sent back to the server to exclude them
+	private static final int MAX_EXCLUDED_IDS = 1000;
+	
+	/**
+	 * Receives documents from the stream methods as the cursor advances
+	 */
+	public interface DocumentHandler {
+		/**
+		 * @return false to stop reading documents
+		 */
+		boolean handle(DBObject document);
+	}
+	
+	private volatile GeoQueryCache queryCache;
 	
 	protected AbstractQuerySitDataDao(Mongo mongo, String dbname) {
 		super(mongo, dbname);
 	}
 	
+	/**
+	 * Sets the cache the find methods are answered from, null to always query the server.
+	 * Cached results are read-only and shared between callers. The stream methods always query the server.
+	 */
+	public void setQueryCache(GeoQueryCache queryCache) {
+		this.queryCache = queryCache;
+	}
+	
+	public GeoQueryCache getQueryCache() {
+		return queryCache;
+	}
+	
+	/**
+	 * Returns a list of documents matching the query. The query will look for all documents 
+	 * with a geometry that is within the query geometry. If the query limit has not
+	 * been reached it will look for all documents with a geometry that intersects with the query
+	 * geometry. The results will be combined, documents within the geometry first, and returned back.
+	 * 
+	 * When the within query fills the limit only one query is run. Otherwise the intersects query
+	 * excludes the within matches by _id, so it only fetches the remaining documents, unless there
+	 * are too many ids to send in which case it fetches enough extra documents to cover the overlap.
+	 * Documents are de-duplicated by _id either way.
+	 */
+	public Collection<DBObject> findAll(final GeoQuery query) {
+		GeoQueryCache cache = queryCache;
+		if (cache == null) return fetchAll(query);
+		return cache.get(query, null, new GeoQueryCache.Loader() {
+			@Override
+			public List<DBObject> load() {
+				return fetchAll(query);
+			}
+		});
+	}
+	
+	private List<DBObject> fetchAll(GeoQuery query) {
+		List<DBObject> within = fetch(query, GeoQuery.Relation.WITHIN);
+		
+		final int limit = maxCount(query);
+		if (limit > 0 && within.size() >= limit) return within;
+		
+		Map<Object, DBObject> result = new LinkedHashMap<Object, DBObject>();
+		for (DBObject dbObj : within) {
+			result.put(idOf(dbObj), dbObj);
+		}
+		
+		List<DBObject> intersects = drain(openIntersectsCursor(query, result.keySet()));
+		
+		if (intersects.size() == 0) return within;
+		
+		for (DBObject dbObj : intersects) {
+			if (limit > 0 && result.size() >= limit)
+				break;
+			Object id = idOf(dbObj);
+			if (! result.containsKey(id))
+				result.put(id, dbObj);
+		}
+		return new ArrayList<DBObject>(result.values());
+	}
+	
+	/**
+	 * Returns a list of documents matching the query whose geometry has the given relation to the
+	 * query geometry. It will cap the result with the query limit.
+	 */
+	public List<DBObject> find(final GeoQuery query, final GeoQuery.Relation relation) {
+		GeoQueryCache cache = queryCache;
+		if (cache == null) return fetch(query, relation);
+		return cache.get(query, relation, new GeoQueryCache.Loader() {
+			@Override
+			public List<DBObject> load() {
+				return fetch(query, relation);
+			}
+		});
+	}
+	
+	private List<DBObject> fetch(GeoQuery query, GeoQuery.Relation relation) {
+		return drain(openCursor(query, relation, null, query.getLimit()));
+	}
+	
+	/**
+	 * Returns the _id values of the documents matching the query whose geometry has the given
+	 * relation to the query geometry. Only _id is sent by the server.
+	 */
+	public List<Object> findIds(GeoQuery query, GeoQuery.Relation relation) {
+		return valuesOf(find(query.withProjection(ID_PROJECTION), relation), ID_FIELD);
+	}
+	
+	/**
+	 * Returns the _id values of the documents {@link #findAll(GeoQuery)} returns, in the same order.
+	 * Only _id is sent by the server.
+	 */
+	public List<Object> findAllIds(GeoQuery query) {
+		return valuesOf(findAll(query.withProjection(ID_PROJECTION)), ID_FIELD);
+	}
+	
+	/**
+	 * Returns the payload field values of the documents matching the query whose geometry has the
+	 * given relation to the query geometry. Only the payload field is sent by the server.
+	 * @param payloadFieldName name of the payload field, dotted names select an embedded field
+	 */
+	public List<Object> findPayloads(GeoQuery query, GeoQuery.Relation relation, String payloadFieldName) {
+		return valuesOf(find(query.withProjection(GeoQuery.fields(false, payloadFieldName)), relation), payloadFieldName);
+	}
+	
+	/**
+	 * Returns the payload field values of the documents {@link #findAll(GeoQuery)} returns, in the
+	 * same order. Only _id and the payload field are sent by the server.
+	 * @param payloadFieldName name of the payload field, dotted names select an embedded field
+	 */
+	public List<Object> findAllPayloads(GeoQuery query, String payloadFieldName) {
+		return valuesOf(findAll(query.withProjection(GeoQuery.fields(true, payloadFieldName))), payloadFieldName);
+	}
+	
+	/**
+	 * Returns an open cursor over the documents matching the query whose geometry has the given
+	 * relation to the query geometry. Documents are fetched from the server in batches of the query
+	 * batch size as the cursor is iterated. The caller has to close the cursor.
+	 */
+	public DBCursor stream(GeoQuery query, GeoQuery.Relation relation) {
+		return openCursor(query, relation, null, query.getLimit());
+	}
+	
+	/**
+	 * Hands the documents matching the query whose geometry has the given relation to the
+	 * query geometry to the handler as the cursor advances.
+	 * @return number of documents handled
+	 */
+	public int stream(GeoQuery query, GeoQuery.Relation relation, DocumentHandler handler) {
+		Progress progress = new Progress();
+		stream(openCursor(query, relation, null, query.getLimit()), handler, null, maxCount(query), progress);
+		return progress.count;
+	}
+	
+	/**
+	 * Hands the same documents as {@link #findAll(GeoQuery)}, in the same order, to the handler
+	 * as the cursors advance. Only the _id values of the documents within the geometry are kept
+	 * to skip them when the intersecting documents are read.
+	 * @return number of documents handled
+	 */
+	public int streamAll(GeoQuery query, DocumentHandler handler) {
+		final int limit = maxCount(query);
+		Set<Object> seen = new HashSet<Object>();
+		Progress progress = new Progress();
+		stream(openCursor(query, GeoQuery.Relation.WITHIN, null, query.getLimit()), handler, seen, limit, progress);
+		
+		if (progress.stopped || (limit > 0 && progress.count >= limit)) return progress.count;
+		
+		stream(openIntersectsCursor(query, seen), handler, seen, limit, progress);
+		return progress.count;
+	}
+	
+	/**
+	 * Opens the cursor of the second query of {@link #findAll(GeoQuery)} and {@link #streamAll(GeoQuery, DocumentHandler)}.
+	 * Every document within the geometry also intersects it, so the intersects query either skips
+	 * them by _id or, when there are too many ids to send, fetches enough extra to make up for them.
+	 * The caller still has to skip documents it has seen and stop at the query limit.
+	 * @param withinIds _id values of the documents the within query returned
+	 */
+	private DBCursor openIntersectsCursor(GeoQuery query, Collection<Object> withinIds) {
+		final int limit = maxCount(query);
+		final int within = withinIds.size();
+		int remaining = (limit > 0) ? limit - within : 0;
+		DBObject exclude = null;
+		if (within > MAX_EXCLUDED_IDS) {
+			if (remaining > 0) remaining += within;
+		} else if (within > 0) {
+			exclude = buildNotInExpression(ID_FIELD, withinIds);
+		}
+		return openCursor(query, GeoQuery.Relation.INTERSECTS, exclude, (query.getLimit() < 0) ? -remaining : remaining);
+	}
+	
+	/**
+	 * @return maximum number of documents the query returns, 0 for no limit
+	 */
+	private static int maxCount(GeoQuery query) {
+		return Math.abs(query.getLimit());
+	}
+	
+	private static final class Progress {
+		int count;
+		boolean stopped;
+	}
+	
+	/**
+	 * Reads documents from the cursor until the handler stops or the total count reaches the limit, and closes it.
+	 * @param seen if not null, documents with these _id values are skipped and handled ones are added
+	 */
+	private void stream(DBCursor cursor, DocumentHandler handler, Set<Object> seen, int limit, Progress progress) {
+		try {
+			while ((limit <= 0 || progress.count < limit) && cursor.hasNext()) {
+				DBObject dbObj = cursor.next();
+				if (seen != null && ! seen.add(idOf(dbObj)))
+					continue;
+				progress.count++;
+				if (! handler.handle(dbObj)) {
+					progress.stopped = true;
+					return;
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Opens a cursor over the documents matching the query, with the query's projection, sort order,
+	 * hint, batch size and maximum time applied. The caller has to close the cursor.
+	 * @param exclude additional expression documents must match, or null
+	 * @param limit maximum number of documents, 0 for no limit, negative to return them in a single batch
+	 */
+	protected DBCursor openCursor(GeoQuery query, GeoQuery.Relation relation, DBObject exclude, int limit) {
+		DBObject[] predicates = prepare(query);
+		DBObject[] exps = new DBObject[predicates.length + 2];
+		System.arraycopy(predicates, 0, exps, 0, predicates.length);
+		exps[predicates.length] = (relation == GeoQuery.Relation.WITHIN) ? query.withinExpression : query.intersectsExpression;
+		exps[predicates.length + 1] = exclude;
+		DBObject criteria = and(exps);
+		
+		if (logger.isDebugEnabled())
+			logger.debug(String.format("Executing query: %s", criteria.toString()));
+		
+		DBCursor cursor = get(query.getCollectionName()).find(criteria, query.getProjection());
+		if (query.orderBy != null) cursor.sort(query.orderBy);
+		if (limit != 0) cursor.limit(limit);
+		if (query.getHint() != null) cursor.hint(query.getHint());
+		if (query.getBatchSize() > 0) cursor.batchSize(query.getBatchSize());
+		if (query.getMaxTimeMs() > 0) cursor.maxTime(query.getMaxTimeMs(), TimeUnit.MILLISECONDS);
+		return cursor;
+	}
+	
+	/**
+	 * Reads all documents from the cursor and closes it.
+	 */
+	protected List<DBObject> drain(DBCursor cursor) {
+		List<DBObject> result = new ArrayList<DBObject>();
+		
+		try {
+			while (cursor.hasNext()) {
+				result.add(cursor.next());
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Builds the query's expressions the first time it runs.
+	 * @return the non-geospatial predicates
+	 */
+	private DBObject[] prepare(GeoQuery query) {
+		DBObject[] predicates = query.predicates;
+		if (predicates != null) return predicates;
+		
+		List<DBObject> list = new ArrayList<DBObject>();
+		if (query.getExistingFieldName() != null) list.add(buildExistsExpression(query.getExistingFieldName(), true));
+		if (query.getServiceId() != null) list.add(new BasicDBObject(SERVICE_ID_FIELD, query.getServiceId()));
+		DBObject range = buildDateRangeExpression(query.getDateRange());
+		if (range != null) list.add(range);
+		
+		Object geometry = query.getGeometry().toJSONObject();
+		query.withinExpression = buildGeoExpression(GEO_WITHIN_OPERATOR, query.getGeoSpatialFieldName(), geometry);
+		query.intersectsExpression = buildGeoExpression(GEO_INTERSECTS_OPERATOR, query.getGeoSpatialFieldName(), geometry);
+		query.orderBy = (query.getOrderByFieldName() != null) ? buildOrderByExpression(query.getOrderByFieldName(), false) : null;
+		
+		predicates = list.toArray(new DBObject[list.size()]);
+		query.predicates = predicates;
+		return predicates;
+	}
+	
+	private static List<Object> valuesOf(Collection<DBObject> dbObjs, String fieldName) {
+		String[] path = fieldName.split("\\.");
+		List<Object> values = new ArrayList<Object>(dbObjs.size());
+		for (DBObject dbObj : dbObjs) {
+			Object value = dbObj;
+			for (int i = 0; i < path.length; i++) {
+				value = (value instanceof DBObject) ? ((DBObject) value).get(path[i]) : null;
+			}
+			values.add(value);
+		}
+		return values;
+	}
+	
+	private static Object idOf(DBObject dbObj) {
+		Object id = dbObj.get(ID_FIELD);
+		return (id != null) ? id : dbObj;
+	}
+	
 	/**
 	 * Builds the date range db object.
 	 * 
@@ -57,11 +387,7 @@ public abstract class AbstractQuerySitDataDao extends AbstractMongoDbDao {
      * } } } }
 	 */
 	protected DBObject buildGeoWithinExpression(String fieldName, Geometry geometry) {
-		return 
-			new BasicDBObject(fieldName, 
-				new BasicDBObject(GEO_WITHIN_OPERATOR, 
-					new BasicDBObject(GEOMETRY_OPERATOR, 
-						geometry.toJSONObject())));
+		return buildGeoExpression(GEO_WITHIN_OPERATOR, fieldName, geometry.toJSONObject());
 	}
 	
 	/**
@@ -75,11 +401,15 @@ public abstract class AbstractQuerySitDataDao extends AbstractMongoDbDao {
      * } } } }
 	 */
 	protected DBObject buildGeoIntersectsExpression(String fieldName, Geometry geometry) {
+		return buildGeoExpression(GEO_INTERSECTS_OPERATOR, fieldName, geometry.toJSONObject());
+	}
+	
+	private DBObject buildGeoExpression(String operator, String fieldName, Object geometry) {
 		return 
 			new BasicDBObject(fieldName, 
-				new BasicDBObject(GEO_INTERSECTS_OPERATOR, 
+				new BasicDBObject(operator, 
 					new BasicDBObject(GEOMETRY_OPERATOR, 
-						geometry.toJSONObject())));
+						geometry)));
 	}
 	
 	/**
@@ -93,6 +423,19 @@ public abstract class AbstractQuerySitDataDao extends AbstractMongoDbDao {
 				new BasicDBObject(EXISTS_OPERATOR, value));
 	}
 	
+	/**
+	 * Builds a $nin query expression.
+	 * 
+	 * { <field name> : { $nin : [ <value1>, <value2>, ... ] } }
+	 */
+	protected DBObject buildNotInExpression(String fieldName, Collection<?> values) {
+		BasicDBList list = new BasicDBList();
+		list.addAll(values);
+		return 
+			new BasicDBObject(fieldName, 
+				new BasicDBObject(NOT_IN_OPERATOR, list));
+	}
+	
 	/**
 	 * Builds a $and query expression.
 	 * 
@@ -0,0 +1,269 @@
+package gov.usdot.cv.common.database.mongodb.dao;
+
+import gov.usdot.cv.common.database.mongodb.criteria.DateRange;
+import gov.usdot.cv.common.database.mongodb.geospatial.Geometry;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Geospatial query run by {@link AbstractQuerySitDataDao}: the predicates documents have to match
+ * and the cursor options to read them with. The query is immutable and its DBObject expressions are
+ * built once, on first use, and shared by the within and intersects queries of a findAll.
+ */
+public class GeoQuery {
+
+	/** How document geometries have to relate to the query geometry. */
+	public enum Relation {
+		WITHIN,
+		INTERSECTS
+	}
+
+	private final String collectionName;
+	private final String existingFieldName;
+	private final Integer serviceId;
+	private final DateRange dateRange;
+	private final String geoSpatialFieldName;
+	private final Geometry geometry;
+	private final String orderByFieldName;
+	private final String hint;
+	private final DBObject projection;
+	private final int batchSize;
+	private final long maxTimeMs;
+	private final int limit;
+
+	// built by AbstractQuerySitDataDao on first use, predicates is written last
+	volatile DBObject[] predicates;
+	DBObject orderBy;
+	DBObject withinExpression;
+	DBObject intersectsExpression;
+
+	private GeoQuery(GeoQuery query, DBObject projection) {
+		this.collectionName = query.collectionName;
+		this.existingFieldName = query.existingFieldName;
+		this.serviceId = query.serviceId;
+		this.dateRange = query.dateRange;
+		this.geoSpatialFieldName = query.geoSpatialFieldName;
+		this.geometry = query.geometry;
+		this.orderByFieldName = query.orderByFieldName;
+		this.hint = query.hint;
+		this.projection = projection;
+		this.batchSize = query.batchSize;
+		this.maxTimeMs = query.maxTimeMs;
+		this.limit = query.limit;
+		if (query.predicates != null) {
+			this.orderBy = query.orderBy;
+			this.withinExpression = query.withinExpression;
+			this.intersectsExpression = query.intersectsExpression;
+			this.predicates = query.predicates;
+		}
+	}
+	
+	private GeoQuery(Builder builder) {
+		this.collectionName = builder.collectionName;
+		this.existingFieldName = builder.existingFieldName;
+		this.serviceId = builder.serviceId;
+		this.dateRange = builder.dateRange;
+		this.geoSpatialFieldName = builder.geoSpatialFieldName;
+		this.geometry = builder.geometry;
+		this.orderByFieldName = builder.orderByFieldName;
+		this.hint = builder.hint;
+		this.projection = builder.projection;
+		this.batchSize = builder.batchSize;
+		this.maxTimeMs = builder.maxTimeMs;
+		this.limit = builder.limit;
+	}
+
+	public String getCollectionName() {
+		return collectionName;
+	}
+
+	public String getExistingFieldName() {
+		return existingFieldName;
+	}
+
+	public Integer getServiceId() {
+		return serviceId;
+	}
+
+	public DateRange getDateRange() {
+		return dateRange;
+	}
+
+	public String getGeoSpatialFieldName() {
+		return geoSpatialFieldName;
+	}
+
+	public Geometry getGeometry() {
+		return geometry;
+	}
+
+	public String getOrderByFieldName() {
+		return orderByFieldName;
+	}
+
+	public String getHint() {
+		return hint;
+	}
+
+	public DBObject getProjection() {
+		return projection;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public long getMaxTimeMs() {
+		return maxTimeMs;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return same query returning only the projected fields, sharing the expressions already built
+	 */
+	public GeoQuery withProjection(DBObject projection) {
+		return new GeoQuery(this, projection);
+	}
+
+	/**
+	 * Builds a projection that returns only the fields, dotted names select embedded fields.
+	 * @param includeId whether to return _id too
+	 */
+	public static DBObject fields(boolean includeId, String... fieldNames) {
+		BasicDBObject projection = new BasicDBObject();
+		for (String fieldName : fieldNames) {
+			projection.put(fieldName, 1);
+		}
+		if (!includeId) {
+			projection.put(AbstractQuerySitDataDao.ID_FIELD, 0);
+		}
+		return projection;
+	}
+
+	public static class Builder {
+		private String collectionName;
+		private String existingFieldName;
+		private Integer serviceId;
+		private DateRange dateRange;
+		private String geoSpatialFieldName;
+		private Geometry geometry;
+		private String orderByFieldName;
+		private String hint;
+		private DBObject projection;
+		private int batchSize;
+		private long maxTimeMs;
+		private int limit;
+
+		public Builder setCollectionName(String collectionName) {
+			this.collectionName = collectionName;
+			return this;
+		}
+
+		/**
+		 * Only matches documents that have the field.
+		 */
+		public Builder setExistingFieldName(String existingFieldName) {
+			this.existingFieldName = existingFieldName;
+			return this;
+		}
+
+		/**
+		 * Only matches documents with the serviceId.
+		 */
+		public Builder setServiceId(Integer serviceId) {
+			this.serviceId = serviceId;
+			return this;
+		}
+
+		public Builder setDateRange(DateRange dateRange) {
+			this.dateRange = dateRange;
+			return this;
+		}
+
+		public Builder setGeoSpatialFieldName(String geoSpatialFieldName) {
+			this.geoSpatialFieldName = geoSpatialFieldName;
+			return this;
+		}
+
+		public Builder setGeometry(Geometry geometry) {
+			this.geometry = geometry;
+			return this;
+		}
+
+		/**
+		 * Sorts documents by the field in descending order.
+		 */
+		public Builder setOrderByFieldName(String orderByFieldName) {
+			this.orderByFieldName = orderByFieldName;
+			return this;
+		}
+
+		/**
+		 * Sets name of the index the server has to use.
+		 */
+		public Builder setHint(String hint) {
+			this.hint = hint;
+			return this;
+		}
+
+		/**
+		 * Sets fields to return, all fields by default. Leaving out large fields such as encoded
+		 * payloads cuts the bytes sent by the server and the cost of decoding them.
+		 * Keep _id in the projection for findAll, which de-duplicates documents by _id.
+		 */
+		public Builder setProjection(DBObject projection) {
+			this.projection = projection;
+			return this;
+		}
+
+		/**
+		 * Returns only _id and the given fields.
+		 */
+		public Builder setFields(String... fieldNames) {
+			this.projection = fields(true, fieldNames);
+			return this;
+		}
+
+		/**
+		 * Sets number of documents fetched per round trip, 0 for the server default.
+		 */
+		public Builder setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * Sets how long in milliseconds the server may spend on the query, 0 for no limit.
+		 */
+		public Builder setMaxTime(long maxTimeMs) {
+			this.maxTimeMs = maxTimeMs;
+			return this;
+		}
+
+		/**
+		 * Sets maximum number of documents to return, 0 for no limit. As with {@link com.mongodb.DBCursor#limit(int)}
+		 * a negative limit returns at most that many documents in a single batch and closes the cursor.
+		 */
+		public Builder setLimit(int limit) {
+			this.limit = limit;
+			return this;
+		}
+
+		public GeoQuery build() {
+			if (this.collectionName == null) {
+				throw new NullPointerException("Query collection name is null.");
+			}
+			if (this.geoSpatialFieldName == null || this.geometry == null) {
+				throw new NullPointerException("Query geospatial field name and geometry are required.");
+			}
+			if (this.batchSize < 0 || this.maxTimeMs < 0) {
+				throw new IllegalArgumentException("Query batch size and maximum time can not be negative.");
+			}
+			return new GeoQuery(this);
+		}
+	}
+}
@@ -0,0 +1,463 @@
+package gov.usdot.cv.common.database.mongodb.dao;
+
+import gov.usdot.cv.common.database.mongodb.criteria.DateRange;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import com.mongodb.DBObject;
+
+/**
+ * Bounded in-process cache of {@link AbstractQuerySitDataDao} query results with a time to live, for the
+ * many near-identical queries sent by clients in the same area. Queries are keyed by their geometry with
+ * every coordinate snapped to a tile, their date range with both ends rounded down to a time bucket, and
+ * everything else that shapes the result: collection, relation, filters, sort order, projection and limit.
+ * Queries with the same key share the result of whichever of them ran first, so the tile and bucket sizes
+ * bound how far a cached result may be from the exact one.
+ *
+ * Once the cache is added as the write listener of an {@link InsertSitDataDao}, an insert drops only the cached
+ * results it may change: those of queries on the collection whose geometry, widened to whole tiles, overlaps
+ * the bounding box of the document's geometry and whose date range, widened to whole buckets, holds the
+ * document's time. Every write checks the cached results of its collection, a pass over at most the maximum
+ * number of entries, which is small next to the write itself. Upserts drop all results of the collection since
+ * the document may have moved. Writes made elsewhere are picked up when the results expire.
+ *
+ * When full, the cache drops the entry added first, which with a single time to live is also the first to
+ * expire, so the maximum number of entries holds even while queries are still loading. Concurrent misses on
+ * the same key wait for one query instead of each sending it to the server.
+ *
+ * Cached documents are shared by every caller that gets them and must not be modified.
+ * Safe for use by multiple threads.
+ */
+public class GeoQueryCache implements InsertSitDataDao.WriteListener {
+
+	public static final int DEFAULT_MAX_ENTRIES = 1024;
+	public static final long DEFAULT_TTL_MS = 10*1000;
+	public static final long DEFAULT_TIME_BUCKET_MS = 60*1000;
+	/** About 11 meters of latitude. */
+	public static final double DEFAULT_TILE_DEGREES = 0.0001;
+
+	// relation part of the key of findAll results
+	private static final String ALL = "ALL";
+
+	/**
+	 * Runs the query on a miss
+	 */
+	interface Loader {
+		List<DBObject> load();
+	}
+
+	private final int maxEntries;
+	private final long ttlMs;
+	private final long timeBucketMs;
+	private final double tileDegrees;
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	// entries in the order they were added, including ones since replaced or removed, guarded by itself
+	private final ArrayDeque<Entry> order = new ArrayDeque<Entry>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	private GeoQueryCache(int maxEntries, long ttlMs, long timeBucketMs, double tileDegrees) {
+		this.maxEntries = maxEntries;
+		this.ttlMs = ttlMs;
+		this.timeBucketMs = timeBucketMs;
+		this.tileDegrees = tileDegrees;
+	}
+
+	/**
+	 * Returns the cached result of the query or loads and caches it
+	 * @param relation relation of a find, null for a findAll
+	 */
+	List<DBObject> get(GeoQuery query, GeoQuery.Relation relation, Loader loader) {
+		return get(query, relation, loader, now());
+	}
+
+	List<DBObject> get(GeoQuery query, GeoQuery.Relation relation, final Loader loader, long nowMs) {
+		final String key = keyOf(query, relation);
+		while (true) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expiresAt > nowMs) {
+				hits.incrementAndGet();
+				return entry.get();
+			}
+			// added before the query runs so that a write made while it runs drops the result
+			Entry loading = new Entry(key, query, new FutureTask<List<DBObject>>(new Callable<List<DBObject>>() {
+				@Override
+				public List<DBObject> call() {
+					return Collections.unmodifiableList(loader.load());
+				}
+			}), nowMs + ttlMs);
+			if (entry == null) {
+				if (entries.putIfAbsent(key, loading) != null)
+					continue;
+			} else if (!entries.replace(key, entry, loading)) {
+				continue;
+			}
+			added(loading);
+			misses.incrementAndGet();
+			loading.result.run();
+			try {
+				return loading.get();
+			} catch (RuntimeException ex) {
+				// don't cache failures, the next query tries again
+				entries.remove(key, loading);
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached results of the collection
+	 */
+	public void invalidate(String collectionName) {
+		for (Entry entry : entries.values()) {
+			if (entry.collectionName.equals(collectionName))
+				invalidate(entry);
+		}
+	}
+
+	/**
+	 * Drops the cached results of the collection the document written through the {@link InsertSitDataDao} may change
+	 * @param document the inserted document, or null to drop all results of the collection
+	 */
+	@Override
+	public void written(String collectionName, DBObject document) {
+		if (document == null) {
+			invalidate(collectionName);
+			return;
+		}
+		// looked up once for each field name the cached queries use, null if the document doesn't have it
+		Map<String, double[]> bounds = new HashMap<String, double[]>();
+		Map<String, Long> times = new HashMap<String, Long>();
+		for (Entry entry : entries.values()) {
+			if (!entry.collectionName.equals(collectionName))
+				continue;
+			if (!bounds.containsKey(entry.geoSpatialFieldName)) {
+				Object geometry = fieldOf(document, entry.geoSpatialFieldName);
+				bounds.put(entry.geoSpatialFieldName, (geometry instanceof DBObject) ? boundsOf(((DBObject)geometry).get("coordinates")) : null);
+			}
+			Long time = null;
+			if (entry.dateFieldName != null) {
+				if (!times.containsKey(entry.dateFieldName))
+					times.put(entry.dateFieldName, timeOf(fieldOf(document, entry.dateFieldName)));
+				time = times.get(entry.dateFieldName);
+			}
+			if (entry.covers(bounds.get(entry.geoSpatialFieldName), time))
+				invalidate(entry);
+		}
+	}
+
+	private void invalidate(Entry entry) {
+		if (entries.remove(entry.key, entry))
+			invalidations.incrementAndGet();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return fraction of lookups answered from the cache, 0 before the first lookup
+	 */
+	public double getHitRatio() {
+		long hits = this.hits.get();
+		long total = hits + this.misses.get();
+		return (total > 0) ? (double)hits / total : 0;
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return number of cached results dropped because of writes
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Builds the key of the query, equal for queries that only differ below the tile and bucket sizes
+	 * or in options that don't change the result such as the hint, batch size and maximum time.
+	 */
+	String keyOf(GeoQuery query, GeoQuery.Relation relation) {
+		StringBuilder key = new StringBuilder(128);
+		key.append(query.getCollectionName()).append('|');
+		key.append(relation != null ? relation.name() : ALL).append('|');
+		key.append(query.getGeoSpatialFieldName()).append('|');
+		JSONObject geometry = query.getGeometry().toJSONObject();
+		key.append(geometry.optString("type")).append(':');
+		appendTiles(key, geometry.opt("coordinates"));
+		key.append('|');
+		DateRange dateRange = query.getDateRange();
+		if (dateRange != null) {
+			key.append(dateRange.getFieldName()).append(':');
+			if (dateRange.hasStartTime())
+				key.append(toBucket(dateRange.getStartTime().getTime()));
+			key.append(':');
+			if (dateRange.hasEndTime())
+				key.append(toBucket(dateRange.getEndTime().getTime()));
+		}
+		key.append('|').append(query.getExistingFieldName());
+		key.append('|').append(query.getServiceId());
+		key.append('|').append(query.getOrderByFieldName());
+		key.append('|').append(query.getProjection());
+		key.append('|').append(query.getLimit());
+		return key.toString();
+	}
+
+	private void appendTiles(StringBuilder key, Object coordinates) {
+		if (coordinates instanceof JSONArray) {
+			key.append('[');
+			for (Object value : (JSONArray)coordinates) {
+				appendTiles(key, value);
+				key.append(',');
+			}
+			key.append(']');
+		} else if (coordinates instanceof Number) {
+			double value = ((Number)coordinates).doubleValue();
+			if (tileDegrees > 0)
+				key.append(Math.round(Math.floor(value / tileDegrees)));
+			else
+				key.append(value);
+		} else {
+			key.append(coordinates);
+		}
+	}
+
+	private long toBucket(long timeMs) {
+		if (timeBucketMs == 0)
+			return timeMs;
+		long bucket = timeMs / timeBucketMs;
+		return (timeMs < 0 && bucket * timeBucketMs != timeMs) ? bucket - 1 : bucket;
+	}
+
+	// the oldest entries go first when full, dead entries are purged once they outnumber the live ones
+	private void added(Entry entry) {
+		synchronized (order) {
+			order.addLast(entry);
+			if (order.size() > 2 * maxEntries) {
+				for (int i = order.size(); i > 0; i--) {
+					Entry oldest = order.pollFirst();
+					if (entries.get(oldest.key) == oldest)
+						order.addLast(oldest);
+				}
+			}
+			Entry oldest;
+			while (entries.size() > maxEntries && (oldest = order.pollFirst()) != null) {
+				// whoever is waiting for a loading entry still gets its result
+				if (entries.remove(oldest.key, oldest))
+					evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Widens the bounds of the query geometry to the tiles it was keyed on
+	 * @return min x, min y, max x and max y, or null if unknown
+	 */
+	private double[] tileBoundsOf(GeoQuery query) {
+		double[] bounds = boundsOf(query.getGeometry().toJSONObject().opt("coordinates"));
+		if (bounds == null || tileDegrees == 0)
+			return bounds;
+		for (int i = 0; i < 2; i++) {
+			bounds[i] = Math.floor(bounds[i] / tileDegrees) * tileDegrees;
+			bounds[i + 2] = (Math.floor(bounds[i + 2] / tileDegrees) + 1) * tileDegrees;
+		}
+		return bounds;
+	}
+
+	/**
+	 * @param coordinates GeoJSON coordinates, nested lists of positions
+	 * @return min x, min y, max x and max y of the positions, or null if there are none
+	 */
+	static double[] boundsOf(Object coordinates) {
+		if (!(coordinates instanceof List))
+			return null;
+		List<?> list = (List<?>)coordinates;
+		if (list.size() >= 2 && list.get(0) instanceof Number && list.get(1) instanceof Number) {
+			double x = ((Number)list.get(0)).doubleValue();
+			double y = ((Number)list.get(1)).doubleValue();
+			return new double[] { x, y, x, y };
+		}
+		double[] bounds = null;
+		for (Object value : list) {
+			double[] inner = boundsOf(value);
+			if (inner == null)
+				continue;
+			if (bounds == null) {
+				bounds = inner;
+			} else {
+				bounds[0] = Math.min(bounds[0], inner[0]);
+				bounds[1] = Math.min(bounds[1], inner[1]);
+				bounds[2] = Math.max(bounds[2], inner[2]);
+				bounds[3] = Math.max(bounds[3], inner[3]);
+			}
+		}
+		return bounds;
+	}
+
+	// dotted names select embedded fields
+	private static Object fieldOf(DBObject document, String fieldName) {
+		Object value = document;
+		for (String name : fieldName.split("\\.")) {
+			value = (value instanceof DBObject) ? ((DBObject)value).get(name) : null;
+		}
+		return value;
+	}
+
+	private static Long timeOf(Object value) {
+		if (value instanceof Date)
+			return ((Date)value).getTime();
+		if (value instanceof Number)
+			return ((Number)value).longValue();
+		return null;
+	}
+
+	static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	private final class Entry {
+		final String key;
+		final FutureTask<List<DBObject>> result;
+		final long expiresAt;
+		// what writes the result may depend on
+		final String collectionName;
+		final String geoSpatialFieldName;
+		final double[] bounds;
+		final String dateFieldName;
+		final long fromMs;
+		final long toMs;
+
+		Entry(String key, GeoQuery query, FutureTask<List<DBObject>> result, long expiresAt) {
+			this.key = key;
+			this.result = result;
+			this.expiresAt = expiresAt;
+			this.collectionName = query.getCollectionName();
+			this.geoSpatialFieldName = query.getGeoSpatialFieldName();
+			this.bounds = tileBoundsOf(query);
+			// widened to the buckets it was keyed on, toMs is exclusive
+			DateRange dateRange = query.getDateRange();
+			this.dateFieldName = (dateRange != null) ? dateRange.getFieldName() : null;
+			this.fromMs = (dateRange != null && dateRange.hasStartTime()) ?
+					toBucket(dateRange.getStartTime().getTime()) * Math.max(timeBucketMs, 1) : Long.MIN_VALUE;
+			this.toMs = (dateRange != null && dateRange.hasEndTime()) ?
+					(toBucket(dateRange.getEndTime().getTime()) + 1) * Math.max(timeBucketMs, 1) : Long.MAX_VALUE;
+		}
+
+		/**
+		 * @param documentBounds bounds of the document geometry, null if unknown
+		 * @param documentTime time of the document, null if unknown
+		 * @return whether the document may be part of the result
+		 */
+		boolean covers(double[] documentBounds, Long documentTime) {
+			if (documentBounds != null && bounds != null && (documentBounds[0] > bounds[2] || documentBounds[2] < bounds[0]
+					|| documentBounds[1] > bounds[3] || documentBounds[3] < bounds[1]))
+				return false;
+			return dateFieldName == null || documentTime == null || (documentTime >= fromMs && documentTime < toMs);
+		}
+
+		// waits for the query if another thread is still running it
+		List<DBObject> get() {
+			boolean interrupted = false;
+			try {
+				while (true) {
+					try {
+						return result.get();
+					} catch (InterruptedException ex) {
+						interrupted = true;
+					} catch (ExecutionException ex) {
+						Throwable cause = ex.getCause();
+						if (cause instanceof RuntimeException)
+							throw (RuntimeException)cause;
+						if (cause instanceof Error)
+							throw (Error)cause;
+						throw new IllegalStateException(cause);
+					}
+				}
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public static class Builder {
+		private int maxEntries = DEFAULT_MAX_ENTRIES;
+		private long ttlMs = DEFAULT_TTL_MS;
+		private long timeBucketMs = DEFAULT_TIME_BUCKET_MS;
+		private double tileDegrees = DEFAULT_TILE_DEGREES;
+
+		/**
+		 * Sets maximum number of query results to keep.
+		 */
+		public Builder setMaxEntries(int maxEntries) {
+			this.maxEntries = maxEntries;
+			return this;
+		}
+
+		/**
+		 * Sets how long in milliseconds a result is used before the query is sent again.
+		 */
+		public Builder setTtl(long ttlMs) {
+			this.ttlMs = ttlMs;
+			return this;
+		}
+
+		/**
+		 * Sets the time bucket in milliseconds date ranges are rounded down to, 0 to key on exact times.
+		 */
+		public Builder setTimeBucket(long timeBucketMs) {
+			this.timeBucketMs = timeBucketMs;
+			return this;
+		}
+
+		/**
+		 * Sets the tile size in degrees coordinates are snapped to, 0 to key on exact coordinates.
+		 */
+		public Builder setTileDegrees(double tileDegrees) {
+			this.tileDegrees = tileDegrees;
+			return this;
+		}
+
+		public GeoQueryCache build() {
+			if (this.maxEntries < 1) {
+				throw new IllegalArgumentException("Query cache size must be positive.");
+			}
+			if (this.ttlMs < 0 || this.timeBucketMs < 0 || this.tileDegrees < 0) {
+				throw new IllegalArgumentException("Query cache time to live, time bucket and tile size can not be negative.");
+			}
+			return new GeoQueryCache(this.maxEntries, this.ttlMs, this.timeBucketMs, this.tileDegrees);
+		}
+	}
+}
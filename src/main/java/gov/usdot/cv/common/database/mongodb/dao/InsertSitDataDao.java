@@ -3,6 +3,8 @@ package gov.usdot.cv.common.database.mongodb.dao;
 import gov.usdot.cv.common.database.mongodb.MongoClientBuilder;
 
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 import com.mongodb.BasicDBObject;
@@ -16,6 +18,18 @@ import com.mongodb.WriteResult;
  * Data access object to insert Connected Vehicles data into MongoDB.
  */
 public class InsertSitDataDao extends AbstractMongoDbDao {
+	
+	/**
+	 * Notified after each insert or upsert, for example to invalidate a {@link GeoQueryCache}
+	 */
+	public interface WriteListener {
+		/**
+		 * @param document the inserted document, or null if the write may have changed any document of the collection
+		 */
+		void written(String collectionName, DBObject document);
+	}
+	
+	private final List<WriteListener> writeListeners = new CopyOnWriteArrayList<WriteListener>();
 		
 	public static InsertSitDataDao newInstance(
 			String mongoServerHost, 
@@ -36,7 +50,11 @@ public class InsertSitDataDao extends AbstractMongoDbDao {
 	 */
 	public WriteResult insert(String collectionName, DBObject doc) {
 		DBCollection collection = get(collectionName);
-		return collection.insert(doc);
+		try {
+			return collection.insert(doc);
+		} finally {
+			written(collectionName, doc);
+		}
 	}
 	
 	/**
@@ -44,7 +62,25 @@ public class InsertSitDataDao extends AbstractMongoDbDao {
 	 */
 	public WriteResult upsert(String collectionName, DBObject query, DBObject doc) {
 		DBCollection collection = get(collectionName);
-		return collection.update(query, doc, true, false);
+		try {
+			return collection.update(query, doc, true, false);
+		} finally {
+			// the update may have moved a document away from where it was, so where it was is unknown
+			written(collectionName, null);
+		}
+	}
+	
+	/**
+	 * Adds a listener notified after each insert or upsert, whether or not it succeeded.
+	 */
+	public void addWriteListener(WriteListener listener) {
+		if (listener != null) {
+			writeListeners.add(listener);
+		}
+	}
+	
+	public void removeWriteListener(WriteListener listener) {
+		writeListeners.remove(listener);
 	}
 	
 	/**
@@ -78,4 +114,11 @@ public class InsertSitDataDao extends AbstractMongoDbDao {
 		collection.dropIndex(indexName);
 	}
 	
+	// a failed write may still have been applied, so listeners hear about it either way
+	private void written(String collectionName, DBObject doc) {
+		for (WriteListener listener : writeListeners) {
+			listener.written(collectionName, doc);
+		}
+	}
+	
 }
\ No newline at end of file
@@ -5,16 +5,9 @@ import gov.usdot.cv.common.database.mongodb.criteria.DateRange;
 import gov.usdot.cv.common.database.mongodb.geospatial.Geometry;
 
 import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
-import org.apache.log4j.Logger;
-
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.Mongo;
 import com.mongodb.MongoOptions;
@@ -24,8 +17,6 @@ import com.mongodb.MongoOptions;
  * situation data collection.
  */
 public class QueryAdvSitDataDao extends AbstractQuerySitDataDao {	
-	private final Logger logger = Logger.getLogger(getClass());
-	
 	public static QueryAdvSitDataDao newInstance(
 			String mongoServerHost, 
 			int mongoServerPort, 
@@ -44,7 +35,8 @@ public class QueryAdvSitDataDao extends AbstractQuerySitDataDao {
 	 * Returns a list of situation data documents. The query will look for all documents 
 	 * with a polygon that is within the given geometry. If the result set limit has not
 	 * been reached it will look for all documents with a polygon that intersects with the given
-	 * geometry. The results will be combined and returned back.
+	 * geometry. The results will be combined, documents within the geometry first, and returned back.
+	 * See {@link AbstractQuerySitDataDao#findAll(GeoQuery)}.
 	 */
 	public Collection<DBObject> findAll(
 		String collectionName, 
@@ -54,44 +46,14 @@ public class QueryAdvSitDataDao extends AbstractQuerySitDataDao {
 		String orderByFieldName,
 		Geometry geometry,
 		int limit) {
-		List<DBObject> within = findWithin(
+		return findAll(buildQuery(
 				collectionName, 
 				existingFieldName, 
 				geoSpatialFieldName, 
 				dateRange,
 				orderByFieldName,
 				geometry, 
-				limit);
-		
-		if (within.size() == limit) return within;
-		
-		int remaining = limit - within.size();
-		
-		// The same data may be returned using the intersects query so
-		// we double the limit size for the intersects query to ensure
-		// we populate the result set with the specified limit size.
-		
-		if (within.size() > 0) remaining *= 2;
-		
-		List<DBObject> intersects = findIntersects(
-				collectionName, 
-				existingFieldName, 
-				geoSpatialFieldName,
-				dateRange,
-				orderByFieldName,
-				geometry, 
-				remaining);
-		
-		if (intersects.size() == 0) return within;
-		
-		Set<DBObject> result = new HashSet<DBObject>();
-		result.addAll(within);
-		for (DBObject dbObj : intersects) {
-			result.add(dbObj);
-			if (result.size() >= limit)
-				break;
-		}
-		return result;
+				limit));
 	}
 	
 	/**
@@ -107,29 +69,14 @@ public class QueryAdvSitDataDao extends AbstractQuerySitDataDao {
 		String orderByFieldName,
 		Geometry geometry,
 		int limit) {
-		DBCollection collection = get(collectionName);
-		
-		DBObject range = buildDateRangeExpression(dateRange);
-		DBObject within = buildGeoWithinExpression(geoSpatialFieldName, geometry);
-		DBObject exists = buildExistsExpression(existingFieldName, true);
-		DBObject orderBy = buildOrderByExpression(orderByFieldName, false);
-		DBObject query = (range != null) ? and(exists, range, within) : and(exists, within);
-		
-		logger.debug(String.format("Executing query: %s", query.toString()));
-		
-		DBCursor cursor = collection.find(query).sort(orderBy).limit(limit).hint(CREATED_AT_SORT_INDEX_NAME);
-		
-		List<DBObject> result = new ArrayList<DBObject>();
-		
-		try {
-			while (cursor.hasNext()) {
-				result.add(cursor.next());
-			}
-		} finally {
-			cursor.close();
-		}
-		
-		return result;
+		return find(buildQuery(
+				collectionName, 
+				existingFieldName, 
+				geoSpatialFieldName, 
+				dateRange,
+				orderByFieldName,
+				geometry, 
+				limit), GeoQuery.Relation.WITHIN);
 	}
 	
 	/**
@@ -145,29 +92,49 @@ public class QueryAdvSitDataDao extends AbstractQuerySitDataDao {
 		String orderByFieldName,
 		Geometry geometry, 
 		int limit) {
-		DBCollection collection = get(collectionName);
-		
-		DBObject range = buildDateRangeExpression(dateRange);
-		DBObject intersects = buildGeoIntersectsExpression(geoSpatialFieldName, geometry);
-		DBObject exists = buildExistsExpression(existingFieldName, true);
-		DBObject orderBy = buildOrderByExpression(orderByFieldName, false);
-		DBObject query = (range != null) ? and(exists, range, intersects) : and(exists, intersects);
-		
-		logger.debug(String.format("Executing query: %s", query.toString()));
-		
-		DBCursor cursor = collection.find(query).sort(orderBy).limit(limit).hint(CREATED_AT_SORT_INDEX_NAME);
-		
-		List<DBObject> result = new ArrayList<DBObject>();
-		
-		try {
-			while (cursor.hasNext()) {
-				result.add(cursor.next());
-			}
-		} finally {
-			cursor.close();
-		}
-		
-		return result;
+		return find(buildQuery(
+				collectionName, 
+				existingFieldName, 
+				geoSpatialFieldName, 
+				dateRange,
+				orderByFieldName,
+				geometry, 
+				limit), GeoQuery.Relation.INTERSECTS);
+	}
+	
+	/**
+	 * Returns a query builder for situation data documents that contain the existing field,
+	 * sorted using the creation time index. Set cursor options on it and run it with the
+	 * {@link AbstractQuerySitDataDao} methods.
+	 */
+	public GeoQuery.Builder newQuery(
+		String collectionName, 
+		String existingFieldName,
+		String geoSpatialFieldName,
+		DateRange dateRange,
+		String orderByFieldName,
+		Geometry geometry,
+		int limit) {
+		return new GeoQuery.Builder()
+			.setCollectionName(collectionName)
+			.setExistingFieldName(existingFieldName)
+			.setGeoSpatialFieldName(geoSpatialFieldName)
+			.setDateRange(dateRange)
+			.setOrderByFieldName(orderByFieldName)
+			.setGeometry(geometry)
+			.setHint(CREATED_AT_SORT_INDEX_NAME)
+			.setLimit(limit);
+	}
+	
+	private GeoQuery buildQuery(
+		String collectionName, 
+		String existingFieldName,
+		String geoSpatialFieldName,
+		DateRange dateRange,
+		String orderByFieldName,
+		Geometry geometry,
+		int limit) {
+		return newQuery(collectionName, existingFieldName, geoSpatialFieldName, dateRange, orderByFieldName, geometry, limit).build();
 	}
 	
 }
\ No newline at end of file
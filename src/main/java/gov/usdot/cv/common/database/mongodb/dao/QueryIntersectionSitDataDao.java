@@ -5,16 +5,9 @@ import gov.usdot.cv.common.database.mongodb.criteria.DateRange;
 import gov.usdot.cv.common.database.mongodb.geospatial.Geometry;
 
 import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
-import org.apache.log4j.Logger;
-
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.Mongo;
 import com.mongodb.MongoOptions;
@@ -24,8 +17,6 @@ import com.mongodb.MongoOptions;
  * situation data collection.
  */
 public class QueryIntersectionSitDataDao extends AbstractQuerySitDataDao {	
-	private final Logger logger = Logger.getLogger(getClass());
-	
 	public static QueryIntersectionSitDataDao newInstance(
 			String mongoServerHost, 
 			int mongoServerPort, 
@@ -44,51 +35,23 @@ public class QueryIntersectionSitDataDao extends AbstractQuerySitDataDao {
 	 * Returns a list of situation data documents. The query will look for all documents 
 	 * with a polygon that is within the given geometry. If the result set limit has not
 	 * been reached it will look for all documents with a polygon that intersects with the given
-	 * geometry. The results will be combined and returned back.
+	 * geometry. The results will be combined, documents within the geometry first, and returned back.
+	 * See {@link AbstractQuerySitDataDao#findAll(GeoQuery)}.
 	 */
 	public Collection<DBObject> findAll(
-			String collectionName, 
-			String geoSpatialFieldName,
-			DateRange dateRange,
-			String orderByFieldName,
-			Geometry geometry,
-			int limit) {
-		List<DBObject> within = findWithin(
-				collectionName, 
-				geoSpatialFieldName,
-				dateRange,
-				orderByFieldName,
-				geometry, 
-				limit);
-		
-		if (within.size() == limit) return within;
-		
-		int remaining = limit - within.size();
-		
-		// The same data may be returned using the intersects query so
-		// we double the limit size for the intersects query to ensure
-		// we populate the result set with the specified limit size.
-		
-		if (within.size() > 0) remaining *= 2;
-		
-		List<DBObject> intersects = findIntersects(
+		String collectionName, 
+		String geoSpatialFieldName,
+		DateRange dateRange,
+		String orderByFieldName,
+		Geometry geometry,
+		int limit) {
+		return findAll(buildQuery(
 				collectionName, 
-				geoSpatialFieldName,
+				geoSpatialFieldName, 
 				dateRange,
 				orderByFieldName,
 				geometry, 
-				remaining);
-		
-		if (intersects.size() == 0) return within;
-		
-		Set<DBObject> result = new HashSet<DBObject>();
-		result.addAll(within);
-		for (DBObject dbObj : intersects) {
-			result.add(dbObj);
-			if (result.size() >= limit)
-				break;
-		}
-		return result;
+				limit));
 	}
 	
 	/**
@@ -103,28 +66,13 @@ public class QueryIntersectionSitDataDao extends AbstractQuerySitDataDao {
 		String orderByFieldName,
 		Geometry geometry,
 		int limit) {
-		DBCollection collection = get(collectionName);
-		
-		DBObject range = buildDateRangeExpression(dateRange);
-		DBObject orderBy = buildOrderByExpression(orderByFieldName, false);
-		DBObject within = buildGeoWithinExpression(geoSpatialFieldName, geometry);
-		DBObject query = (range != null) ? and(range, within) : within;
-		
-		logger.debug(String.format("Executing query: %s", query.toString()));
-		
-		DBCursor cursor = collection.find(query).sort(orderBy).limit(limit).hint(CREATED_AT_SORT_INDEX_NAME);
-		
-		List<DBObject> result = new ArrayList<DBObject>();
-		
-		try {
-			while (cursor.hasNext()) {
-				result.add(cursor.next());
-			}
-		} finally {
-			cursor.close();
-		}
-		
-		return result;
+		return find(buildQuery(
+				collectionName, 
+				geoSpatialFieldName, 
+				dateRange,
+				orderByFieldName,
+				geometry, 
+				limit), GeoQuery.Relation.WITHIN);
 	}
 	
 	/**
@@ -139,27 +87,45 @@ public class QueryIntersectionSitDataDao extends AbstractQuerySitDataDao {
 		String orderByFieldName,
 		Geometry geometry, 
 		int limit) {
-		DBCollection collection = get(collectionName);
-		
-		DBObject range = buildDateRangeExpression(dateRange);
-		DBObject orderBy = buildOrderByExpression(orderByFieldName, false);
-		DBObject intersects = buildGeoIntersectsExpression(geoSpatialFieldName, geometry);
-		DBObject query = (range != null) ? and(range, intersects) : intersects;
-
-		logger.debug(String.format("Executing query: %s", query.toString()));
-		
-		DBCursor cursor = collection.find(query).sort(orderBy).limit(limit).hint(CREATED_AT_SORT_INDEX_NAME);
-		
-		List<DBObject> result = new ArrayList<DBObject>();
-		
-		try {
-			while (cursor.hasNext()) {
-				result.add(cursor.next());
-			}
-		} finally {
-			cursor.close();
-		}
-		
-		return result;
+		return find(buildQuery(
+				collectionName, 
+				geoSpatialFieldName, 
+				dateRange,
+				orderByFieldName,
+				geometry, 
+				limit), GeoQuery.Relation.INTERSECTS);
+	}
+	
+	/**
+	 * Returns a query builder for situation data documents,
+	 * sorted using the creation time index. Set cursor options on it and run it with the
+	 * {@link AbstractQuerySitDataDao} methods.
+	 */
+	public GeoQuery.Builder newQuery(
+		String collectionName, 
+		String geoSpatialFieldName,
+		DateRange dateRange,
+		String orderByFieldName,
+		Geometry geometry,
+		int limit) {
+		return new GeoQuery.Builder()
+			.setCollectionName(collectionName)
+			.setGeoSpatialFieldName(geoSpatialFieldName)
+			.setDateRange(dateRange)
+			.setOrderByFieldName(orderByFieldName)
+			.setGeometry(geometry)
+			.setHint(CREATED_AT_SORT_INDEX_NAME)
+			.setLimit(limit);
+	}
+	
+	private GeoQuery buildQuery(
+		String collectionName, 
+		String geoSpatialFieldName,
+		DateRange dateRange,
+		String orderByFieldName,
+		Geometry geometry,
+		int limit) {
+		return newQuery(collectionName, geoSpatialFieldName, dateRange, orderByFieldName, geometry, limit).build();
 	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,529 @@
+package gov.usdot.cv.common.dialog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Publishes receipts queued by {@link ReceiptSender} in async mode from a dedicated thread.
+ * Receipts wait in a bounded lock-free queue and are published in batches, one JMS transaction per batch,
+ * so callers never block on the broker unless they asked for the {@link ReceiptSender.OverflowPolicy#BLOCK} policy.
+ */
+class AsyncReceiptPublisher {
+	private static final Logger logger = Logger.getLogger(AsyncReceiptPublisher.class);
+
+	private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long FULL_PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long RECONNECT_DELAY_MS = 300;
+
+	/** Receipt message content with its enqueue time, exactly one of text or bytes is set. */
+	static final class Item {
+		final String text;
+		final byte [] bytes;
+		final long enqueuedAt;
+
+		Item(String text, byte [] bytes, long enqueuedAt) {
+			this.text = text;
+			this.bytes = bytes;
+			this.enqueuedAt = enqueuedAt;
+		}
+	}
+
+	private final ConnectionFactory factory;
+	private final String topicName;
+	private final int capacity;
+	private final int batchSize;
+	private final ReceiptSender.OverflowPolicy overflowPolicy;
+	private final long closeTimeoutMs;
+	private final SpillFile spill;
+
+	private final ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue<Item>();
+	private final AtomicInteger depth = new AtomicInteger();
+	// BLOCK producers wait on this monitor until the publisher drains the queue
+	private final Object spaceFreed = new Object();
+	private volatile int blockedProducers;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	private Connection connection;
+	private Session session;
+	private MessageProducer producer;
+
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong latencyTotalNs = new AtomicLong();
+	private final AtomicLong latencyMaxNs = new AtomicLong();
+
+	AsyncReceiptPublisher(
+			ConnectionFactory factory,
+			String topicName,
+			int capacity,
+			int batchSize,
+			ReceiptSender.OverflowPolicy overflowPolicy,
+			File spillDirectory,
+			long closeTimeoutMs) throws IOException {
+		this.factory = factory;
+		this.topicName = topicName;
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.overflowPolicy = overflowPolicy;
+		this.closeTimeoutMs = closeTimeoutMs;
+		this.spill = overflowPolicy == ReceiptSender.OverflowPolicy.SPILL ? new SpillFile(spillDirectory, dropped) : null;
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				runPublisher();
+			}
+		}, "ReceiptPublisher-" + topicName);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queues the receipt applying the overflow policy when the queue is full
+	 * @return false if the receipt was dropped
+	 */
+	boolean offer(String text, byte [] bytes) {
+		if (!running) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		Item item = new Item(text, bytes, System.nanoTime());
+		while (!tryOffer(item)) {
+			switch (overflowPolicy) {
+			case BLOCK:
+				return offerBlocking(item);
+			case SPILL:
+				if (spill.append(item)) {
+					spilled.incrementAndGet();
+					queued.incrementAndGet();
+					return true;
+				}
+				dropped.incrementAndGet();
+				return false;
+			default:
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		queued.incrementAndGet();
+		return true;
+	}
+
+	// waits until drain() or close() signals, the count is raised before retrying so no signal is missed
+	private boolean offerBlocking(Item item) {
+		synchronized (spaceFreed) {
+			blockedProducers++;
+			try {
+				while (!tryOffer(item)) {
+					if (!running) {
+						dropped.incrementAndGet();
+						return false;
+					}
+					spaceFreed.wait();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+				return false;
+			} finally {
+				blockedProducers--;
+			}
+		}
+		queued.incrementAndGet();
+		return true;
+	}
+
+	private void signalSpaceFreed() {
+		if (blockedProducers > 0) {
+			synchronized (spaceFreed) {
+				spaceFreed.notifyAll();
+			}
+		}
+	}
+
+	private boolean tryOffer(Item item) {
+		// spilled receipts go out first, new receipts go to disk behind them to keep the order
+		if (spill != null && spill.size() > 0)
+			return false;
+		if (depth.incrementAndGet() > capacity) {
+			depth.decrementAndGet();
+			return false;
+		}
+		queue.offer(item);
+		return true;
+	}
+
+	void close() {
+		running = false;
+		synchronized (spaceFreed) {
+			spaceFreed.notifyAll();
+		}
+		LockSupport.unpark(thread);
+		try {
+			thread.join(closeTimeoutMs);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			thread.interrupt();
+			try {
+				thread.join(RECONNECT_DELAY_MS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			int lost = depth.get() + (spill != null ? spill.size() : 0);
+			logger.warn(String.format("Receipt publisher didn't finish in %d ms, %d receipts were not published", closeTimeoutMs, lost));
+		}
+		if (spill != null)
+			spill.close();
+	}
+
+	int getQueueDepth() {
+		return depth.get();
+	}
+
+	long getQueued() { return queued.get(); }
+	long getPublished() { return published.get(); }
+	long getDropped() { return dropped.get(); }
+	long getSpilled() { return spilled.get(); }
+	long getBatches() { return batches.get(); }
+	long getFailures() { return failures.get(); }
+
+	long getSpillDepth() {
+		return spill != null ? spill.size() : 0;
+	}
+
+	double getAverageLatencyMs() {
+		long count = published.get();
+		return count > 0 ? latencyTotalNs.get() / (double)count / 1e6 : 0;
+	}
+
+	double getMaxLatencyMs() {
+		return latencyMaxNs.get() / 1e6;
+	}
+
+	private void runPublisher() {
+		List<Item> batch = new ArrayList<Item>(batchSize);
+		while (true) {
+			drain(batch);
+			if (batch.isEmpty()) {
+				if (!running)
+					break;
+				// spilled receipts may be on their way to the file
+				LockSupport.parkNanos(spill != null && spill.size() > 0 ? FULL_PARK_NS : IDLE_PARK_NS);
+				continue;
+			}
+			if (!publish(batch))
+				break;
+			batch.clear();
+		}
+		disconnect();
+	}
+
+	private void drain(List<Item> batch) {
+		Item item;
+		while (batch.size() < batchSize && (item = queue.poll()) != null) {
+			depth.decrementAndGet();
+			batch.add(item);
+		}
+		if (!batch.isEmpty())
+			signalSpaceFreed();
+		if (batch.isEmpty() && spill != null) {
+			try {
+				spill.read(batch, batchSize);
+			} catch (IOException ex) {
+				logger.error("Unable to read spilled receipts", ex);
+			}
+		}
+	}
+
+	// retries until the batch is committed, gives up only when closing and interrupted
+	private boolean publish(List<Item> batch) {
+		boolean stuck = false;
+		while (true) {
+			try {
+				connect();
+				for (Item item : batch)
+					producer.send(buildMessage(item));
+				session.commit();
+				long now = System.nanoTime();
+				for (Item item : batch)
+					recordLatency(now - item.enqueuedAt);
+				published.addAndGet(batch.size());
+				batches.incrementAndGet();
+				return true;
+			} catch (JMSException ex) {
+				failures.incrementAndGet();
+				if (!stuck) {
+					logger.warn("Unable to publish receipts to external jms server; retrying...", ex);
+					stuck = true;
+				}
+				disconnect();
+				if (Thread.currentThread().isInterrupted())
+					return false;
+				try {
+					Thread.sleep(RECONNECT_DELAY_MS);
+				} catch (InterruptedException ignore) {
+					return false;
+				}
+			}
+		}
+	}
+
+	private void recordLatency(long latency) {
+		latencyTotalNs.addAndGet(latency);
+		long max;
+		while (latency > (max = latencyMaxNs.get()) && !latencyMaxNs.compareAndSet(max, latency))
+			;
+	}
+
+	private Message buildMessage(Item item) throws JMSException {
+		if (item.text != null)
+			return session.createTextMessage(item.text);
+		BytesMessage message = session.createBytesMessage();
+		message.writeBytes(item.bytes);
+		return message;
+	}
+
+	private void connect() throws JMSException {
+		if (producer != null)
+			return;
+		connection = factory.createConnection();
+		session = connection.createSession(true, Session.SESSION_TRANSACTED);
+		producer = session.createProducer(session.createTopic(topicName));
+		connection.start();
+	}
+
+	private void disconnect() {
+		if (connection != null) {
+			try { connection.close(); } catch (Exception ex) {}
+		}
+		connection = null;
+		session = null;
+		producer = null;
+	}
+
+	/**
+	 * Overflow receipts spilled to a local file and read back in order when the queue drains.
+	 * Callers only hand receipts to a writer thread, which appends them to the file in buffered writes.
+	 * Each record keeps the receipt's enqueue time so that the publish latency includes the time spent on disk.
+	 */
+	static final class SpillFile implements Runnable {
+		private static final int BUFFER_SIZE = 64*1024;
+		// kind, enqueue time and content length
+		private static final int HEADER_SIZE = 1 + 8 + 4;
+		private static final byte TEXT = 'T';
+		private static final byte BYTES = 'B';
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+
+		private final File file;
+		private final RandomAccessFile data;
+		private final FileChannel channel;
+		private final AtomicLong dropped;
+		private final ConcurrentLinkedQueue<Item> pending = new ConcurrentLinkedQueue<Item>();
+		// pending and stored receipts
+		private final AtomicInteger size = new AtomicInteger();
+		private final Thread writer;
+		private volatile boolean open = true;
+
+		// guarded by this
+		private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private long writePosition;
+		private long readPosition;
+		private int stored;
+
+		/**
+		 * @param dropped counts receipts lost to write errors or a corrupted file
+		 */
+		SpillFile(File directory, AtomicLong dropped) throws IOException {
+			this.dropped = dropped;
+			file = File.createTempFile("receipts-", ".spill", directory);
+			file.deleteOnExit();
+			data = new RandomAccessFile(file, "rw");
+			channel = data.getChannel();
+			readBuffer.limit(0);
+			writer = new Thread(this, "ReceiptSpillWriter-" + file.getName());
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		int size() {
+			return size.get();
+		}
+
+		/**
+		 * @return false if the spill file is closed
+		 */
+		boolean append(Item item) {
+			if (!open)
+				return false;
+			// counted first so that the reader never sees a receipt it isn't counting yet
+			size.incrementAndGet();
+			pending.offer(item);
+			LockSupport.unpark(writer);
+			return true;
+		}
+
+		/** @return whether all appended receipts reached the file or were read already */
+		boolean isWritten() {
+			return pending.isEmpty();
+		}
+
+		public void run() {
+			while (open || !pending.isEmpty()) {
+				if (pending.isEmpty()) {
+					LockSupport.parkNanos(IDLE_PARK_NS);
+					continue;
+				}
+				write();
+			}
+		}
+
+		// polls under the lock so that the reader can take pending receipts without reordering them
+		private synchronized void write() {
+			writeBuffer.clear();
+			int count = 0;
+			Item item;
+			while ((item = pending.peek()) != null) {
+				byte [] content = item.text != null ? item.text.getBytes(UTF8) : item.bytes;
+				if (writeBuffer.remaining() < HEADER_SIZE + content.length) {
+					if (count > 0)
+						break;
+					writeBuffer = ByteBuffer.allocate(HEADER_SIZE + content.length);
+				}
+				pending.poll();
+				writeBuffer.put(item.text != null ? TEXT : BYTES).putLong(item.enqueuedAt).putInt(content.length).put(content);
+				count++;
+			}
+			writeBuffer.flip();
+			long position = writePosition;
+			try {
+				while (writeBuffer.hasRemaining())
+					position += channel.write(writeBuffer, position);
+				writePosition = position;
+				stored += count;
+			} catch (IOException ex) {
+				// the next write overwrites whatever part of the records made it to the file
+				logger.warn(String.format("Unable to spill %d receipts to disk, dropping them", count), ex);
+				size.addAndGet(-count);
+				dropped.addAndGet(count);
+			}
+			if (writeBuffer.capacity() > BUFFER_SIZE)
+				writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+
+		synchronized void read(List<Item> batch, int max) throws IOException {
+			while (batch.size() < max && stored > 0) {
+				if (!fill(HEADER_SIZE)) {
+					corrupted();
+					break;
+				}
+				int start = readBuffer.position();
+				byte kind = readBuffer.get(start);
+				long enqueuedAt = readBuffer.getLong(start + 1);
+				int length = readBuffer.getInt(start + 9);
+				if ((kind != TEXT && kind != BYTES) || length < 0 || !fill(HEADER_SIZE + length)) {
+					corrupted();
+					break;
+				}
+				readBuffer.position(readBuffer.position() + HEADER_SIZE);
+				byte [] content = new byte[length];
+				readBuffer.get(content);
+				stored--;
+				size.decrementAndGet();
+				batch.add(kind == TEXT ? new Item(new String(content, UTF8), null, enqueuedAt) : new Item(null, content, enqueuedAt));
+			}
+			if (stored > 0)
+				return;
+			// all records were read, start the file over and take receipts the writer hasn't got to yet
+			if (writePosition > 0) {
+				channel.truncate(0);
+				writePosition = 0;
+				readPosition = 0;
+				if (readBuffer.capacity() > BUFFER_SIZE)
+					readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+				readBuffer.clear().limit(0);
+			}
+			Item item;
+			while (batch.size() < max && (item = pending.poll()) != null) {
+				size.decrementAndGet();
+				batch.add(item);
+			}
+		}
+
+		// makes at least needed bytes of the file available in the read buffer
+		private boolean fill(int needed) throws IOException {
+			if (readBuffer.remaining() >= needed)
+				return true;
+			if (readBuffer.capacity() < needed) {
+				ByteBuffer larger = ByteBuffer.allocate(needed);
+				larger.put(readBuffer);
+				readBuffer = larger;
+			} else {
+				readBuffer.compact();
+			}
+			while (readBuffer.position() < needed && readPosition < writePosition) {
+				if (writePosition - readPosition < readBuffer.remaining())
+					readBuffer.limit(readBuffer.position() + (int)(writePosition - readPosition));
+				int count = channel.read(readBuffer, readPosition);
+				if (count < 0)
+					break;
+				readPosition += count;
+			}
+			readBuffer.flip();
+			return readBuffer.remaining() >= needed;
+		}
+
+		private void corrupted() {
+			logger.error(String.format("Spill file %s is corrupted, dropping %d spilled receipts", file, stored));
+			size.addAndGet(-stored);
+			dropped.addAndGet(stored);
+			stored = 0;
+		}
+
+		/**
+		 * Writes the receipts handed over so far and closes the file, deleting it if all receipts were read.
+		 */
+		void close() {
+			open = false;
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (this) {
+				try { data.close(); } catch (IOException ex) {}
+				if (size.get() == 0)
+					file.delete();
+				else
+					logger.warn(String.format("%d spilled receipts were left in %s", size.get(), file));
+			}
+		}
+	}
+}
@@ -11,6 +11,9 @@ public class DataBundle {
 	/** The receipt id for this message bundle. */
 	private String uuid;
 	
+	/** Binary form of the receipt id, either may be derived from the other on first use. */
+	private UUID receiptUuid;
+	
 	/** Response source hostname. */
 	private String destHost;
 	
@@ -28,12 +31,14 @@ public class DataBundle {
 	
 	private DataBundle(
 			String uuid, 
+			UUID receiptUuid,
 			String destHost, 
 			int destPort, 
 			boolean fromForwarder, 
 			byte [] payload,
 			byte [] certificate) {
 		this.uuid = uuid;
+		this.receiptUuid = receiptUuid;
 		this.destHost = destHost;
 		this.destPort = destPort;
 		this.fromForwarder = fromForwarder;
@@ -42,9 +47,54 @@ public class DataBundle {
 	}
 	
 	public String getReceiptId() {
+		if (this.uuid == null && this.receiptUuid != null) {
+			this.uuid = this.receiptUuid.toString();
+		}
 		return this.uuid;
 	}
 	
+	/**
+	 * Returns the receipt id in its 16 byte binary form.
+	 * @return receipt id or null if the receipt id is not a UUID
+	 */
+	public UUID getReceiptUuid() {
+		if (this.receiptUuid == null && this.uuid != null) {
+			try {
+				this.receiptUuid = UUID.fromString(this.uuid);
+			} catch (IllegalArgumentException ex) {
+				return null;
+			}
+		}
+		return this.receiptUuid;
+	}
+	
+	/**
+	 * Returns the receipt id in its binary form only if it converts back to the same text,
+	 * which is the case for ids set as a UUID and for ids in the canonical lower case UUID text form.
+	 * @return receipt id or null if it has to be kept as text
+	 */
+	UUID getCanonicalReceiptUuid() {
+		if (this.uuid != null && !isCanonicalUuid(this.uuid)) {
+			return null;
+		}
+		return getReceiptUuid();
+	}
+	
+	private static boolean isCanonicalUuid(String value) {
+		if (value.length() != 36) {
+			return false;
+		}
+		for (int i = 0; i < 36; i++) {
+			char c = value.charAt(i);
+			if (i == 8 || i == 13 || i == 18 || i == 23) {
+				if (c != '-') return false;
+			} else if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	public String getDestHost() {
 		return this.destHost;
 	}
@@ -69,6 +119,10 @@ public class DataBundle {
 		return DataBundleUtil.encode(this);
 	}
 	
+	public byte[] encodeBinary() {
+		return DataBundleUtil.encodeBinary(this);
+	}
+	
 	public String encodePayload() {
 		String encoded = Base64.encodeBase64String(this.payload);
 		encoded = processInternal(encoded);
@@ -87,6 +141,7 @@ public class DataBundle {
 	
 	public static class Builder {
 		private String uuid;
+		private UUID receiptUuid;
 		private String destHost;
 		private Integer destPort = -1;
 		private boolean fromForwarder = false;
@@ -95,6 +150,13 @@ public class DataBundle {
 		
 		public Builder setReceiptId(String uuid) {
 			this.uuid = uuid;
+			this.receiptUuid = null;
+			return this;
+		}
+		
+		public Builder setReceiptId(UUID uuid) {
+			this.receiptUuid = uuid;
+			this.uuid = null;
 			return this;
 		}
 		
@@ -125,8 +187,8 @@ public class DataBundle {
 		
 		public DataBundle build() {
 			// No receipt id is present, create one.
-			if (this.uuid == null) {
-				this.uuid = UUID.randomUUID().toString();
+			if (this.uuid == null && this.receiptUuid == null) {
+				this.receiptUuid = ReceiptIdGenerator.getDefault().next();
 			}
 			
 			if (this.destHost == null || this.destPort == null) {
@@ -139,6 +201,7 @@ public class DataBundle {
 			
 			return new DataBundle(
 					this.uuid, 
+					this.receiptUuid,
 					this.destHost, 
 					this.destPort, 
 					this.fromForwarder, 
@@ -0,0 +1,317 @@
+package gov.usdot.cv.common.dialog;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Packs data bundles into batch envelopes (see {@link DataBundleUtil#encodeBatch(java.util.List, ByteBuffer)})
+ * so that a high volume of small data bundles costs one JMS message per batch instead of one per data bundle.
+ * A batch is handed to the {@link Sink} when it reaches the maximum number of data bundles or bytes,
+ * or when its oldest data bundle has waited for the maximum latency.
+ * Safe for use by multiple threads; the sink is called by one thread at a time, in the order the batches were filled.
+ * Batches are filled in one of two buffers and sent from the other without holding the batcher's lock,
+ * so other threads can keep adding to the next batch while one is being sent.
+ */
+public class DataBundleBatcher {
+
+	private static final Logger log = Logger.getLogger(DataBundleBatcher.class);
+
+	public static final int DEFAULT_MAX_BUNDLES = 256;
+	public static final int DEFAULT_MAX_BYTES = 64*1024;
+	public static final long DEFAULT_MAX_LATENCY_MS = 50;
+
+	/**
+	 * Receives complete batch envelopes, for example to write them to a JMS BytesMessage
+	 */
+	public interface Sink {
+		/**
+		 * @param batch batch envelope between the buffer's position and limit, only valid for the duration of the call
+		 * @param count number of data bundles in the batch
+		 */
+		void send(ByteBuffer batch, int count) throws Exception;
+	}
+
+	// flushes the current batch regardless of when it was started
+	private static final long ANY_GENERATION = -1;
+
+	private final Sink sink;
+	private final int maxBundles;
+	private final int maxBytes;
+	private final long maxLatencyMs;
+	private final ScheduledExecutorService timer;
+
+	// batch being filled, and the buffer of the batch being sent or the one to fill next
+	private ByteBuffer buffer;
+	private ByteBuffer spare;
+	private int count;
+	// incremented on every flush so that a latency timeout does not flush a newer batch early
+	private long generation;
+	private boolean closed;
+	// set while a batch is handed to the sink, only the thread that set it sends and clears it
+	private boolean sending;
+	private int sendingBundles;
+
+	private final AtomicLong bundlesSent = new AtomicLong();
+	private final AtomicLong batchesSent = new AtomicLong();
+	private final AtomicLong batchesFailed = new AtomicLong();
+
+	private DataBundleBatcher(Sink sink, int maxBundles, int maxBytes, long maxLatencyMs) {
+		this.sink = sink;
+		this.maxBundles = maxBundles;
+		this.maxBytes = maxBytes;
+		this.maxLatencyMs = maxLatencyMs;
+		this.buffer = ByteBuffer.allocate(maxBytes);
+		this.spare = ByteBuffer.allocate(maxBytes);
+		this.timer = maxLatencyMs > 0 ? Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DataBundleBatcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}) : null;
+	}
+
+	/**
+	 * Adds the data bundle to the current batch, sending the batch first if the data bundle does not fit
+	 * and afterwards if the batch is full. A data bundle larger than the maximum batch size is sent in a batch of its own.
+	 * Waits for the sink if both buffers are in use, that is when a batch fills up before the previous one has been sent.
+	 * @throws DataBundleBatcherException if the batcher is closed or the sink failed to send a batch
+	 */
+	public void add(DataBundle dataBundle) throws DataBundleBatcherException {
+		final int length = 4 + DataBundleUtil.binaryLength(dataBundle);
+		ByteBuffer single = null;
+		if (maxBytes - DataBundleUtil.BATCH_HEADER_LENGTH < length) {
+			single = ByteBuffer.allocate(DataBundleUtil.BATCH_HEADER_LENGTH + length);
+			DataBundleUtil.beginBatch(single);
+			DataBundleUtil.appendToBatch(dataBundle, single);
+			DataBundleUtil.endBatch(single, 0, 1);
+			single.flip();
+		}
+		for (;;) {
+			ByteBuffer batch = null;
+			boolean added = false;
+			synchronized (this) {
+				if (closed) {
+					throw new DataBundleBatcherException("Data bundle batcher is closed.");
+				}
+				if (count > 0 && (single != null || buffer.remaining() < length)) {
+					batch = takeBatch(ANY_GENERATION);
+				} else if (single != null) {
+					awaitSink();
+					if (count > 0) {
+						continue;
+					}
+					sending = true;
+					sendingBundles = 1;
+					batch = single;
+					added = true;
+				} else {
+					if (count == 0) {
+						buffer.clear();
+						DataBundleUtil.beginBatch(buffer);
+						scheduleTimeout();
+					}
+					DataBundleUtil.appendToBatch(dataBundle, buffer);
+					added = true;
+					if (++count >= maxBundles || buffer.remaining() <= DataBundleUtil.BATCH_HEADER_LENGTH) {
+						batch = takeBatch(ANY_GENERATION);
+					}
+				}
+			}
+			if (batch != null) {
+				sendTaken(batch);
+			}
+			if (added) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sends the current batch if it has any data bundles, after the batch that is being sent if there is one
+	 * @throws DataBundleBatcherException if the sink failed to send the batch, the batch is dropped
+	 */
+	public void flush() throws DataBundleBatcherException {
+		flush(ANY_GENERATION);
+	}
+
+	/**
+	 * Sends the current batch and stops the latency timer
+	 */
+	public void close() throws DataBundleBatcherException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+		flush();
+	}
+
+	/**
+	 * @return number of data bundles in the batch being filled, not counting a batch that is being sent
+	 */
+	public synchronized int getPendingBundles() {
+		return count;
+	}
+
+	public long getBundlesSent() {
+		return bundlesSent.get();
+	}
+
+	public long getBatchesSent() {
+		return batchesSent.get();
+	}
+
+	public long getBatchesFailed() {
+		return batchesFailed.get();
+	}
+
+	private void flush(long scheduled) throws DataBundleBatcherException {
+		ByteBuffer batch;
+		synchronized (this) {
+			batch = takeBatch(scheduled);
+		}
+		if (batch != null) {
+			sendTaken(batch);
+		}
+	}
+
+	/**
+	 * Ends the current batch and swaps in the other buffer for the next one. Must be called holding the lock,
+	 * and the returned batch must then be sent with {@link #sendTaken(ByteBuffer)} without holding it.
+	 * @param scheduled generation the batch has to be in, or {@link #ANY_GENERATION}
+	 * @return batch to send, or null if there is nothing to send
+	 */
+	private ByteBuffer takeBatch(long scheduled) throws DataBundleBatcherException {
+		awaitSink();
+		if (count == 0 || (scheduled != ANY_GENERATION && generation != scheduled)) {
+			return null;
+		}
+		sendingBundles = count;
+		count = 0;
+		generation++;
+		DataBundleUtil.endBatch(buffer, 0, sendingBundles);
+		buffer.flip();
+		ByteBuffer batch = buffer;
+		buffer = spare;
+		spare = batch;
+		sending = true;
+		return batch;
+	}
+
+	/**
+	 * Waits until no batch is being sent. Must be called holding the lock.
+	 */
+	private void awaitSink() throws DataBundleBatcherException {
+		try {
+			while (sending) {
+				wait();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new DataBundleBatcherException("Interrupted while waiting for the previous batch to be sent.", ex);
+		}
+	}
+
+	private void sendTaken(ByteBuffer batch) throws DataBundleBatcherException {
+		try {
+			send(batch, sendingBundles);
+		} finally {
+			synchronized (this) {
+				sending = false;
+				notifyAll();
+			}
+		}
+	}
+
+	private void send(ByteBuffer batch, int bundles) throws DataBundleBatcherException {
+		try {
+			sink.send(batch, bundles);
+			batchesSent.incrementAndGet();
+			bundlesSent.addAndGet(bundles);
+		} catch (Exception ex) {
+			batchesFailed.incrementAndGet();
+			throw new DataBundleBatcherException(String.format("Failed to send batch of %d data bundles.", bundles), ex);
+		}
+	}
+
+	private void scheduleTimeout() {
+		if (timer == null) {
+			return;
+		}
+		final long scheduled = generation;
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush(scheduled);
+				} catch (DataBundleBatcherException ex) {
+					log.error("Couldn't send data bundle batch on latency timeout", ex);
+				}
+			}
+		}, maxLatencyMs, TimeUnit.MILLISECONDS);
+	}
+
+	public static class Builder {
+		private Sink sink;
+		private int maxBundles = DEFAULT_MAX_BUNDLES;
+		private int maxBytes = DEFAULT_MAX_BYTES;
+		private long maxLatencyMs = DEFAULT_MAX_LATENCY_MS;
+
+		public Builder setSink(Sink sink) {
+			this.sink = sink;
+			return this;
+		}
+
+		/**
+		 * Sets maximum number of data bundles in a batch.
+		 */
+		public Builder setMaxBundles(int maxBundles) {
+			this.maxBundles = maxBundles;
+			return this;
+		}
+
+		/**
+		 * Sets maximum size of a batch envelope in bytes.
+		 */
+		public Builder setMaxBytes(int maxBytes) {
+			this.maxBytes = maxBytes;
+			return this;
+		}
+
+		/**
+		 * Sets how long in milliseconds a data bundle may wait for its batch to fill up, 0 to only send full batches.
+		 */
+		public Builder setMaxLatency(long maxLatencyMs) {
+			this.maxLatencyMs = maxLatencyMs;
+			return this;
+		}
+
+		public DataBundleBatcher build() {
+			if (this.sink == null) {
+				throw new NullPointerException("Data bundle batcher sink is null.");
+			}
+			if (this.maxBundles < 1) {
+				throw new IllegalArgumentException("Maximum number of data bundles in a batch must be positive.");
+			}
+			if (this.maxBytes <= DataBundleUtil.BATCH_HEADER_LENGTH) {
+				throw new IllegalArgumentException("Maximum batch size is too small.");
+			}
+			if (this.maxLatencyMs < 0) {
+				throw new IllegalArgumentException("Maximum batch latency can not be negative.");
+			}
+			return new DataBundleBatcher(this.sink, this.maxBundles, this.maxBytes, this.maxLatencyMs);
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package gov.usdot.cv.common.dialog;
+
+public class DataBundleBatcherException extends Exception {
+	
+	private static final long serialVersionUID = 1L;
+
+	public DataBundleBatcherException(String message) {
+		super(message);
+	}
+	
+	public DataBundleBatcherException(String message, Throwable cause) {
+		super(message, cause);
+	}
+	
+}
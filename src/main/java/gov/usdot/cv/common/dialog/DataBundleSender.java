@@ -1,11 +1,12 @@
 package gov.usdot.cv.common.dialog;
 
+import gov.usdot.cv.common.inet.InetAddressCache;
 import gov.usdot.cv.common.inet.InetPacketException;
 import gov.usdot.cv.common.inet.InetPacketSender;
 import gov.usdot.cv.common.inet.InetPoint;
 
-import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -19,13 +20,17 @@ public class DataBundleSender {
 	private InetPacketSender forwarder;
 	private InetPacketSender sender;
 	
+	private final InetAddressCache addressCache;
+	
 	private DataBundleSender(
 		String forwarderHost,
 		int forwarderPort,
-		boolean forwardAll) throws UnknownHostException {
+		boolean forwardAll,
+		InetAddressCache addressCache) throws UnknownHostException {
 		this.forwarderHost = forwarderHost;
 		this.forwarderPort = forwarderPort;
 		this.forwardAll = forwardAll;
+		this.addressCache = addressCache;
 		
 		if (! StringUtils.isEmpty(this.forwarderHost) &&
 			! this.forwarderHost.equalsIgnoreCase("localhost") &&
@@ -37,6 +42,8 @@ public class DataBundleSender {
 	
 	public String getForwarderHost() { return this.forwarderHost; }
 	public int getForwaderPort() { return this.forwarderPort; }
+	public long getAddressCacheHits() { return this.addressCache.getHits(); }
+	public long getAddressCacheMisses() { return this.addressCache.getMisses(); }
 	
 	/**
 	 * Sends the data bundle to the target host and port.
@@ -57,7 +64,7 @@ public class DataBundleSender {
 			String targetHost, 
 			int targetPort, 
 			byte [] payload) throws InetPacketException, UnknownHostException {
-		InetPoint client = new InetPoint(getAddressBytes(targetHost), targetPort);
+		InetPoint client = addressCache.getPoint(targetHost, targetPort);
 		if (forwarderConfigured) {
 			getForwarder(this.forwarderHost, this.forwarderPort).forward(client, payload);
 		} else {
@@ -65,13 +72,61 @@ public class DataBundleSender {
 		}
 	}
 	
-	private byte [] getAddressBytes(String host) throws UnknownHostException {
-		return InetAddress.getByName( host ).getAddress();
+	/**
+	 * Sends a batch of payloads to the same target host and port.
+	 * Routing follows the same rules as {@link #send(String, int, byte[])}.
+	 */
+	public void sendBatch(
+			String targetHost, 
+			int targetPort, 
+			List<byte []> payloads) throws InetPacketException, UnknownHostException {
+		InetPoint client = addressCache.getPoint(targetHost, targetPort);
+		if (forwarderConfigured) {
+			getForwarder(this.forwarderHost, this.forwarderPort).forwardBatch(client, payloads);
+		} else {
+			getSender().sendBatch(client, payloads);
+		}
+	}
+	
+	/**
+	 * Sends each data bundle's payload to the bundle's destination host and port.
+	 * Routing follows the same rules as {@link #send(String, int, byte[])}.
+	 */
+	public void sendBatch(List<DataBundle> bundles) throws InetPacketException, UnknownHostException {
+		if (bundles == null)
+			throw new InetPacketException("Invalid Parameters. Parameter bundles can not be null");
+		InetPacketSender.Batch batch = forwarderConfigured ? 
+			getForwarder(this.forwarderHost, this.forwarderPort).newBatch() : getSender().newBatch();
+		try {
+			for (DataBundle bundle : bundles) {
+				InetPoint client = addressCache.getPoint(bundle.getDestHost(), bundle.getDestPort());
+				if (forwarderConfigured) {
+					batch.forward(client, bundle.getPayload());
+				} else {
+					batch.send(client, bundle.getPayload());
+				}
+			}
+		} catch (UnknownHostException ex) {
+			batch.cancel();
+			throw ex;
+		} catch (InetPacketException ex) {
+			batch.cancel();
+			throw ex;
+		}
+		batch.finish();
+	}
+	
+	/**
+	 * Releases network resources held by the underlying packet senders.
+	 */
+	public void close() {
+		if (this.forwarder != null) this.forwarder.close();
+		if (this.sender != null) this.sender.close();
 	}
 	
 	private InetPacketSender getForwarder(String forwarderHost, int forwarderPort) throws UnknownHostException {
 		if (this.forwarder != null) return this.forwarder;
-		this.forwarder = new InetPacketSender(new InetPoint(getAddressBytes(forwarderHost), forwarderPort));
+		this.forwarder = new InetPacketSender(new InetPoint(addressCache.getByName(forwarderHost), forwarderPort));
 		this.forwarder.setForwardAll(this.forwardAll);
 		return this.forwarder;
 	}
@@ -86,6 +141,8 @@ public class DataBundleSender {
 		private String forwarderHost;
 		private int forwarderPort = -1;
 		private boolean forwardAll = false;
+		private int addressCacheSize = InetAddressCache.DEFAULT_MAX_SIZE;
+		private long addressCacheTtl = InetAddressCache.DEFAULT_TTL_MS;
 		
 		public Builder setForwarderHost(String forwarderHost) {
 			this.forwarderHost = forwarderHost;
@@ -102,11 +159,28 @@ public class DataBundleSender {
 			return this;
 		}
 		
+		/**
+		 * Sets maximum number of target host names to keep resolved addresses for.
+		 */
+		public Builder setAddressCacheSize(int addressCacheSize) {
+			this.addressCacheSize = addressCacheSize;
+			return this;
+		}
+		
+		/**
+		 * Sets how long in milliseconds a resolved target host address is reused.
+		 */
+		public Builder setAddressCacheTtl(long addressCacheTtl) {
+			this.addressCacheTtl = addressCacheTtl;
+			return this;
+		}
+		
 		public DataBundleSender build() throws UnknownHostException {
 			return new DataBundleSender(
 				this.forwarderHost, 
 				this.forwarderPort, 
-				this.forwardAll);
+				this.forwardAll,
+				new InetAddressCache(this.addressCacheSize, this.addressCacheTtl));
 		}
 	}
 }
\ No newline at end of file
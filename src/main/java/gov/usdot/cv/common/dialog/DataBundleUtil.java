@@ -1,9 +1,19 @@
 package gov.usdot.cv.common.dialog;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.UUID;
 
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 
@@ -13,6 +23,31 @@ public class DataBundleUtil {
 	
 	private static final int UUID_LENGTH = 36;
 	
+	/** Length of a receipt id prepended in its binary form. */
+	public static final int BINARY_RECEIPT_ID_LENGTH = 16;
+	
+	/**
+	 * Version of the binary data bundle format written by the encodeBinary methods.
+	 * The version byte is followed by the same fields and framing as the Base64 text format.
+	 */
+	public static final byte BINARY_FORMAT_VERSION = 1;
+	
+	/**
+	 * Version of the binary data bundle format written by the encodeBinary methods when the receipt id is a UUID.
+	 * The version byte is followed by the {@link #BINARY_RECEIPT_ID_LENGTH 16 byte} receipt id instead of
+	 * the length prefixed text, and then by the same fields as in {@link #BINARY_FORMAT_VERSION}.
+	 */
+	public static final byte BINARY_UUID_FORMAT_VERSION = 2;
+	
+	/**
+	 * First byte of a batch envelope. It's followed by the number of data bundles (int)
+	 * and then by each data bundle in the binary format prefixed with its length (int).
+	 */
+	public static final byte BATCH_FORMAT_VERSION = (byte)0x81;
+	
+	/** Length of the batch envelope header, format byte and data bundle count. */
+	public static final int BATCH_HEADER_LENGTH = 1 + 4;
+	
 	private DataBundleUtil() {
 		// Uses the static methods
 	}
@@ -42,6 +77,33 @@ public class DataBundleUtil {
 		return payloadWithUUID;
 	}
 	
+	/**
+	 * Prefix the byte array with a new receipt id in its 16 byte binary form.
+	 * The id comes from the {@link ReceiptIdGenerator#getDefault() default generator}.
+	 */
+	public static byte [] prependBinaryReceiptId(byte [] payload) {
+		return prependBinaryReceiptId(ReceiptIdGenerator.getDefault().next(), payload);
+	}
+	
+	/**
+	 * Takes the given uuid and prefix the byte array with it as a 16 byte binary receipt id.
+	 */
+	public static byte [] prependBinaryReceiptId(UUID uuid, byte [] payload) {
+		byte [] payloadWithId = new byte[BINARY_RECEIPT_ID_LENGTH + payload.length];
+		putReceiptId(payloadWithId, 0, uuid);
+		System.arraycopy(payload, 0, payloadWithId, BINARY_RECEIPT_ID_LENGTH, payload.length);
+		return payloadWithId;
+	}
+	
+	/**
+	 * Reads the 16 byte binary receipt id in front of the payload without copying the payload.
+	 */
+	public static UUID getBinaryReceiptId(byte [] payloadWithId) {
+		if (payloadWithId.length < BINARY_RECEIPT_ID_LENGTH)
+			throw new IllegalArgumentException("Payload is too short to contain a binary receipt id");
+		return getReceiptId(payloadWithId, 0);
+	}
+	
 	/**
 	 * Converts data bundle to a format suitable for putting on the JMS queue.
 	 */
@@ -89,26 +151,333 @@ public class DataBundleUtil {
 		if ( bundle == null )
 			return null;
 		try {
-			ByteBuffer buffer = ByteBuffer.wrap(bundle);
-			String receiptId = new String( decodeByteArray(buffer, "receiptId") );
-			byte[] destHostBytes = decodeByteArray(buffer, "destHost" );
-			String destHost  = destHostBytes != null ? new String( destHostBytes ) : null;
-			int destPort = decodeInt(buffer, "destPort");
-			boolean fromForwarder = decodeBoolean(buffer, "fromForwarder");
-			byte[] certificate = decodeByteArray(buffer, "certificate" );
-			byte[] payload = decodeByteArray(buffer, "payload" );
-			
-			DataBundle.Builder builder = new DataBundle.Builder();
-			builder.setReceiptId(receiptId).setDestHost(destHost).setDestPort(destPort)
-				.setFromForwarder(fromForwarder).setPayload(payload).setCertificate(certificate);
-			
-			return builder.build();
+			return decodeFields(ByteBuffer.wrap(bundle));
 		} catch (IllegalArgumentException ex) {
 			log.warn(ex.getMessage());
 		}
 		return null;
 	}
 	
+	/**
+	 * Returns number of bytes the data bundle takes in the binary format.
+	 */
+	public static int binaryLength(DataBundle dataBundle) {
+		String destHost = dataBundle.getDestHost();
+		return 1 + 4 + 1 +
+				(dataBundle.getCanonicalReceiptUuid() != null ? BINARY_RECEIPT_ID_LENGTH : encodedByteArraySize(dataBundle.getReceiptId().getBytes())) +
+				encodedByteArraySize(destHost != null ? destHost.getBytes() : null) +
+				encodedByteArraySize(dataBundle.getCertificate()) +
+				encodedByteArraySize(dataBundle.getPayload());
+	}
+	
+	/**
+	 * Converts data bundle to the binary format, {@link #BINARY_UUID_FORMAT_VERSION} if the receipt id is a UUID
+	 * and {@link #BINARY_FORMAT_VERSION} otherwise.
+	 */
+	public static byte[] encodeBinary(DataBundle dataBundle) {
+		ByteBuffer buffer = ByteBuffer.allocate(binaryLength(dataBundle));
+		encodeBinary(dataBundle, buffer);
+		return buffer.array();
+	}
+	
+	/**
+	 * Writes data bundle in the binary format into the buffer starting at its position.
+	 * Multi-byte values are written in network byte order regardless of the buffer's byte order.
+	 * @throws BufferOverflowException if the buffer doesn't have {@link #binaryLength(DataBundle)} bytes remaining
+	 */
+	public static void encodeBinary(DataBundle dataBundle, ByteBuffer buffer) throws BufferOverflowException {
+		String destHost = dataBundle.getDestHost();
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		try {
+			UUID receiptUuid = dataBundle.getCanonicalReceiptUuid();
+			if ( receiptUuid != null ) {
+				buffer.put(BINARY_UUID_FORMAT_VERSION);
+				buffer.putLong(receiptUuid.getMostSignificantBits());
+				buffer.putLong(receiptUuid.getLeastSignificantBits());
+			} else {
+				buffer.put(BINARY_FORMAT_VERSION);
+				encodeByteArray(buffer, dataBundle.getReceiptId().getBytes());
+			}
+			encodeByteArray(buffer, destHost != null ? destHost.getBytes() : null);
+			buffer.putInt(dataBundle.getDestPort());
+			buffer.put((byte)(dataBundle.fromForwarder() ? 1 : 0));
+			encodeByteArray(buffer, dataBundle.getCertificate());
+			encodeByteArray(buffer, dataBundle.getPayload());
+		} finally {
+			buffer.order(order);
+		}
+	}
+	
+	/**
+	 * Writes data bundle in the binary format into the JMS bytes message body.
+	 */
+	public static void encodeBinary(DataBundle dataBundle, BytesMessage message) throws JMSException {
+		String destHost = dataBundle.getDestHost();
+		UUID receiptUuid = dataBundle.getCanonicalReceiptUuid();
+		if ( receiptUuid != null ) {
+			message.writeByte(BINARY_UUID_FORMAT_VERSION);
+			message.writeLong(receiptUuid.getMostSignificantBits());
+			message.writeLong(receiptUuid.getLeastSignificantBits());
+		} else {
+			message.writeByte(BINARY_FORMAT_VERSION);
+			encodeByteArray(message, dataBundle.getReceiptId().getBytes());
+		}
+		encodeByteArray(message, destHost != null ? destHost.getBytes() : null);
+		message.writeInt(dataBundle.getDestPort());
+		message.writeByte((byte)(dataBundle.fromForwarder() ? 1 : 0));
+		encodeByteArray(message, dataBundle.getCertificate());
+		encodeByteArray(message, dataBundle.getPayload());
+	}
+	
+	/**
+	 * Converts binary encoded data bundle to a DataBundle instance.
+	 */
+	public static DataBundle decodeBinary(byte[] encodedDataBundle) {
+		return encodedDataBundle != null ? decodeBinary(ByteBuffer.wrap(encodedDataBundle)) : null;
+	}
+	
+	/**
+	 * Converts binary encoded data bundle that starts at the buffer's position to a DataBundle instance.
+	 * On success the buffer's position is advanced past the data bundle.
+	 */
+	public static DataBundle decodeBinary(ByteBuffer buffer) {
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		try {
+			if ( buffer.remaining() < 1 )
+				throw new IllegalArgumentException("Coulnd't decode DataBundle because the buffer is empty");
+			byte version = buffer.get();
+			if ( version == BINARY_FORMAT_VERSION )
+				return decodeFields(buffer);
+			if ( version != BINARY_UUID_FORMAT_VERSION )
+				throw new IllegalArgumentException("Coulnd't decode DataBundle because of unsupported binary format version " + version);
+			if ( buffer.remaining() < BINARY_RECEIPT_ID_LENGTH )
+				throw new IllegalArgumentException("Coulnd't decode DataBundle because the buffer is too short to get receiptId");
+			UUID receiptId = new UUID(buffer.getLong(), buffer.getLong());
+			return decodeFields(buffer, new DataBundle.Builder().setReceiptId(receiptId));
+		} catch (IllegalArgumentException ex) {
+			log.warn(ex.getMessage());
+		} finally {
+			buffer.order(order);
+		}
+		return null;
+	}
+	
+	/**
+	 * Converts binary encoded data bundle in the JMS bytes message body to a DataBundle instance.
+	 */
+	public static DataBundle decodeBinary(BytesMessage message) throws JMSException {
+		long length = message.getBodyLength();
+		if ( length > Integer.MAX_VALUE ) {
+			log.warn("Coulnd't decode DataBundle because the message is too long");
+			return null;
+		}
+		byte[] bytes = new byte[(int)length];
+		message.readBytes(bytes);
+		return decodeBinary(bytes);
+	}
+	
+	/**
+	 * Converts JMS message to a DataBundle instance. Text messages are expected to hold the Base64
+	 * text format produced by {@link #encode(DataBundle)} and bytes messages the binary format
+	 * produced by {@link #encodeBinary(DataBundle, BytesMessage)}, so old and new producers can share a queue.
+	 * @return decoded data bundle or null if the message could not be decoded
+	 */
+	public static DataBundle decode(Message message) throws JMSException {
+		if ( message instanceof BytesMessage )
+			return decodeBinary((BytesMessage)message);
+		if ( message instanceof TextMessage )
+			return decode(((TextMessage)message).getText());
+		log.warn("Coulnd't decode DataBundle from unsupported message type " + (message != null ? message.getClass().getName() : null));
+		return null;
+	}
+	
+	/**
+	 * Returns number of bytes the data bundles take in a batch envelope.
+	 */
+	public static int batchLength(Iterable<DataBundle> dataBundles) {
+		int length = BATCH_HEADER_LENGTH;
+		for (DataBundle dataBundle : dataBundles)
+			length += 4 + binaryLength(dataBundle);
+		return length;
+	}
+	
+	/**
+	 * Converts data bundles to a batch envelope.
+	 */
+	public static byte[] encodeBatch(List<DataBundle> dataBundles) {
+		ByteBuffer buffer = ByteBuffer.allocate(batchLength(dataBundles));
+		encodeBatch(dataBundles, buffer);
+		return buffer.array();
+	}
+	
+	/**
+	 * Writes data bundles as a batch envelope into the buffer starting at its position.
+	 * @throws BufferOverflowException if the buffer doesn't have {@link #batchLength(Iterable)} bytes remaining
+	 */
+	public static void encodeBatch(List<DataBundle> dataBundles, ByteBuffer buffer) throws BufferOverflowException {
+		final int start = buffer.position();
+		beginBatch(buffer);
+		for (DataBundle dataBundle : dataBundles)
+			appendToBatch(dataBundle, buffer);
+		endBatch(buffer, start, dataBundles.size());
+	}
+	
+	/**
+	 * Writes batch envelope header with a zero count at the buffer's position.
+	 * Append data bundles with {@link #appendToBatch(DataBundle, ByteBuffer)} and finish with {@link #endBatch(ByteBuffer, int, int)}.
+	 */
+	public static void beginBatch(ByteBuffer buffer) throws BufferOverflowException {
+		if (buffer.remaining() < BATCH_HEADER_LENGTH)
+			throw new BufferOverflowException();
+		buffer.put(BATCH_FORMAT_VERSION);
+		putInt(buffer, buffer.position(), 0);
+		buffer.position(buffer.position() + 4);
+	}
+	
+	/**
+	 * Appends length prefixed data bundle to the batch envelope. Nothing is written if it does not fit.
+	 * @throws BufferOverflowException if the buffer doesn't have 4 + {@link #binaryLength(DataBundle)} bytes remaining
+	 */
+	public static void appendToBatch(DataBundle dataBundle, ByteBuffer buffer) throws BufferOverflowException {
+		int length = binaryLength(dataBundle);
+		if (buffer.remaining() < 4 + length)
+			throw new BufferOverflowException();
+		putInt(buffer, buffer.position(), length);
+		buffer.position(buffer.position() + 4);
+		encodeBinary(dataBundle, buffer);
+	}
+	
+	/**
+	 * Sets the data bundle count of the batch envelope that starts at the given buffer index.
+	 */
+	public static void endBatch(ByteBuffer buffer, int start, int count) {
+		putInt(buffer, start + 1, count);
+	}
+	
+	/**
+	 * @return true if the bytes at the buffer's position start a batch envelope
+	 */
+	public static boolean isBatch(ByteBuffer buffer) {
+		return buffer.remaining() >= BATCH_HEADER_LENGTH && buffer.get(buffer.position()) == BATCH_FORMAT_VERSION;
+	}
+	
+	/**
+	 * Decodes batch envelope that starts at the buffer's position one data bundle at a time.
+	 * The iterator returns the same {@link DataBundleView} repointed at each data bundle in turn, so no more than one
+	 * data bundle is decoded at a time and nothing is copied unless the caller asks for it.
+	 * The buffer's position and limit are not changed.
+	 * Iteration ends early, with a warning, if the envelope is truncated or a data bundle in it is not valid.
+	 * @throws IllegalArgumentException if the buffer does not start with a batch envelope header
+	 */
+	public static Iterator<DataBundleView> decodeBatch(ByteBuffer buffer) throws IllegalArgumentException {
+		if (!isBatch(buffer))
+			throw new IllegalArgumentException("Coulnd't decode DataBundle batch because the buffer does not start with a batch envelope");
+		return new BatchIterator(buffer);
+	}
+	
+	/**
+	 * Decodes batch envelope in the JMS bytes message body one data bundle at a time, see {@link #decodeBatch(ByteBuffer)}.
+	 */
+	public static Iterator<DataBundleView> decodeBatch(BytesMessage message) throws JMSException, IllegalArgumentException {
+		long length = message.getBodyLength();
+		if ( length > Integer.MAX_VALUE )
+			throw new IllegalArgumentException("Coulnd't decode DataBundle batch because the message is too long");
+		byte[] bytes = new byte[(int)length];
+		message.readBytes(bytes);
+		return decodeBatch(ByteBuffer.wrap(bytes));
+	}
+	
+	private static class BatchIterator implements Iterator<DataBundleView> {
+		private final ByteBuffer buffer;
+		private final ByteBuffer lengths;
+		private final DataBundleView view = new DataBundleView();
+		private final int end;
+		private int remaining;
+		private int next;
+		
+		BatchIterator(ByteBuffer buffer) {
+			this.buffer = buffer.duplicate();
+			this.lengths = buffer.duplicate();
+			this.end = buffer.limit();
+			this.remaining = getInt(buffer, buffer.position() + 1);
+			this.next = buffer.position() + BATCH_HEADER_LENGTH;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (remaining <= 0)
+				return false;
+			if (end - next < 4 || getInt(lengths, next) < 0 || end - next - 4 < getInt(lengths, next)) {
+				log.warn(String.format("Coulnd't decode DataBundle batch because it is truncated with %d data bundles left", remaining));
+				remaining = 0;
+				return false;
+			}
+			return true;
+		}
+		
+		@Override
+		public DataBundleView next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			final int length = getInt(lengths, next);
+			// the view keeps using the buffer, so it is only repointed when the next data bundle is requested
+			buffer.limit(next + 4 + length);
+			buffer.position(next + 4);
+			view.wrap(buffer);
+			next += 4 + length;
+			remaining--;
+			if (!view.isValid())
+				remaining = 0;
+			return view;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	// big endian regardless of the buffer's byte order
+	private static void putInt(ByteBuffer buffer, int index, int value) {
+		buffer.put(index, (byte)(value >>> 24)).put(index + 1, (byte)(value >>> 16))
+			.put(index + 2, (byte)(value >>> 8)).put(index + 3, (byte)value);
+	}
+	
+	private static int getInt(ByteBuffer buffer, int index) {
+		return (buffer.get(index) & 0xFF) << 24 | (buffer.get(index+1) & 0xFF) << 16 |
+			   (buffer.get(index+2) & 0xFF) << 8 | (buffer.get(index+3) & 0xFF);
+	}
+	
+	private static DataBundle decodeFields(ByteBuffer buffer) throws IllegalArgumentException {
+		String receiptId = new String( decodeByteArray(buffer, "receiptId") );
+		return decodeFields(buffer, new DataBundle.Builder().setReceiptId(receiptId));
+	}
+	
+	private static DataBundle decodeFields(ByteBuffer buffer, DataBundle.Builder builder) throws IllegalArgumentException {
+		byte[] destHostBytes = decodeByteArray(buffer, "destHost" );
+		String destHost  = destHostBytes != null ? new String( destHostBytes ) : null;
+		int destPort = decodeInt(buffer, "destPort");
+		boolean fromForwarder = decodeBoolean(buffer, "fromForwarder");
+		byte[] certificate = decodeByteArray(buffer, "certificate" );
+		byte[] payload = decodeByteArray(buffer, "payload" );
+		
+		builder.setDestHost(destHost).setDestPort(destPort)
+			.setFromForwarder(fromForwarder).setPayload(payload).setCertificate(certificate);
+		
+		return builder.build();
+	}
+	
+	private static void encodeByteArray(BytesMessage message, byte[] bytes) throws JMSException {
+		if ( bytes != null ) {
+			message.writeInt(bytes.length);
+			message.writeBytes(bytes);
+		} else {
+			message.writeInt(0);
+		}
+	}
+	
 	private static void encodeByteArray(ByteBuffer buffer, byte[] bytes) {
 		if ( bytes != null ) {
 			buffer.putInt(bytes.length);
@@ -129,7 +498,7 @@ public class DataBundleUtil {
 		int length = buffer.getInt();
 		if ( length == 0 )
 			return null;
-		if ( buffer.remaining() < length ) 
+		if ( length < 0 || buffer.remaining() < length ) 
 			throw new IllegalArgumentException(String.format("Coulnd't decode DataBundle because the buffer is too short to get %s of length %s", loggerHint, length));
 		byte[] bytes = new byte[length];
 		buffer.get(bytes, 0, length);
@@ -173,4 +542,47 @@ public class DataBundleUtil {
 		return builder.build();
 	}
 	
+	/**
+	 * Unwraps a payload prefixed with a text receipt id into a data bundle object for the destination.
+	 */
+	public static DataBundle unwrap(byte [] payloadWithUUID, String destHost, int destPort) {
+		byte [] payload = Arrays.copyOfRange(payloadWithUUID, UUID_LENGTH, payloadWithUUID.length);
+		DataBundle.Builder builder = new DataBundle.Builder();
+		builder.setReceiptId(new String(payloadWithUUID, 0, UUID_LENGTH)).setDestHost(destHost).setDestPort(destPort).setPayload(payload);
+		return builder.build();
+	}
+	
+	/**
+	 * Unwraps a payload prefixed with a 16 byte binary receipt id into a data bundle object for the destination.
+	 * The receipt id string is only formatted if the bundle's {@link DataBundle#getReceiptId()} is called.
+	 */
+	public static DataBundle unwrapBinary(byte [] payloadWithId, String destHost, int destPort) {
+		UUID receiptId = getBinaryReceiptId(payloadWithId);
+		byte [] payload = Arrays.copyOfRange(payloadWithId, BINARY_RECEIPT_ID_LENGTH, payloadWithId.length);
+		DataBundle.Builder builder = new DataBundle.Builder();
+		builder.setReceiptId(receiptId).setDestHost(destHost).setDestPort(destPort).setPayload(payload);
+		return builder.build();
+	}
+	
+	static void putReceiptId(byte [] bytes, int offset, UUID uuid) {
+		putLong(bytes, offset, uuid.getMostSignificantBits());
+		putLong(bytes, offset + 8, uuid.getLeastSignificantBits());
+	}
+	
+	static UUID getReceiptId(byte [] bytes, int offset) {
+		return new UUID(getLong(bytes, offset), getLong(bytes, offset + 8));
+	}
+	
+	private static void putLong(byte [] bytes, int offset, long value) {
+		for (int i = 7; i >= 0; i--, value >>>= 8)
+			bytes[offset + i] = (byte)value;
+	}
+	
+	private static long getLong(byte [] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value = value << 8 | (bytes[offset + i] & 0xFF);
+		return value;
+	}
+	
 }
\ No newline at end of file
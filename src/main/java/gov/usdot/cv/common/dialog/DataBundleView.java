@@ -0,0 +1,285 @@
+package gov.usdot.cv.common.dialog;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+
+/**
+ * Flyweight read-only view of an encoded data bundle.
+ * Unlike {@link DataBundleUtil#decode(String)}, the view only records where each field is when it wraps
+ * the encoded bundle and materializes fields on demand, so a consumer that routes on the destination
+ * does not pay for copying the certificate and payload. Byte array fields are returned as slices of
+ * the wrapped buffer and are only copied by the get...Bytes methods.
+ * The same view can be reused for many bundles by calling wrap again, and it is only valid for as long
+ * as the wrapped buffer content is not overwritten.
+ */
+public class DataBundleView {
+
+	private static final Logger log = Logger.getLogger(DataBundleView.class);
+
+	private ByteBuffer buffer;
+	private boolean valid;
+	private boolean binaryReceiptId;
+	private int receiptIdOffset;
+	private int receiptIdLength;
+	private int destHostOffset;
+	private int destHostLength;
+	private int destPort;
+	private boolean fromForwarder;
+	private int certificateOffset;
+	private int certificateLength;
+	private int payloadOffset;
+	private int payloadLength;
+	private int end;
+
+	// decoded on first use
+	private String receiptId;
+	private String destHost;
+
+	public DataBundleView() {}
+
+	public DataBundleView(ByteBuffer encodedDataBundle) {
+		wrap(encodedDataBundle);
+	}
+
+	/**
+	 * Points this view at a data bundle in the binary format that starts at the buffer's position.
+	 * The buffer's position and limit are not changed.
+	 * @param encodedDataBundle buffer with the data bundle produced by {@link DataBundleUtil#encodeBinary(DataBundle, ByteBuffer)}
+	 * @return this view
+	 */
+	public DataBundleView wrap(ByteBuffer encodedDataBundle) {
+		assert(encodedDataBundle != null);
+		reset(encodedDataBundle);
+		final int start = encodedDataBundle.position();
+		if ( encodedDataBundle.remaining() < 1 ) {
+			log.warn("Coulnd't decode DataBundle because the buffer is empty");
+		} else if ( encodedDataBundle.get(start) == DataBundleUtil.BINARY_FORMAT_VERSION ) {
+			valid = parse(start + 1, false);
+		} else if ( encodedDataBundle.get(start) == DataBundleUtil.BINARY_UUID_FORMAT_VERSION ) {
+			valid = parse(start + 1, true);
+		} else {
+			log.warn("Coulnd't decode DataBundle because of unsupported binary format version " + encodedDataBundle.get(start));
+		}
+		return this;
+	}
+
+	/**
+	 * Points this view at a data bundle in the Base64 text format. The text has to be decoded,
+	 * but the fields within the decoded bytes are still materialized on demand.
+	 * @param encodedDataBundle data bundle produced by {@link DataBundleUtil#encode(DataBundle)}
+	 * @return this view
+	 */
+	public DataBundleView wrap(String encodedDataBundle) {
+		byte[] bundle = encodedDataBundle != null ? Base64.decodeBase64(encodedDataBundle) : null;
+		reset(ByteBuffer.wrap(bundle != null ? bundle : new byte[0]));
+		if ( bundle != null )
+			valid = parse(0, false);
+		return this;
+	}
+
+	/**
+	 * @return true if the wrapped buffer holds a complete data bundle
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * @return number of bytes the data bundle takes in the wrapped buffer
+	 */
+	public int getEncodedLength() {
+		return valid ? end - buffer.position() : 0;
+	}
+
+	public String getReceiptId() {
+		if ( receiptId == null && receiptIdLength > 0 )
+			receiptId = binaryReceiptId ? getReceiptUuid().toString() : getString(receiptIdOffset, receiptIdLength);
+		return receiptId;
+	}
+
+	/**
+	 * @return receipt id in its binary form, or null if there is none or it is not a UUID
+	 */
+	public UUID getReceiptUuid() {
+		if ( binaryReceiptId )
+			return new UUID(getLong(receiptIdOffset), getLong(receiptIdOffset + 8));
+		String text = getReceiptId();
+		if ( text == null )
+			return null;
+		try {
+			return UUID.fromString(text);
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return read-only slice with the receipt id bytes, or null if there is none. The slice holds the receipt id
+	 * in its 16 byte binary form if the data bundle is in the {@link DataBundleUtil#BINARY_UUID_FORMAT_VERSION} format
+	 * and its text form otherwise.
+	 */
+	public ByteBuffer getReceiptIdBuffer() {
+		return slice(receiptIdOffset, receiptIdLength);
+	}
+
+	public String getDestHost() {
+		if ( destHost == null && destHostLength > 0 )
+			destHost = getString(destHostOffset, destHostLength);
+		return destHost;
+	}
+
+	public int getDestPort() {
+		return destPort;
+	}
+
+	public boolean fromForwarder() {
+		return fromForwarder;
+	}
+
+	/**
+	 * @return read-only slice with the certificate, or null if there is none
+	 */
+	public ByteBuffer getCertificate() {
+		return slice(certificateOffset, certificateLength);
+	}
+
+	/**
+	 * @return copy of the certificate, or null if there is none
+	 */
+	public byte[] getCertificateBytes() {
+		return copy(certificateOffset, certificateLength);
+	}
+
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+
+	/**
+	 * @return read-only slice with the payload, or null if there is none
+	 */
+	public ByteBuffer getPayload() {
+		return slice(payloadOffset, payloadLength);
+	}
+
+	/**
+	 * @return copy of the payload, or null if there is none
+	 */
+	public byte[] getPayloadBytes() {
+		return copy(payloadOffset, payloadLength);
+	}
+
+	/**
+	 * Materializes all fields into a DataBundle, equivalent to decoding the bundle with {@link DataBundleUtil}
+	 * @return data bundle or null if the view is not valid
+	 */
+	public DataBundle toDataBundle() {
+		if ( !valid )
+			return null;
+		DataBundle.Builder builder = new DataBundle.Builder();
+		if ( binaryReceiptId )
+			builder.setReceiptId(getReceiptUuid());
+		else
+			builder.setReceiptId(getReceiptId());
+		builder.setDestHost(getDestHost()).setDestPort(destPort)
+			.setFromForwarder(fromForwarder).setPayload(getPayloadBytes()).setCertificate(getCertificateBytes());
+		return builder.build();
+	}
+
+	private void reset(ByteBuffer buffer) {
+		this.buffer = buffer;
+		valid = false;
+		binaryReceiptId = false;
+		receiptIdLength = destHostLength = certificateLength = payloadLength = 0;
+		destPort = 0;
+		fromForwarder = false;
+		receiptId = destHost = null;
+	}
+
+	private boolean parse(int offset, boolean binaryId) {
+		final int limit = buffer.limit();
+		try {
+			if ( binaryId ) {
+				if ( limit - offset < DataBundleUtil.BINARY_RECEIPT_ID_LENGTH )
+					throw new IllegalArgumentException("Coulnd't decode DataBundle because the buffer is too short to get receiptId");
+				receiptIdLength = DataBundleUtil.BINARY_RECEIPT_ID_LENGTH;
+				receiptIdOffset = offset;
+				binaryReceiptId = true;
+			} else {
+				receiptIdLength = getLength(offset, limit, "receiptId");
+				receiptIdOffset = offset += 4;
+			}
+			offset += receiptIdLength;
+			destHostLength = getLength(offset, limit, "destHost");
+			destHostOffset = offset += 4;
+			offset += destHostLength;
+			if ( limit - offset < 5 )
+				throw new IllegalArgumentException("Coulnd't decode DataBundle because the buffer is too short to get destPort and fromForwarder");
+			destPort = getInt(offset);
+			fromForwarder = buffer.get(offset + 4) == 1;
+			offset += 5;
+			certificateLength = getLength(offset, limit, "certificate");
+			certificateOffset = offset += 4;
+			offset += certificateLength;
+			payloadLength = getLength(offset, limit, "payload");
+			payloadOffset = offset += 4;
+			end = offset + payloadLength;
+			return true;
+		} catch (IllegalArgumentException ex) {
+			log.warn(ex.getMessage());
+			binaryReceiptId = false;
+			receiptIdLength = destHostLength = certificateLength = payloadLength = 0;
+			destPort = 0;
+			fromForwarder = false;
+		}
+		return false;
+	}
+
+	private int getLength(int offset, int limit, String loggerHint) throws IllegalArgumentException {
+		if ( limit - offset < 4 )
+			throw new IllegalArgumentException("Coulnd't decode DataBundle because the buffer is too short to get length of " + loggerHint);
+		int length = getInt(offset);
+		if ( length < 0 || limit - offset - 4 < length )
+			throw new IllegalArgumentException(String.format("Coulnd't decode DataBundle because the buffer is too short to get %s of length %s", loggerHint, length));
+		return length;
+	}
+
+	// big endian regardless of the buffer's byte order
+	private int getInt(int index) {
+		return (buffer.get(index) & 0xFF) << 24 | (buffer.get(index+1) & 0xFF) << 16 |
+			   (buffer.get(index+2) & 0xFF) << 8 | (buffer.get(index+3) & 0xFF);
+	}
+
+	private long getLong(int index) {
+		return (getInt(index) & 0xFFFFFFFFL) << 32 | (getInt(index + 4) & 0xFFFFFFFFL);
+	}
+
+	private String getString(int offset, int length) {
+		return new String(copy(offset, length));
+	}
+
+	private ByteBuffer slice(int offset, int length) {
+		if ( length == 0 )
+			return null;
+		ByteBuffer slice = buffer.asReadOnlyBuffer();
+		slice.limit(offset + length);
+		slice.position(offset);
+		return slice.slice();
+	}
+
+	private byte[] copy(int offset, int length) {
+		if ( length == 0 )
+			return null;
+		byte[] bytes = new byte[length];
+		if ( buffer.hasArray() ) {
+			System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, bytes, 0, length);
+		} else {
+			ByteBuffer source = buffer.duplicate();
+			source.position(offset);
+			source.get(bytes, 0, length);
+		}
+		return bytes;
+	}
+}
@@ -1,45 +1,261 @@
 package gov.usdot.cv.common.dialog;
 
+import java.util.UUID;
+
 import net.sf.json.JSONObject;
 
 public class Receipt {
 	private static final String RECEIPT_ID_KEY 	= "receiptId";
 	
+	/** Length of a receipt in its binary form, the 16 byte receipt id. */
+	public static final int BINARY_LENGTH = DataBundleUtil.BINARY_RECEIPT_ID_LENGTH;
+	
+	/** Returned by the scanner for records it leaves to json-lib, compared by identity. */
+	static final String NOT_SCANNED = new String("");
+	
 	private JSONObject record;
 	
+	/** Text record whose receipt id was found by the scanner, it's only parsed when the full record is needed. */
+	private String text;
+	private String receiptId;
+	
+	/** Binary receipt id, the JSON record is only created when it's needed. */
+	private UUID receiptUuid;
+	
+	/**
+	 * Creates receipt from its JSON text. Plain records are scanned for the receipt id without
+	 * building a JSONObject, anything the scanner doesn't handle is parsed by json-lib right away.
+	 */
 	public Receipt(String record) {
-		this.record = JSONObject.fromObject(record);
+		String receiptId = scanReceiptId(record);
+		if (receiptId == NOT_SCANNED) {
+			this.record = JSONObject.fromObject(record);
+		} else {
+			this.text = record;
+			this.receiptId = receiptId;
+		}
 	}
 	
 	public Receipt(JSONObject record) {
 		this.record = record;
 	}
 	
+	public Receipt(UUID receiptId) {
+		assert(receiptId != null);
+		this.receiptUuid = receiptId;
+	}
+	
+	/**
+	 * Creates receipt from its binary form
+	 * @param bytes 16 byte receipt id
+	 */
+	public static Receipt fromBytes(byte [] bytes) {
+		if (bytes == null || bytes.length != BINARY_LENGTH) {
+			throw new IllegalArgumentException("Binary receipt must be " + BINARY_LENGTH + " bytes long");
+		}
+		return new Receipt(DataBundleUtil.getReceiptId(bytes, 0));
+	}
+	
 	public String getReceiptId() {
+		if (this.text != null) {
+			return this.receiptId;
+		}
+		if (this.record == null) {
+			return this.receiptUuid.toString();
+		}
 		if (record.has(RECEIPT_ID_KEY)) {
 			return record.getString(RECEIPT_ID_KEY);
 		}
 		return null;
 	}
 	
+	/**
+	 * @return receipt id in its binary form or null if there is no receipt id or it is not a UUID
+	 */
+	public UUID getReceiptUuid() {
+		if (this.receiptUuid == null) {
+			String receiptId = getReceiptId();
+			if (receiptId == null) return null;
+			try {
+				this.receiptUuid = UUID.fromString(receiptId);
+			} catch (IllegalArgumentException ex) {
+				return null;
+			}
+		}
+		return this.receiptUuid;
+	}
+	
+	/**
+	 * @return receipt in its 16 byte binary form or null if the receipt id is not a UUID
+	 */
+	public byte [] toBytes() {
+		UUID receiptId = getReceiptUuid();
+		if (receiptId == null) return null;
+		byte [] bytes = new byte[BINARY_LENGTH];
+		DataBundleUtil.putReceiptId(bytes, 0, receiptId);
+		return bytes;
+	}
+	
+	/**
+	 * @return full JSON record, parsed or built on first use
+	 */
+	public JSONObject getRecord() {
+		if (this.record == null) {
+			if (this.text != null) {
+				this.record = JSONObject.fromObject(this.text);
+				this.text = null;
+			} else {
+				this.record = new JSONObject();
+				this.record.put(RECEIPT_ID_KEY, this.receiptUuid.toString());
+			}
+		}
+		return this.record;
+	}
+	
+	/**
+	 * @return JSON text of the receipt, a scanned record is returned as it was received
+	 */
 	public String toString() {
+		if (this.text != null) {
+			return this.text;
+		}
+		if (this.record == null && this.receiptUuid != null) {
+			// a UUID never needs escaping, same text as json-lib would produce
+			return "{\"" + RECEIPT_ID_KEY + "\":\"" + this.receiptUuid + "\"}";
+		}
 		String result = (this.record != null) ? this.record.toString() : null;
 		return result;
 	}
 	
+	/**
+	 * Finds the receipt id in a flat JSON record with a single pass over the text.
+	 * Only a plain string receipt id is returned, values json-lib would transform (escapes, nested JSON,
+	 * "null", duplicate keys) and malformed records are left to json-lib.
+	 * @return receipt id, null if the record has no receipt id, or {@link #NOT_SCANNED}
+	 */
+	static String scanReceiptId(String text) {
+		if (text == null)
+			return NOT_SCANNED;
+		final int length = text.length();
+		int pos = skipWhitespace(text, 0);
+		if (pos >= length || text.charAt(pos) != '{')
+			return NOT_SCANNED;
+		pos = skipWhitespace(text, pos + 1);
+		if (pos < length && text.charAt(pos) == '}')
+			return null;
+		String receiptId = null;
+		boolean found = false;
+		while (pos < length) {
+			if (text.charAt(pos) != '"')
+				return NOT_SCANNED;
+			final int keyEnd = skipString(text, pos);
+			if (keyEnd < 0)
+				return NOT_SCANNED;
+			final boolean match = keyEnd - pos - 2 == RECEIPT_ID_KEY.length() &&
+					text.regionMatches(pos + 1, RECEIPT_ID_KEY, 0, RECEIPT_ID_KEY.length());
+			pos = skipWhitespace(text, keyEnd);
+			if (pos >= length || text.charAt(pos) != ':')
+				return NOT_SCANNED;
+			pos = skipWhitespace(text, pos + 1);
+			final int valueEnd = skipValue(text, pos);
+			if (valueEnd < 0)
+				return NOT_SCANNED;
+			if (match) {
+				if (found || text.charAt(pos) != '"')
+					return NOT_SCANNED;
+				receiptId = text.substring(pos + 1, valueEnd - 1);
+				if (receiptId.indexOf('\\') >= 0 || receiptId.equals("null") ||
+						receiptId.startsWith("{") || receiptId.startsWith("["))
+					return NOT_SCANNED;
+				found = true;
+			}
+			pos = skipWhitespace(text, valueEnd);
+			if (pos >= length)
+				return NOT_SCANNED;
+			if (text.charAt(pos) == '}')
+				return receiptId;
+			if (text.charAt(pos) != ',')
+				return NOT_SCANNED;
+			pos = skipWhitespace(text, pos + 1);
+		}
+		return NOT_SCANNED;
+	}
+	
+	private static int skipWhitespace(String text, int pos) {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+		return pos;
+	}
+	
+	// pos is at the opening quote, returns position after the closing quote or -1
+	private static int skipString(String text, int pos) {
+		final int length = text.length();
+		for (int i = pos + 1; i < length; i++) {
+			char c = text.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (c == '"')
+				return i + 1;
+		}
+		return -1;
+	}
+	
+	// returns position after the value or -1, nested values are only checked for balanced brackets
+	private static int skipValue(String text, int pos) {
+		final int length = text.length();
+		if (pos >= length)
+			return -1;
+		char c = text.charAt(pos);
+		if (c == '"')
+			return skipString(text, pos);
+		if (c == '{' || c == '[') {
+			int depth = 0;
+			for (int i = pos; i < length; i++) {
+				c = text.charAt(i);
+				if (c == '"') {
+					i = skipString(text, i);
+					if (i < 0)
+						return -1;
+					i--;
+				} else if (c == '{' || c == '[') {
+					depth++;
+				} else if ((c == '}' || c == ']') && --depth == 0) {
+					return i + 1;
+				}
+			}
+			return -1;
+		}
+		int i = pos;
+		while (i < length && (c = text.charAt(i)) != ',' && c != '}' && c != ']' && !Character.isWhitespace(c))
+			i++;
+		return i > pos ? i : -1;
+	}
+	
 	public static class Builder {
 		private String receiptId;
-		
+		private UUID receiptUuid;
+	
 		public Builder setReceiptId(String receiptId) {
 			this.receiptId = receiptId;
+			this.receiptUuid = null;
+			return this;
+		}
+	
+		public Builder setReceiptId(UUID receiptId) {
+			this.receiptUuid = receiptId;
+			this.receiptId = null;
 			return this;
 		}
-		
+	
 		public Receipt build() {
+			if (this.receiptUuid != null) {
+				return new Receipt(this.receiptUuid);
+			}
+	
 			if (this.receiptId == null) {
 				return null;
 			}
-			
+	
 			JSONObject record = new JSONObject();
 			record.put(RECEIPT_ID_KEY, this.receiptId);
 			return new Receipt(record);
@@ -0,0 +1,54 @@
+package gov.usdot.cv.common.dialog;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Source of random receipt ids.
+ * {@link #SECURE} uses {@link UUID#randomUUID()}, which draws from a shared SecureRandom.
+ * {@link #FAST} draws from a per thread pseudo random generator, which is much cheaper and does not contend
+ * between threads, but its ids are predictable, so only use it where receipt ids do not need to be unguessable.
+ * Both produce version 4 UUIDs.
+ */
+public abstract class ReceiptIdGenerator {
+
+	public static final ReceiptIdGenerator SECURE = new ReceiptIdGenerator() {
+		@Override
+		public UUID next() {
+			return UUID.randomUUID();
+		}
+	};
+
+	public static final ReceiptIdGenerator FAST = new ReceiptIdGenerator() {
+		@Override
+		public UUID next() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long msb = (random.nextLong() & ~0xF000L) | 0x4000L;
+			long lsb = (random.nextLong() & ~(0xC000000000000000L)) | 0x8000000000000000L;
+			return new UUID(msb, lsb);
+		}
+	};
+
+	private static volatile ReceiptIdGenerator defaultGenerator = SECURE;
+
+	/**
+	 * @return a new random receipt id
+	 */
+	public abstract UUID next();
+
+	/**
+	 * @return generator used when a receipt id is not supplied
+	 */
+	public static ReceiptIdGenerator getDefault() {
+		return defaultGenerator;
+	}
+
+	/**
+	 * Sets generator used when a receipt id is not supplied, {@link #SECURE} by default
+	 */
+	public static void setDefault(ReceiptIdGenerator generator) {
+		if ( generator == null )
+			throw new NullPointerException("Receipt id generator is null.");
+		defaultGenerator = generator;
+	}
+}
@@ -1,9 +1,18 @@
 package gov.usdot.cv.common.dialog;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
@@ -105,66 +114,280 @@ public abstract class ReceiptReceiver implements MessageListener {
 
 	@Override
 	public void onMessage(Message msg) {
-		if (msg != null && msg instanceof TextMessage) {
-			try {
-				String record = ((TextMessage) msg).getText();
-				Receipt receipt = new Receipt(record);
-				receipts.add(receipt);
-				log.debug(String.format("Received Receipt: '%s'", receipt));
-				wakeUpWorker();
-			} catch (Exception ex) {
-				ex.printStackTrace();
+		try {
+			Receipt receipt = toReceipt(msg);
+			if (receipt != null) {
+				queue.offer(receipt);
+				received.incrementAndGet();
+				if (log.isDebugEnabled())
+					log.debug(String.format("Received Receipt: '%s'", receipt));
+				signalWorker();
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+	
+	private static Receipt toReceipt(Message msg) throws JMSException {
+		if (msg instanceof TextMessage) {
+			return new Receipt(((TextMessage) msg).getText());
+		}
+		if (msg instanceof BytesMessage) {
+			BytesMessage bytesMessage = (BytesMessage) msg;
+			byte [] bytes = new byte[Receipt.BINARY_LENGTH];
+			if (bytesMessage.getBodyLength() != bytes.length || bytesMessage.readBytes(bytes) != bytes.length) {
+				log.warn(String.format("Ignoring binary receipt of unexpected length %d", bytesMessage.getBodyLength()));
+				return null;
 			}
+			return Receipt.fromBytes(bytes);
 		}
+		return null;
+	}
+	
+	/**
+	 * Moves up to maxReceipts received receipts, oldest first, into the batch.
+	 * Use it to pull receipts when the receiver runs without worker threads.
+	 * @return number of receipts added to the batch
+	 */
+	public int drainTo(Collection<Receipt> batch, int maxReceipts) {
+		int count = 0;
+		Receipt receipt;
+		while (count < maxReceipts && (receipt = queue.poll()) != null) {
+			batch.add(receipt);
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Sets number of worker threads that call {@link #processReceipts(List)}, 1 by default.
+	 * With more than one worker, batches are processed concurrently and receipts may complete out of order.
+	 * With 0 workers, receipts are only handed over through {@link #drainTo(Collection, int)}.
+	 * Subclasses that only override {@link #processReceipts()} always get a single worker.
+	 * Must be called before {@link #initialize()}.
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		if (workerThreads < 0)
+			throw new IllegalArgumentException("Number of worker threads can not be negative");
+		this.workerThreads = workerThreads;
+	}
+	
+	public int getWorkerThreads() {
+		return this.workerThreads;
+	}
+	
+	/**
+	 * Sets maximum number of receipts a worker hands to {@link #processReceipts(List)} at once, 256 by default.
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("Maximum batch size must be positive");
+		this.maxBatchSize = maxBatchSize;
+	}
+	
+	public int getMaxBatchSize() {
+		return this.maxBatchSize;
+	}
+	
+	public long getReceiptsReceived() {
+		return received.get();
+	}
+	
+	public long getReceiptsProcessed() {
+		return processed.get();
 	}
 	
 	//
 	// Worker region
 	//
 	
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	
+	// workers recheck the running flag at least this often when there is no work
+	private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(500);
+	
+	// the original worker called processReceipts() at least this often, even without new receipts
+	private static final long LEGACY_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(2000);
+	
+	/**
+	 * Receipts for subclasses that implement the {@link #processReceipts()} contract.
+	 * The default {@link #processReceipts(List)} moves each batch here before calling processReceipts().
+	 */
 	protected List<Receipt> receipts = Collections.synchronizedList(new ArrayList<Receipt>());
 	
-	private static final Integer work = new Integer(0);
-	private Boolean workerRun = null;
+	private final ConcurrentLinkedQueue<Receipt> queue = new ConcurrentLinkedQueue<Receipt>();
+	private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private int workerThreads = 1;
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private volatile boolean workerRun = false;
+	
+	private static final Set<ReceiptReceiver> running = new CopyOnWriteArraySet<ReceiptReceiver>();
+	
+	private final class Worker implements Runnable {
+		final AtomicBoolean idle = new AtomicBoolean();
+		final boolean legacy;
+		volatile Thread thread;
+		// per worker so that workers of an earlier start never see the flag set again by a restart
+		volatile boolean stopped;
+		
+		Worker(boolean legacy) {
+			this.legacy = legacy;
+		}
+		
+		public void run() {
+			thread = Thread.currentThread();
+			List<Receipt> batch = new ArrayList<Receipt>(maxBatchSize);
+			long nextTick = System.nanoTime() + LEGACY_PERIOD_NS;
+			while (!stopped) {
+				if (drainTo(batch, maxBatchSize) == 0) {
+					long parkNs = IDLE_PARK_NS;
+					if (legacy) {
+						long untilTick = nextTick - System.nanoTime();
+						if (untilTick <= 0) {
+							// periodic call with no new receipts, for subclasses that retry what is left in receipts
+							process(batch);
+							nextTick = System.nanoTime() + LEGACY_PERIOD_NS;
+							continue;
+						}
+						parkNs = Math.min(parkNs, untilTick);
+					}
+					// register as idle before the last check so that a receipt offered meanwhile wakes this worker
+					if (idle.compareAndSet(false, true))
+						idleWorkers.offer(this);
+					if (queue.isEmpty() && !stopped)
+						LockSupport.parkNanos(this, parkNs);
+					continue;
+				}
+				process(batch);
+				batch.clear();
+				nextTick = System.nanoTime() + LEGACY_PERIOD_NS;
+			}
+		}
+		
+		private void process(List<Receipt> batch) {
+			try {
+				processReceipts(batch);
+				processed.addAndGet(batch.size());
+			} catch (Exception ex) {
+				log.error("Failed to process receipts", ex);
+			}
+		}
+	}
 
-	private synchronized void startWorker() {
-		log.debug("Started Receipt Receiver Worker");
-		if ( workerRun == null ) {
-			workerRun = true;
-			new Thread(new Runnable() {
-			     public void run()
-			     {
-			          runWorker();
-			     }
-			}).start(); 
+	synchronized void startWorker() {
+		if ( workerRun )
+			return;
+		workerRun = true;
+		running.add(this);
+		final boolean legacy = isLegacy();
+		// the original contract never ran processReceipts() concurrently
+		final int threads = legacy ? Math.min(workerThreads, 1) : workerThreads;
+		for ( int i = 0; i < threads; i++ ) {
+			Worker worker = new Worker(legacy);
+			Thread thread = new Thread(worker, String.format("ReceiptReceiver-%s-%d", topicName, i));
+			worker.thread = thread;
+			workers.add(worker);
+			thread.start();
 		}
+		log.debug(String.format("Started %d Receipt Receiver Workers", threads));
 	}
 	
-	private synchronized void stopWorker() {
-		if ( workerRun != null && workerRun == true ) {
-			workerRun = false;
-			wakeUpWorker();
+	/**
+	 * @return true if the subclass implements the original contract, overriding processReceipts() but not processReceipts(List)
+	 */
+	private boolean isLegacy() {
+		for ( Class<?> type = getClass(); type != ReceiptReceiver.class; type = type.getSuperclass() ) {
+			try {
+				type.getDeclaredMethod("processReceipts", List.class);
+				return false;
+			} catch (NoSuchMethodException ex) {
+			}
+			try {
+				type.getDeclaredMethod("processReceipts");
+				return true;
+			} catch (NoSuchMethodException ex) {
+			}
 		}
+		return false;
 	}
 	
-	private void runWorker() {
-		while( workerRun != null && workerRun == true ) {
-			processReceipts();
-			synchronized(work) {
+	/**
+	 * Stops the workers and waits for them to finish the batch they are processing,
+	 * so that workers started afterwards never run alongside them
+	 */
+	void stopWorker() {
+		List<Worker> stopping;
+		synchronized (this) {
+			if ( !workerRun )
+				return;
+			workerRun = false;
+			running.remove(this);
+			stopping = new ArrayList<Worker>(workers);
+			workers.clear();
+			idleWorkers.clear();
+			for ( Worker worker : stopping ) {
+				worker.stopped = true;
+				LockSupport.unpark(worker.thread);
+			}
+		}
+		// joined without holding the lock, processReceipts() of a subclass may synchronize on the receiver
+		final Thread current = Thread.currentThread();
+		boolean interrupted = false;
+		for ( Worker worker : stopping ) {
+			Thread thread = worker.thread;
+			while ( thread != current && thread.isAlive() ) {
 				try {
-					work.wait(2000);
-				} catch (InterruptedException unused) {
+					thread.join();
+				} catch (InterruptedException ex) {
+					interrupted = true;
 				}
 			}
 		}
+		if ( interrupted )
+			current.interrupt();
 	}
 	
-	public static void wakeUpWorker() {
-		synchronized (work) {
-			work.notify();
+	private void signalWorker() {
+		Worker worker = idleWorkers.poll();
+		if ( worker != null ) {
+			worker.idle.set(false);
+			LockSupport.unpark(worker.thread);
 		}
 	}
-
-	abstract protected void processReceipts(); 
+	
+	/**
+	 * Wakes up idle workers of all running receivers.
+	 * @deprecated workers are woken up as soon as a receipt arrives, there is no need to call this method
+	 */
+	@Deprecated
+	public static void wakeUpWorker() {
+		for ( ReceiptReceiver receiver : running )
+			receiver.signalWorker();
+	}
+	
+	/**
+	 * Processes a batch of receipts on a worker thread.
+	 * The default implementation supports the original contract: it moves the batch to {@link #receipts}
+	 * and calls {@link #processReceipts()}. Override it to process the batch directly.
+	 * @param batch receipts in the order they were received, only valid for the duration of the call
+	 */
+	protected void processReceipts(List<Receipt> batch) {
+		receipts.addAll(batch);
+		processReceipts();
+	}
+	
+	/**
+	 * Processes receipts accumulated in {@link #receipts}.
+	 * A subclass that overrides this method and not {@link #processReceipts(List)} keeps the original contract:
+	 * a single worker calls it when receipts arrive and at least every 2 seconds even when none did,
+	 * and it is never called concurrently.
+	 * @deprecated override {@link #processReceipts(List)} instead
+	 */
+	@Deprecated
+	protected void processReceipts() {
+	}
 
 }
@@ -1,6 +1,12 @@
 package gov.usdot.cv.common.dialog;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.TextMessage;
 
 import org.apache.log4j.Logger;
@@ -12,14 +18,39 @@ import com.deleidos.rtws.commons.net.jms.RoundRobinJMSConnectionFactory;
 public class ReceiptSender {
 	private static Logger logger = Logger.getLogger(ReceiptSender.class);
 	
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final long DEFAULT_CLOSE_TIMEOUT_MS = 5000;
+	
+	/**
+	 * What an async sender does with a receipt when its queue is full.
+	 */
+	public enum OverflowPolicy {
+		/** Discard the receipt and count it as dropped. */
+		DROP,
+		/** Wait in the caller's thread until there is room in the queue. */
+		BLOCK,
+		/** Append the receipt to a local spill file that is published once the queue drains. */
+		SPILL
+	}
+	
 	private JMSFactory 				factory;
 	private BasicMessageProducer 	session;
+	private boolean					binaryReceipts;
+	private AsyncReceiptPublisher	publisher;
 
 	public static class Builder {
 		private String topicName;
 		private String brokerUrl;
 		private String username;
 		private String password;
+		private boolean binaryReceipts = false;
+		private boolean async = false;
+		private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+		private int batchSize = DEFAULT_BATCH_SIZE;
+		private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+		private File spillDirectory;
+		private long closeTimeout = DEFAULT_CLOSE_TIMEOUT_MS;
 		
 		public Builder setTopicName(String topicName) {
 			this.topicName = topicName;
@@ -41,6 +72,61 @@ public class ReceiptSender {
 			return this;
 		}
 		
+		/**
+		 * Sends receipt ids given as UUIDs as 16 byte bytes messages instead of JSON text messages.
+		 * Only enable once all receivers of the topic accept binary receipts.
+		 */
+		public Builder setBinaryReceipts(boolean binaryReceipts) {
+			this.binaryReceipts = binaryReceipts;
+			return this;
+		}
+		
+		/**
+		 * Queues receipts and publishes them from a dedicated thread in batches, one JMS transaction per batch,
+		 * instead of publishing in the caller's thread.
+		 */
+		public Builder setAsync(boolean async) {
+			this.async = async;
+			return this;
+		}
+		
+		/**
+		 * Sets maximum number of receipts waiting in the async queue.
+		 */
+		public Builder setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+			return this;
+		}
+		
+		/**
+		 * Sets maximum number of receipts published in one transaction.
+		 */
+		public Builder setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+		
+		public Builder setOverflowPolicy(OverflowPolicy overflowPolicy) {
+			this.overflowPolicy = overflowPolicy;
+			return this;
+		}
+		
+		/**
+		 * Sets directory for the spill file of the SPILL overflow policy, the default temporary-file directory by default.
+		 */
+		public Builder setSpillDirectory(File spillDirectory) {
+			this.spillDirectory = spillDirectory;
+			return this;
+		}
+		
+		/**
+		 * Sets how long in milliseconds close waits for queued receipts to be published.
+		 */
+		public Builder setCloseTimeout(long closeTimeout) {
+			this.closeTimeout = closeTimeout;
+			return this;
+		}
+		
 		public ReceiptSender build() {
 			if (this.brokerUrl == null) {
 				throw new NullPointerException("Receipt sender broker url is null.");
@@ -54,36 +140,154 @@ public class ReceiptSender {
 				throw new NullPointerException("Receipt sender password is null.");
 			}
 			
-			RoundRobinJMSConnectionFactory cf = new RoundRobinJMSConnectionFactory();
-			cf.setBrokerURL(this.brokerUrl);
-			cf.setUserName(this.username);
-			cf.setPassword(this.password);
+			if (this.async) {
+				return buildAsync();
+			}
 			
 			ReceiptSender sender = new ReceiptSender();
 			sender.factory = new JMSFactory();
-			sender.factory.setConnectionFactory(cf);
+			sender.factory.setConnectionFactory(createConnectionFactory());
 			sender.session = sender.factory.createSimpleTopicProducer(this.topicName);
+			sender.binaryReceipts = this.binaryReceipts;
 			return sender;
 		}
+		
+		private ReceiptSender buildAsync() {
+			if (this.queueCapacity < 1) {
+				throw new IllegalArgumentException("Receipt sender queue capacity must be positive.");
+			}
+			
+			if (this.batchSize < 1) {
+				throw new IllegalArgumentException("Receipt sender batch size must be positive.");
+			}
+			
+			if (this.overflowPolicy == null) {
+				throw new NullPointerException("Receipt sender overflow policy is null.");
+			}
+			
+			ReceiptSender sender = new ReceiptSender();
+			sender.binaryReceipts = this.binaryReceipts;
+			try {
+				sender.publisher = new AsyncReceiptPublisher(
+					createConnectionFactory(),
+					this.topicName,
+					this.queueCapacity,
+					this.batchSize,
+					this.overflowPolicy,
+					this.spillDirectory,
+					this.closeTimeout);
+			} catch (IOException ex) {
+				throw new IllegalArgumentException("Unable to create receipt spill file.", ex);
+			}
+			return sender;
+		}
+		
+		// both modes connect through the same factory, so they pick brokers from the url the same way
+		private RoundRobinJMSConnectionFactory createConnectionFactory() {
+			RoundRobinJMSConnectionFactory cf = new RoundRobinJMSConnectionFactory();
+			cf.setBrokerURL(this.brokerUrl);
+			cf.setUserName(this.username);
+			cf.setPassword(this.password);
+			return cf;
+		}
 	}
 
 	private ReceiptSender() {
 		// Prevent direct instantiation of the class
 	}
 
+	/**
+	 * Closes the sender. An async sender first waits up to the close timeout for queued receipts to be published.
+	 */
 	public void close() {
+		if (this.publisher != null) {
+			this.publisher.close();
+		}
 		if (this.session != null) {
 			try { this.session.close(); } catch (Exception ex) {}
 		}
 	}
 	
+	public boolean isBinaryReceipts() {
+		return this.binaryReceipts;
+	}
+	
+	public boolean isAsync() {
+		return this.publisher != null;
+	}
+	
+	/** @return number of receipts waiting in the async queue, not counting spilled receipts */
+	public int getQueueDepth() {
+		return this.publisher != null ? this.publisher.getQueueDepth() : 0;
+	}
+	
+	/** @return number of receipts waiting in the spill file */
+	public long getSpillDepth() {
+		return this.publisher != null ? this.publisher.getSpillDepth() : 0;
+	}
+	
+	/** @return number of receipts accepted by the async queue, including spilled receipts */
+	public long getReceiptsQueued() {
+		return this.publisher != null ? this.publisher.getQueued() : 0;
+	}
+	
+	public long getReceiptsPublished() {
+		return this.publisher != null ? this.publisher.getPublished() : 0;
+	}
+	
+	public long getReceiptsDropped() {
+		return this.publisher != null ? this.publisher.getDropped() : 0;
+	}
+	
+	public long getReceiptsSpilled() {
+		return this.publisher != null ? this.publisher.getSpilled() : 0;
+	}
+	
+	public long getBatchesPublished() {
+		return this.publisher != null ? this.publisher.getBatches() : 0;
+	}
+	
+	public long getPublishFailures() {
+		return this.publisher != null ? this.publisher.getFailures() : 0;
+	}
+	
+	/** @return average time in milliseconds from queueing a receipt to committing it */
+	public double getAveragePublishLatency() {
+		return this.publisher != null ? this.publisher.getAverageLatencyMs() : 0;
+	}
+	
+	/** @return longest time in milliseconds from queueing a receipt to committing it */
+	public double getMaxPublishLatency() {
+		return this.publisher != null ? this.publisher.getMaxLatencyMs() : 0;
+	}
+	
 	public void send(String receiptId) throws JMSException {
 		if (receiptId == null) return;
-		
+		send(receiptId, null);
+	}
+	
+	/**
+	 * Sends the receipt id as a 16 byte bytes message if binary receipts are enabled,
+	 * otherwise as a JSON receipt text message.
+	 */
+	public void send(UUID receiptId) throws JMSException {
+		if (receiptId == null) return;
+		if (this.binaryReceipts) {
+			send(null, new Receipt(receiptId).toBytes());
+		} else {
+			send(new Receipt(receiptId).toString(), null);
+		}
+	}
+	
+	private void send(String text, byte [] bytes) throws JMSException {
+		if (this.publisher != null) {
+			this.publisher.offer(text, bytes);
+			return;
+		}
 		boolean sent = false;
 		while (! sent) try {
 			connect(this.session);
-			this.session.send(buildMessage(receiptId));
+			this.session.send(text != null ? buildMessage(text) : buildMessage(bytes));
 			sent = true;
 		} catch (JMSException e) {
 			this.session.close();
@@ -108,4 +312,10 @@ public class ReceiptSender {
 		message.setText(data);
 		return message;
 	}
+	
+	private Message buildMessage(byte [] data) throws JMSException {
+		BytesMessage message = this.session.createBytesMessage();
+		message.writeBytes(data);
+		return message;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,383 @@
+package gov.usdot.cv.common.dialog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Correlates receipts coming back through {@link ReceiptReceiver} with the data bundles they acknowledge,
+ * for example bundles sent with {@link DataBundleUtil#prependReceiptId(String, byte[])}.
+ * The sender tracks each receipt id with its pending-send metadata, and the receiver matches incoming
+ * receipts in O(1). Receipts that don't arrive within the timeout expire, and a tombstone is kept for the
+ * retention period afterwards so that late and duplicate receipts are recognized and counted instead of
+ * being reported as unknown. Expiry is driven by a hashed time wheel, so memory is bounded by the maximum
+ * number of entries and expiring an entry costs O(1) regardless of how many are pending.
+ * Safe for use by multiple threads.
+ * @param <T> pending-send metadata
+ */
+public class ReceiptTracker<T> {
+
+	private static final Logger log = Logger.getLogger(ReceiptTracker.class);
+
+	public static final long DEFAULT_TIMEOUT_MS = 30000;
+	public static final long DEFAULT_TICK_MS = 100;
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	/**
+	 * Notified on the wheel thread when a tracked receipt did not arrive in time
+	 */
+	public interface ExpiryListener<T> {
+		void expired(String receiptId, T metadata);
+	}
+
+	private static final int PENDING = 0;
+	private static final int MATCHED = 1;
+	private static final int EXPIRED = 2;
+
+	private static final class Entry<T> {
+		final String receiptId;
+		final AtomicInteger state = new AtomicInteger(PENDING);
+		volatile T metadata;
+		// tick of the latest schedule, earlier wheel slots holding this entry are stale
+		volatile long tick;
+
+		Entry(String receiptId, T metadata) {
+			this.receiptId = receiptId;
+			this.metadata = metadata;
+		}
+	}
+
+	private static final class Slot<T> {
+		final Entry<T> entry;
+		final long tick;
+		// end of the retention period rather than the timeout
+		final boolean retention;
+
+		Slot(Entry<T> entry, long tick, boolean retention) {
+			this.entry = entry;
+			this.tick = tick;
+			this.retention = retention;
+		}
+	}
+
+	private final ConcurrentHashMap<String,Entry<T>> entries;
+	private final ConcurrentLinkedQueue<Slot<T>>[] wheel;
+	private final int mask;
+	private final long tickMs;
+	private final long timeoutTicks;
+	private final long retentionTicks;
+	private final int maxEntries;
+	private final ExpiryListener<T> listener;
+	private final ScheduledExecutorService timer;
+
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger pending = new AtomicInteger();
+	// last tick the wheel has processed, guarded by this
+	private long currentTick;
+
+	private final AtomicLong tracked = new AtomicLong();
+	private final AtomicLong matched = new AtomicLong();
+	private final AtomicLong late = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong unknown = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private ReceiptTracker(long timeoutMs, long retentionMs, long tickMs, int maxEntries, ExpiryListener<T> listener) {
+		this.tickMs = tickMs;
+		this.timeoutTicks = (timeoutMs + tickMs - 1) / tickMs;
+		this.retentionTicks = (retentionMs + tickMs - 1) / tickMs;
+		this.maxEntries = maxEntries;
+		this.listener = listener;
+		this.entries = new ConcurrentHashMap<String,Entry<T>>(Math.min(maxEntries, 1024));
+		// no entry is ever scheduled a full rotation ahead, so a slot only holds entries due on its tick
+		// or entries the wheel is lagging behind on
+		int wheelSize = Integer.highestOneBit((int)Math.max(timeoutTicks, retentionTicks) + 1) << 1;
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		ConcurrentLinkedQueue<Slot<T>>[] slots = new ConcurrentLinkedQueue[wheelSize];
+		for (int i = 0; i < wheelSize; i++) {
+			slots[i] = new ConcurrentLinkedQueue<Slot<T>>();
+		}
+		this.wheel = slots;
+		this.mask = wheelSize - 1;
+		this.currentTick = toTick(now());
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ReceiptTracker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				advance(now());
+			}
+		}, tickMs, tickMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts tracking the receipt id
+	 * @param metadata pending-send metadata returned when the receipt is matched
+	 * @return false if the receipt id is already tracked or the tracker is full
+	 */
+	public boolean track(String receiptId, T metadata) {
+		assert(receiptId != null);
+		if (size.incrementAndGet() > maxEntries) {
+			size.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+		Entry<T> entry = new Entry<T>(receiptId, metadata);
+		if (entries.putIfAbsent(receiptId, entry) != null) {
+			size.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+		pending.incrementAndGet();
+		tracked.incrementAndGet();
+		schedule(entry, toTick(now()) + timeoutTicks, false);
+		return true;
+	}
+
+	public boolean track(UUID receiptId, T metadata) {
+		return track(receiptId.toString(), metadata);
+	}
+
+	/**
+	 * Matches the receipt against the tracked receipt ids
+	 * @return metadata of the matched receipt, or null if the receipt is unknown, late or a duplicate
+	 */
+	public T match(String receiptId) {
+		Entry<T> entry = receiptId != null ? entries.get(receiptId) : null;
+		if (entry == null) {
+			unknown.incrementAndGet();
+			return null;
+		}
+		if (!entry.state.compareAndSet(PENDING, MATCHED)) {
+			if (entry.state.get() == EXPIRED)
+				late.incrementAndGet();
+			else
+				duplicates.incrementAndGet();
+			return null;
+		}
+		T metadata = entry.metadata;
+		entry.metadata = null;
+		pending.decrementAndGet();
+		matched.incrementAndGet();
+		retain(entry, toTick(now()));
+		return metadata;
+	}
+
+	public T match(Receipt receipt) {
+		return match(receipt.getReceiptId());
+	}
+
+	/**
+	 * Stops the wheel timer, tracked receipts no longer expire
+	 */
+	public void close() {
+		timer.shutdownNow();
+	}
+
+	/**
+	 * @return number of receipts waiting to be matched
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * @return number of entries held, pending receipts and tombstones of matched and expired receipts
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	public long getTracked() {
+		return tracked.get();
+	}
+
+	public long getMatched() {
+		return matched.get();
+	}
+
+	/**
+	 * @return number of receipts that arrived after they had expired
+	 */
+	public long getLate() {
+		return late.get();
+	}
+
+	public long getExpired() {
+		return expired.get();
+	}
+
+	/**
+	 * @return number of receipts that arrived again after they had been matched
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * @return number of receipts that were never tracked or whose tombstone was already evicted
+	 */
+	public long getUnknown() {
+		return unknown.get();
+	}
+
+	/**
+	 * @return number of track calls refused because the receipt id was tracked already or the tracker was full
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Expires and evicts entries due up to the time, called by the wheel timer
+	 * @param nowMs time in {@link #now()} milliseconds
+	 */
+	synchronized void advance(long nowMs) {
+		final long tick = toTick(nowMs);
+		List<Slot<T>> lagging = null;
+		while (currentTick < tick) {
+			final long due = ++currentTick;
+			ConcurrentLinkedQueue<Slot<T>> bucket = wheel[(int)(due & mask)];
+			Slot<T> slot;
+			while ((slot = bucket.poll()) != null) {
+				if (slot.tick != slot.entry.tick)
+					continue;
+				if (slot.tick > due) {
+					if (lagging == null)
+						lagging = new ArrayList<Slot<T>>();
+					lagging.add(slot);
+					continue;
+				}
+				if (slot.retention)
+					evict(slot.entry);
+				else
+					expire(slot.entry, due);
+			}
+			if (lagging != null) {
+				bucket.addAll(lagging);
+				lagging.clear();
+			}
+		}
+	}
+
+	private void expire(Entry<T> entry, long due) {
+		if (entry.state.compareAndSet(PENDING, EXPIRED)) {
+			T metadata = entry.metadata;
+			entry.metadata = null;
+			pending.decrementAndGet();
+			expired.incrementAndGet();
+			if (listener != null) {
+				try {
+					listener.expired(entry.receiptId, metadata);
+				} catch (Exception ex) {
+					log.error(String.format("Receipt expiry listener failed for receipt id '%s'", entry.receiptId), ex);
+				}
+			}
+			retain(entry, due);
+		}
+		// otherwise the receipt was matched, match schedules the retention itself and may not have done so yet
+	}
+
+	private void evict(Entry<T> entry) {
+		if (entries.remove(entry.receiptId, entry))
+			size.decrementAndGet();
+	}
+
+	// keeps the entry as a tombstone for the retention period
+	private void retain(Entry<T> entry, long tick) {
+		schedule(entry, tick + Math.max(retentionTicks, 1), true);
+	}
+
+	private void schedule(Entry<T> entry, long tick, boolean retention) {
+		entry.tick = tick;
+		wheel[(int)(tick & mask)].offer(new Slot<T>(entry, tick, retention));
+	}
+
+	private long toTick(long ms) {
+		return ms / tickMs;
+	}
+
+	static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	public static class Builder<T> {
+		private long timeoutMs = DEFAULT_TIMEOUT_MS;
+		private long retentionMs = -1;
+		private long tickMs = DEFAULT_TICK_MS;
+		private int maxEntries = DEFAULT_MAX_ENTRIES;
+		private ExpiryListener<T> listener;
+
+		/**
+		 * Sets how long in milliseconds a tracked receipt may take to arrive.
+		 */
+		public Builder<T> setTimeout(long timeoutMs) {
+			this.timeoutMs = timeoutMs;
+			return this;
+		}
+
+		/**
+		 * Sets how long in milliseconds late and duplicate receipts are recognized after a receipt
+		 * expired or was matched, same as the timeout by default.
+		 */
+		public Builder<T> setRetention(long retentionMs) {
+			this.retentionMs = retentionMs;
+			return this;
+		}
+
+		/**
+		 * Sets the time wheel resolution in milliseconds, receipts expire up to one tick late.
+		 */
+		public Builder<T> setTickDuration(long tickMs) {
+			this.tickMs = tickMs;
+			return this;
+		}
+
+		/**
+		 * Sets maximum number of entries, pending receipts and tombstones, the tracker holds.
+		 */
+		public Builder<T> setMaxEntries(int maxEntries) {
+			this.maxEntries = maxEntries;
+			return this;
+		}
+
+		public Builder<T> setExpiryListener(ExpiryListener<T> listener) {
+			this.listener = listener;
+			return this;
+		}
+
+		public ReceiptTracker<T> build() {
+			if (this.tickMs < 1) {
+				throw new IllegalArgumentException("Receipt tracker tick duration must be positive.");
+			}
+			if (this.timeoutMs < this.tickMs) {
+				throw new IllegalArgumentException("Receipt tracker timeout must be at least one tick.");
+			}
+			if (this.maxEntries < 1) {
+				throw new IllegalArgumentException("Maximum number of receipt tracker entries must be positive.");
+			}
+			long retentionMs = this.retentionMs < 0 ? this.timeoutMs : this.retentionMs;
+			if (Math.max(this.timeoutMs, retentionMs) / this.tickMs >= 1 << 24) {
+				throw new IllegalArgumentException("Receipt tracker timeout and retention are too long for the tick duration.");
+			}
+			return new ReceiptTracker<T>(this.timeoutMs, retentionMs, this.tickMs, this.maxEntries, this.listener);
+		}
+	}
+}
@@ -1,16 +1,9 @@
 package gov.usdot.cv.common.dialog;
 
-import gov.usdot.asn1.generated.j2735.dsrc.DDateTime;
-import gov.usdot.asn1.generated.j2735.dsrc.TemporaryID;
 import gov.usdot.asn1.generated.j2735.semi.ConnectionPoint;
 import gov.usdot.asn1.generated.j2735.semi.GroupID;
 import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
-import gov.usdot.asn1.generated.j2735.semi.ServiceRequest;
-import gov.usdot.asn1.generated.j2735.semi.ServiceResponse;
-import gov.usdot.asn1.j2735.CVSampleMessageBuilder;
-import gov.usdot.asn1.j2735.J2735Util;
 import gov.usdot.cv.common.asn1.ConnectionPointHelper;
-import gov.usdot.cv.common.asn1.TemporaryIDHelper;
 import gov.usdot.cv.security.cert.Certificate;
 import gov.usdot.cv.security.cert.CertificateManager;
 import gov.usdot.cv.security.crypto.CryptoProvider;
@@ -23,26 +16,18 @@ import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.GregorianCalendar;
 
 import org.apache.log4j.Logger;
 
-import com.oss.asn1.AbstractData;
 import com.oss.asn1.Coder;
-import com.oss.asn1.DecodeFailedException;
-import com.oss.asn1.DecodeNotSupportedException;
-import com.oss.asn1.EncodeFailedException;
-import com.oss.asn1.EncodeNotSupportedException;
 
 public class TrustEstablishment {
 	
 	private static final Logger log = Logger.getLogger(TrustEstablishment.class);
 	
-	static private final String DIGEST_ALGORITHM_NAME = "SHA-256"; 
-	private static final int MAX_PACKET_SIZE = 2048;
+	/** How long a signed request is resent before it is signed again with a new generation time. */
+	public static final int DEFAULT_MAX_SIGNATURE_AGE = 10000;
 	
 	private InetAddress hostAddress = null;
 	private final int sendToPort;
@@ -59,10 +44,20 @@ public class TrustEstablishment {
 	private boolean secure = false;
 	private int psid = 0x2fe1;
 	private String selfCertificateFriendlyName = "Self";
+	private int maxSignatureAge = DEFAULT_MAX_SIGNATURE_AGE;
 	private IEEE1609p2Message msg1609p2;
+	private int msg1609p2Psid;
 	private CryptoProvider cryptoProvider;
 	private byte[] certId8;
 	
+	// encoded once per handshake, signed once per handshake unless the signature gets too old,
+	// and resent on every attempt
+	private TrustEstablishmentCodec codec;
+	private byte[] encodedRequest;
+	private byte[] requestBytes;
+	private byte[] requestHash;
+	private long signedAt;
+	
 	public static void establishTrust(Coder coder, SemiDialogID dialogID, GroupID groupID, int requestID, String host, int sendToPort) throws UnknownHostException, TrustEstablishmentException {
 		new TrustEstablishment(coder, dialogID, groupID, requestID, host, sendToPort).establishTrust();
 	}
@@ -125,13 +120,18 @@ public class TrustEstablishment {
 	}
 	
 	public boolean establishTrust(int attempts, int timeout) throws TrustEstablishmentException  {
-		if ( secure && msg1609p2 == null ) {
+		if ( secure && (msg1609p2 == null || msg1609p2Psid != psid) ) {
 			if ( cryptoProvider == null )
 				cryptoProvider = new CryptoProvider();
 			msg1609p2 = new IEEE1609p2Message(cryptoProvider);
 			msg1609p2.setPSID(psid);
+			msg1609p2Psid = psid;
 		}
+		encodeRequest();
 		for( int i = 0; i < attempts; i++ ) {
+			// the signature carries its generation time, so a request resent for too long is signed again
+			if ( secure && System.currentTimeMillis() - signedAt > maxSignatureAge )
+				signRequest();
 			if ( establishTrust(timeout) )
 				return true;
 		}
@@ -186,58 +186,77 @@ public class TrustEstablishment {
 		this.psid = psid;
 	}
 	
+	public int getMaxSignatureAge() {
+		return maxSignatureAge;
+	}
+
+	/**
+	 * Sets how long in milliseconds a signed request is resent before it is signed again,
+	 * so that retries don't carry a stale generation time.
+	 */
+	public void setMaxSignatureAge(int maxSignatureAge) {
+		this.maxSignatureAge = maxSignatureAge;
+	}
+	
 	public CryptoProvider getCryptoProvider() {
 		return cryptoProvider;
 	}
 
+	/**
+	 * Sets provider used to sign requests and verify responses, a new one is created by default.
+	 * A provider is not assumed to be thread-safe, signing and parsing synchronize on it, so it can be
+	 * shared with other instances and with {@link TrustEstablishmentClient}.
+	 */
 	public void setCryptoProvider(CryptoProvider cryptoProvider) {
 		this.cryptoProvider = cryptoProvider;
+		this.msg1609p2 = null;
 	}
 
 	public byte[] getCertId8() {
 		return certId8;
 	}
 
-	private boolean establishTrust(int timeout) throws TrustEstablishmentException {
-		TemporaryID reqID = TemporaryIDHelper.toTemporaryID(requestID);
-		ServiceRequest request = destConnection != null ?
-				CVSampleMessageBuilder.buildServiceRequest(reqID, dialogID, destConnection, groupID) :
-				CVSampleMessageBuilder.buildServiceRequest(reqID, dialogID);
-		if ( verbose )
-			log.info("ServiceRequest\n" + request);
+	private void encodeRequest() throws TrustEstablishmentException {
+		encodedRequest = null;
+		requestBytes = null;
+		requestHash = null;
+		signedAt = 0;
+		codec = new TrustEstablishmentCodec(coder, destConnection, verbose);
+		TrustEstablishmentCodec.Request request = codec.encodeRequest(requestID, dialogID, groupID);
+		encodedRequest = request.bytes;
+		requestHash = request.hash;
 		
-		byte[] requestBytes = null;
-		byte[] requestHash = null;		
+		if ( encodedRequest != null && secure )
+			signRequest();
+		else
+			requestBytes = encodedRequest;
+	}
+	
+	private void signRequest() throws TrustEstablishmentException {
+		if ( encodedRequest == null )
+			return;
 		try {
-			MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM_NAME);
-			requestBytes =  CVSampleMessageBuilder.messageToEncodedBytes(request);
-			requestHash =  messageDigest.digest(requestBytes);
-		} catch (EncodeFailedException ex) {
-			throw new TrustEstablishmentException("Couldn't encode ServiceRequest message because encoding failed.", ex);
-		} catch (EncodeNotSupportedException ex) {
-			throw new TrustEstablishmentException("Couldn't encode ServiceRequest message because encoding is not supported.", ex);
-		} catch (NoSuchAlgorithmException ex) {
-			throw new TrustEstablishmentException(String.format("Couldn't instantiate digest algorithm %s.", DIGEST_ALGORITHM_NAME), ex );
+			assert(msg1609p2 != null);
+			// the provider may be shared with other threads, see setCryptoProvider
+			synchronized (cryptoProvider) {
+				requestBytes = msg1609p2.sign(encodedRequest);
+			}
+			signedAt = System.currentTimeMillis();
+		} catch (Exception ex) {
+			throw new TrustEstablishmentException("Couldn't create signed 1609.2 message. Reason: " + ex.getMessage(), ex);
 		}
-		
+	}
+	
+	private boolean establishTrust(int timeout) throws TrustEstablishmentException {
 		if ( requestBytes == null )
 			return false;
-		
-		if ( secure ) {
-			try {
-				assert(msg1609p2 != null);
-				requestBytes = msg1609p2.sign(requestBytes);
-			} catch (Exception ex) {
-				throw new TrustEstablishmentException("Couldn't create signed 1609.2 message. Reason: " + ex.getMessage(), ex);
-			}
-		}
 
 		DatagramSocket sock = null;
 		DatagramSocket sockReceive = null;
 	    try {
 	        DatagramPacket requestPacket = new DatagramPacket(requestBytes, requestBytes.length, hostAddress, sendToPort);
 	        
-	        byte[] responseBytes = new byte[MAX_PACKET_SIZE];
+	        byte[] responseBytes = new byte[TrustEstablishmentCodec.MAX_PACKET_SIZE];
 	        DatagramPacket responsePacket = new DatagramPacket(responseBytes, responseBytes.length);
 	        
 	        if ( verbose )
@@ -290,7 +309,10 @@ public class TrustEstablishment {
 		
 		if ( secure ) {
 			try {
-				IEEE1609p2Message response = IEEE1609p2Message.parse(resonseBytes, cryptoProvider);
+				IEEE1609p2Message response;
+				synchronized (cryptoProvider) {
+					response = IEEE1609p2Message.parse(resonseBytes, cryptoProvider);
+				}
 				assert(response != null);
 				Certificate cert = response.getCertificate();
 				assert(cert != null);
@@ -302,45 +324,14 @@ public class TrustEstablishment {
 			}
 		}
 
-		try {		
-			AbstractData pdu = J2735Util.decode(coder, resonseBytes);
-			if( pdu == null || !(pdu instanceof ServiceResponse )) {
-				log.warn(String.format("Unexpected response message of type '%s'\n", pdu != null ? pdu.getClass().getName() : "unknown"));
-				return false;
-			}
-			ServiceResponse response = (ServiceResponse)pdu;
-			if ( verbose )
-				log.info("ServiceResponse\n" + response);
-			long expectedDialogID = dialogID.longValue();
-			if ( expectedDialogID != dialogID.longValue() ) {
-				log.warn(String.format("Unexpected response dialog ID. Expected ID %d. Actual ID: %d\n",	expectedDialogID, response.getDialogID().longValue()));
-				return false;
-			}
-			int responseRequestID = TemporaryIDHelper.fromTemporaryID(response.getRequestID());
-			if ( requestID != responseRequestID ) {
-				log.warn(String.format("Unexpected ServiceResponse requestID. Expected ID %d. Actual ID: %d\n", requestID, responseRequestID));
-				return false;
-			}
-			DDateTime expiration = response.getExpiration();
-			if ( J2735Util.isExpired(expiration) ) {
-				log.warn(String.format("ServiceResponse message has expired. Expiration time: %s. Current time: %s.\n",
-						J2735Util.formatCalendar(J2735Util.DDateTimeToCalendar(expiration)), J2735Util.formatCalendar(GregorianCalendar.getInstance())));
-				return false;
-			}
-			byte[] hash = response.getHash().byteArrayValue();
-			if ( !Arrays.equals(requestHash, hash) ) {
-				log.warn("ServiceResponse message hash validation failed");
-				return false;
-			}
-			if ( response.hasServiceRegion() ) {
-				// add code to validate region
-			}
-			return true;
-		} catch (DecodeFailedException ex) {
-			log.error("Couldn't decode J2735 ASN.1 BER message because decoding failed", ex);
-		} catch (DecodeNotSupportedException ex) {
-			log.error("Couldn't decode J2735 ASN.1 BER message because decoding is not supported", ex);				
+		TrustEstablishmentCodec.Response response = codec.decodeResponse(resonseBytes);
+		if ( response == null )
+			return false;
+		String reason = TrustEstablishmentCodec.validate(response, dialogID.longValue(), requestID, requestHash);
+		if ( reason != null ) {
+			log.warn(reason);
+			return false;
 		}
-		return false;
+		return true;
 	}
-}
+}
\ No newline at end of file
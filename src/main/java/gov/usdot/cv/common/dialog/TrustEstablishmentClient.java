@@ -0,0 +1,661 @@
+package gov.usdot.cv.common.dialog;
+
+import gov.usdot.asn1.generated.j2735.semi.ConnectionPoint;
+import gov.usdot.asn1.generated.j2735.semi.GroupID;
+import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
+import gov.usdot.cv.common.asn1.ConnectionPointHelper;
+import gov.usdot.cv.security.cert.Certificate;
+import gov.usdot.cv.security.cert.CertificateManager;
+import gov.usdot.cv.security.crypto.CryptoProvider;
+import gov.usdot.cv.security.msg.IEEE1609p2Message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.oss.asn1.Coder;
+
+/**
+ * Runs many trust establishment handshakes concurrently.
+ * {@link TrustEstablishment} binds new sockets on fixed ports for every attempt and blocks on receive, so two
+ * handshakes from the same JVM collide. This client binds one channel per local port, shared by all of its
+ * handshakes and by other clients on the same port, and a receiver thread per channel hands every
+ * ServiceResponse to the handshake with the matching requestID. Each handshake is retried on its own timeout
+ * and completes a {@link Handshake} future, so thousands of handshakes can be in flight at once.
+ */
+public class TrustEstablishmentClient {
+
+	private static final Logger log = Logger.getLogger(TrustEstablishmentClient.class);
+
+	public static final int DEFAULT_ATTEMPTS = 3;
+	public static final int DEFAULT_TIMEOUT_MS = 4000;
+
+	/**
+	 * Notified when a handshake completes, fails or is cancelled
+	 */
+	public interface Listener {
+		void completed(Handshake handshake);
+	}
+
+	/**
+	 * Pending result of one handshake. {@link #get()} returns the 8 byte certificate id of the responder
+	 * for a secure handshake, or null for an unsecured one, and throws an ExecutionException with a
+	 * {@link TrustEstablishmentException} cause if trust couldn't be established.
+	 */
+	public static class Handshake implements Future<byte[]> {
+		private final TrustEstablishmentClient client;
+		private final int requestID;
+		private final SemiDialogID dialogID;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final List<Listener> listeners = new ArrayList<Listener>(1);
+		// guarded by this
+		private int attempt;
+		private boolean completed;
+		private byte[] encodedRequest;
+		private byte[] requestBytes;
+		private byte[] requestHash;
+		private long signedAt;
+		private volatile byte[] certId8;
+		private volatile TrustEstablishmentException exception;
+		private volatile boolean cancelled;
+
+		private Handshake(TrustEstablishmentClient client, int requestID, SemiDialogID dialogID) {
+			this.client = client;
+			this.requestID = requestID;
+			this.dialogID = dialogID;
+		}
+
+		public int getRequestID() {
+			return requestID;
+		}
+
+		/**
+		 * Calls the listener once the handshake is done, right away if it's done already.
+		 * The listener runs on the thread that completes the handshake and must not block.
+		 */
+		public void addListener(Listener listener) {
+			synchronized (this) {
+				if (!completed) {
+					listeners.add(listener);
+					return;
+				}
+			}
+			notify(listener);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!finish(null, null, true))
+				return false;
+			client.pending.remove(requestID, this);
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public byte[] get() throws InterruptedException, ExecutionException {
+			done.await();
+			return result();
+		}
+
+		@Override
+		public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit))
+				throw new TimeoutException(String.format("Trust establishment for requestID %d is still in progress", requestID));
+			return result();
+		}
+
+		private byte[] result() throws ExecutionException {
+			if (cancelled)
+				throw new CancellationException();
+			if (exception != null)
+				throw new ExecutionException(exception);
+			return certId8;
+		}
+
+		private boolean finish(byte[] certId8, TrustEstablishmentException exception, boolean cancelled) {
+			List<Listener> listeners;
+			synchronized (this) {
+				if (completed)
+					return false;
+				completed = true;
+				this.certId8 = certId8;
+				this.exception = exception;
+				this.cancelled = cancelled;
+				listeners = new ArrayList<Listener>(this.listeners);
+				this.listeners.clear();
+			}
+			done.countDown();
+			for (Listener listener : listeners)
+				notify(listener);
+			return true;
+		}
+
+		private void notify(Listener listener) {
+			try {
+				listener.completed(this);
+			} catch (Exception ex) {
+				log.error(String.format("Trust establishment listener failed for requestID %d", requestID), ex);
+			}
+		}
+	}
+
+	private final TrustEstablishmentCodec codec;
+	private final InetSocketAddress serverAddress;
+	private final int attempts;
+	private final int timeout;
+	private final boolean verbose;
+	private final boolean secure;
+	private final int maxSignatureAge;
+	private final CryptoProvider cryptoProvider;
+	private final IEEE1609p2Message msg1609p2;
+
+	private final ConcurrentHashMap<Integer,Handshake> pending = new ConcurrentHashMap<Integer,Handshake>();
+	private final AtomicInteger nextRequestID = new AtomicInteger(new Random().nextInt());
+	private final ScheduledThreadPoolExecutor timer;
+	private final SharedChannel sendChannel;
+	private final SharedChannel receiveChannel;
+	private volatile boolean closed;
+
+	private TrustEstablishmentClient(
+			TrustEstablishmentCodec codec,
+			InetAddress hostAddress,
+			int sendToPort,
+			int sendFromPort,
+			int receivePort,
+			int attempts,
+			int timeout,
+			boolean verbose,
+			boolean secure,
+			int maxSignatureAge,
+			CryptoProvider cryptoProvider,
+			int psid) throws TrustEstablishmentException {
+		this.codec = codec;
+		this.serverAddress = new InetSocketAddress(hostAddress, sendToPort);
+		this.attempts = attempts;
+		this.timeout = timeout;
+		this.verbose = verbose;
+		this.secure = secure;
+		this.maxSignatureAge = maxSignatureAge;
+		if (secure) {
+			this.cryptoProvider = cryptoProvider != null ? cryptoProvider : new CryptoProvider();
+			this.msg1609p2 = new IEEE1609p2Message(this.cryptoProvider);
+			this.msg1609p2.setPSID(psid);
+		} else {
+			this.cryptoProvider = cryptoProvider;
+			this.msg1609p2 = null;
+		}
+		this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TrustEstablishmentClient");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.timer.setRemoveOnCancelPolicy(true);
+		try {
+			this.receiveChannel = SharedChannel.acquire(receivePort, this);
+		} catch (IOException ex) {
+			timer.shutdownNow();
+			throw new TrustEstablishmentException(String.format("Couldn't bind trust establishment channel to port %d.", receivePort), ex);
+		}
+		try {
+			this.sendChannel = sendFromPort != receivePort ? SharedChannel.acquire(sendFromPort, null) : receiveChannel;
+		} catch (IOException ex) {
+			SharedChannel.release(receiveChannel, this);
+			timer.shutdownNow();
+			throw new TrustEstablishmentException(String.format("Couldn't bind trust establishment channel to port %d.", sendFromPort), ex);
+		}
+	}
+
+	/**
+	 * Starts a handshake with a requestID that is not in flight on this client
+	 */
+	public Handshake establishTrust(SemiDialogID dialogID, GroupID groupID) {
+		int requestID;
+		do {
+			requestID = nextRequestID.getAndIncrement();
+		} while (pending.containsKey(requestID));
+		return establishTrust(dialogID, groupID, requestID);
+	}
+
+	/**
+	 * Starts a handshake, the returned future fails right away if the requestID is already in flight
+	 */
+	public Handshake establishTrust(SemiDialogID dialogID, GroupID groupID, int requestID) {
+		Handshake handshake = new Handshake(this, requestID, dialogID);
+		if (closed) {
+			handshake.finish(null, new TrustEstablishmentException("Trust establishment client is closed."), false);
+			return handshake;
+		}
+		if (pending.putIfAbsent(requestID, handshake) != null) {
+			handshake.finish(null, new TrustEstablishmentException(String.format("Trust establishment for requestID %d is already in progress.", requestID)), false);
+			return handshake;
+		}
+		// close() may have gone over the pending handshakes between the check above and the put
+		if (closed) {
+			failClosed(handshake);
+			return handshake;
+		}
+		try {
+			encodeRequest(handshake, groupID);
+		} catch (TrustEstablishmentException ex) {
+			pending.remove(requestID, handshake);
+			handshake.finish(null, ex, false);
+			return handshake;
+		}
+		synchronized (handshake) {
+			send(handshake);
+		}
+		return handshake;
+	}
+
+	/**
+	 * @return number of handshakes in flight
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Fails all handshakes in flight and releases the channels
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		timer.shutdownNow();
+		SharedChannel.release(receiveChannel, this);
+		if (sendChannel != receiveChannel)
+			SharedChannel.release(sendChannel, null);
+		for (Handshake handshake : pending.values())
+			failClosed(handshake);
+	}
+
+	private void failClosed(Handshake handshake) {
+		pending.remove(handshake.requestID, handshake);
+		handshake.finish(null, new TrustEstablishmentException("Trust establishment client was closed."), false);
+	}
+
+	private void encodeRequest(Handshake handshake, GroupID groupID) throws TrustEstablishmentException {
+		TrustEstablishmentCodec.Request request = codec.encodeRequest(handshake.requestID, handshake.dialogID, groupID);
+		handshake.requestHash = request.hash;
+		handshake.encodedRequest = request.bytes;
+		byte[] requestBytes = request.bytes;
+
+		if ( secure )
+			sign(handshake);
+		else
+			handshake.requestBytes = requestBytes;
+	}
+
+	private void sign(Handshake handshake) throws TrustEstablishmentException {
+		try {
+			// the message holds signing state, and the provider is used by the receiver thread too
+			synchronized (cryptoProvider) {
+				handshake.requestBytes = msg1609p2.sign(handshake.encodedRequest);
+			}
+			handshake.signedAt = System.currentTimeMillis();
+		} catch (Exception ex) {
+			throw new TrustEstablishmentException("Couldn't create signed 1609.2 message. Reason: " + ex.getMessage(), ex);
+		}
+	}
+
+	// called with the handshake lock held
+	private void send(final Handshake handshake) {
+		if (handshake.completed)
+			return;
+		final int attempt = handshake.attempt;
+		// the signature carries its generation time, so a request resent for too long is signed again
+		if ( secure && System.currentTimeMillis() - handshake.signedAt > maxSignatureAge ) {
+			try {
+				sign(handshake);
+			} catch (TrustEstablishmentException ex) {
+				log.warn(String.format("Couldn't sign ServiceRequest %d again, resending it as is. Reason: %s", handshake.requestID, ex.getMessage()), ex);
+			}
+		}
+		try {
+			if ( verbose )
+				log.info(String.format("Sending %sServiceRequest %d to %s attempt %d", secure ? "signed " : "", handshake.requestID, serverAddress, attempt + 1));
+			sendChannel.channel.send(ByteBuffer.wrap(handshake.requestBytes), serverAddress);
+		} catch (IOException ex) {
+			log.warn(String.format("Couldn't send ServiceRequest %d. Reason: %s", handshake.requestID, ex.getMessage()), ex);
+		}
+		try {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					attemptFailed(handshake, attempt, "timed out");
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException ex) {
+			// timer was shut down by close, fail the handshake here in case close() didn't see it in pending
+			failClosed(handshake);
+		}
+	}
+
+	private void attemptFailed(Handshake handshake, int attempt, String reason) {
+		synchronized (handshake) {
+			if (handshake.completed || handshake.attempt != attempt)
+				return;
+			if ( verbose )
+				log.info(String.format("ServiceRequest %d attempt %d %s", handshake.requestID, attempt + 1, reason));
+			if (++handshake.attempt < attempts) {
+				send(handshake);
+				return;
+			}
+		}
+		pending.remove(handshake.requestID, handshake);
+		handshake.finish(null, new TrustEstablishmentException(String.format("Couldn't establish trust after %d attempts with %d ms timeout", attempts, timeout)), false);
+	}
+
+	/**
+	 * Matches a received packet to a handshake in flight
+	 * @return true if the packet was a response to one of this client's handshakes
+	 */
+	private boolean dispatch(byte[] responseBytes) {
+		byte[] certId8 = null;
+		if ( secure ) {
+			try {
+				IEEE1609p2Message response;
+				synchronized (cryptoProvider) {
+					response = IEEE1609p2Message.parse(responseBytes, cryptoProvider);
+				}
+				assert(response != null);
+				Certificate cert = response.getCertificate();
+				assert(cert != null);
+				certId8 = cert.getCertID8();
+				responseBytes = response.getPayload();
+				assert(CertificateManager.get(certId8) != null);
+			} catch (Exception ex) {
+				log.warn("Couldn't parse secure ServiceResponse. Reason: " + ex.getMessage(), ex);
+				return false;
+			}
+		}
+
+		TrustEstablishmentCodec.Response response = codec.decodeResponse(responseBytes);
+		if ( response == null )
+			return false;
+		Handshake handshake = pending.get(response.requestID);
+		if ( handshake == null )
+			return false;
+
+		int attempt;
+		byte[] requestHash;
+		synchronized (handshake) {
+			attempt = handshake.attempt;
+			requestHash = handshake.requestHash;
+		}
+		String reason = TrustEstablishmentCodec.validate(response, handshake.dialogID.longValue(), handshake.requestID, requestHash);
+		if ( reason != null ) {
+			log.warn(reason);
+			attemptFailed(handshake, attempt, "was rejected");
+			return true;
+		}
+		pending.remove(handshake.requestID, handshake);
+		handshake.finish(certId8, null, false);
+		return true;
+	}
+
+	/**
+	 * UDP channel bound to a local port and shared by all clients using that port.
+	 * Its receiver thread offers every packet to the registered clients until one claims it.
+	 */
+	private static final class SharedChannel implements Runnable {
+		// guarded by SharedChannel.class
+		private static final Map<Integer,SharedChannel> channels = new HashMap<Integer,SharedChannel>();
+
+		final int port;
+		final DatagramChannel channel;
+		final CopyOnWriteArrayList<TrustEstablishmentClient> clients = new CopyOnWriteArrayList<TrustEstablishmentClient>();
+		private final Thread receiver;
+		private int references;
+
+		private SharedChannel(int port) throws IOException {
+			this.port = port;
+			this.channel = DatagramChannel.open();
+			try {
+				this.channel.bind(new InetSocketAddress(port));
+			} catch (IOException ex) {
+				this.channel.close();
+				throw ex;
+			}
+			this.receiver = new Thread(this, "TrustEstablishmentReceiver-" + port);
+			this.receiver.setDaemon(true);
+			this.receiver.start();
+		}
+
+		static synchronized SharedChannel acquire(int port, TrustEstablishmentClient client) throws IOException {
+			SharedChannel shared = channels.get(port);
+			if (shared == null) {
+				shared = new SharedChannel(port);
+				channels.put(port, shared);
+			}
+			shared.references++;
+			if (client != null)
+				shared.clients.add(client);
+			return shared;
+		}
+
+		static void release(SharedChannel shared, TrustEstablishmentClient client) {
+			synchronized (SharedChannel.class) {
+				if (client != null)
+					shared.clients.remove(client);
+				if (--shared.references > 0)
+					return;
+				channels.remove(shared.port);
+				try {
+					shared.channel.close();
+				} catch (IOException ex) {
+					log.warn(String.format("Couldn't close trust establishment channel on port %d", shared.port), ex);
+				}
+			}
+			// the socket is only closed once the receiver thread leaves receive, wait for it so that the port is free
+			if (Thread.currentThread() == shared.receiver)
+				return;
+			try {
+				shared.receiver.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer buffer = ByteBuffer.allocate(TrustEstablishmentCodec.MAX_PACKET_SIZE);
+			while (channel.isOpen()) {
+				try {
+					buffer.clear();
+					if (channel.receive(buffer) == null)
+						continue;
+					buffer.flip();
+					byte[] responseBytes = new byte[buffer.remaining()];
+					buffer.get(responseBytes);
+					for (TrustEstablishmentClient client : clients) {
+						if (client.dispatch(responseBytes))
+							break;
+					}
+				} catch (ClosedChannelException ex) {
+					break;
+				} catch (IOException ex) {
+					log.warn(String.format("Couldn't receive on trust establishment channel on port %d. Reason: %s", port, ex.getMessage()), ex);
+				} catch (RuntimeException ex) {
+					log.error("Couldn't dispatch ServiceResponse", ex);
+				}
+			}
+		}
+	}
+
+	public static class Builder {
+		private Coder coder;
+		private InetAddress hostAddress;
+		private int sendToPort = -1;
+		private int sendFromPort = -1;
+		private InetAddress destAddress;
+		private int destPort = -1;
+		private int attempts = DEFAULT_ATTEMPTS;
+		private int timeout = DEFAULT_TIMEOUT_MS;
+		private boolean verbose = false;
+		private boolean secure = false;
+		private int maxSignatureAge = TrustEstablishment.DEFAULT_MAX_SIGNATURE_AGE;
+		private int psid = 0x2fe1;
+		private CryptoProvider cryptoProvider;
+		private TrustEstablishmentCodec codec;
+
+		public Builder setCoder(Coder coder) {
+			this.coder = coder;
+			return this;
+		}
+
+		public Builder setHost(String host) throws UnknownHostException {
+			this.hostAddress = InetAddress.getByName(host);
+			return this;
+		}
+
+		public Builder setHostAddress(InetAddress hostAddress) {
+			this.hostAddress = hostAddress;
+			return this;
+		}
+
+		public Builder setSendToPort(int sendToPort) {
+			this.sendToPort = sendToPort;
+			return this;
+		}
+
+		/**
+		 * Sets local port requests are sent from, the server port by default as in {@link TrustEstablishment}.
+		 */
+		public Builder setSendFromPort(int sendFromPort) {
+			this.sendFromPort = sendFromPort;
+			return this;
+		}
+
+		/**
+		 * Sets address the server should send data to after the handshake, responses are received on its port.
+		 */
+		public Builder setDestination(InetAddress destAddress, int destPort) {
+			this.destAddress = destAddress;
+			this.destPort = destPort;
+			return this;
+		}
+
+		/**
+		 * Sets number of requests sent per handshake before giving up.
+		 */
+		public Builder setAttempts(int attempts) {
+			this.attempts = attempts;
+			return this;
+		}
+
+		/**
+		 * Sets how long in milliseconds to wait for a response to each request.
+		 */
+		public Builder setTimeout(int timeout) {
+			this.timeout = timeout;
+			return this;
+		}
+
+		public Builder setVerbose(boolean verbose) {
+			this.verbose = verbose;
+			return this;
+		}
+
+		public Builder setSecure(boolean secure) {
+			this.secure = secure;
+			return this;
+		}
+
+		/**
+		 * Sets how long in milliseconds a signed request is resent before it is signed again,
+		 * so that retries don't carry a stale generation time.
+		 */
+		public Builder setMaxSignatureAge(int maxSignatureAge) {
+			this.maxSignatureAge = maxSignatureAge;
+			return this;
+		}
+
+		public Builder setPsid(int psid) {
+			this.psid = psid;
+			return this;
+		}
+
+		/**
+		 * Sets provider used to sign requests and verify responses, each client creates its own by default.
+		 * A provider is not assumed to be thread-safe, signing and parsing synchronize on it, so it can be
+		 * shared with other clients and with {@link TrustEstablishment}.
+		 */
+		public Builder setCryptoProvider(CryptoProvider cryptoProvider) {
+			this.cryptoProvider = cryptoProvider;
+			return this;
+		}
+
+		/**
+		 * Replaces the J2735 messages, for tests.
+		 */
+		Builder setCodec(TrustEstablishmentCodec codec) {
+			this.codec = codec;
+			return this;
+		}
+
+		public TrustEstablishmentClient build() throws TrustEstablishmentException {
+			if (this.coder == null && this.codec == null) {
+				throw new NullPointerException("Trust establishment coder is null.");
+			}
+			if (this.hostAddress == null || this.sendToPort < 0) {
+				throw new IllegalArgumentException("Trust establishment host and port are required.");
+			}
+			if (this.attempts < 1 || this.timeout < 1) {
+				throw new IllegalArgumentException("Trust establishment attempts and timeout must be positive.");
+			}
+			int sendFromPort = this.sendFromPort != -1 ? this.sendFromPort : this.sendToPort;
+
+			// same rules as TrustEstablishment for where the server sends responses
+			boolean haveDestIPAddress = destAddress != null && !destAddress.equals(hostAddress);
+			boolean haveDestPort = destPort != -1 && destPort != sendToPort;
+			ConnectionPoint destConnection = null;
+			int receivePort = sendFromPort != sendToPort ? sendToPort : sendFromPort;
+			if ( haveDestIPAddress || haveDestPort ) {
+				int port = haveDestPort ? destPort : sendToPort;
+				destConnection = haveDestIPAddress ?
+					ConnectionPointHelper.createConnectionPoint(destAddress, port) :
+					ConnectionPointHelper.createConnectionPoint(port);
+				receivePort = port;
+			}
+			TrustEstablishmentCodec codec = this.codec != null ? this.codec : new TrustEstablishmentCodec(coder, destConnection, verbose);
+			return new TrustEstablishmentClient(codec, hostAddress, sendToPort, sendFromPort,
+					receivePort, attempts, timeout, verbose, secure, maxSignatureAge, cryptoProvider, psid);
+		}
+	}
+}
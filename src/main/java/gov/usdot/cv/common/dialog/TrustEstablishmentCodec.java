@@ -0,0 +1,162 @@
+package gov.usdot.cv.common.dialog;
+
+import gov.usdot.asn1.generated.j2735.dsrc.DDateTime;
+import gov.usdot.asn1.generated.j2735.dsrc.TemporaryID;
+import gov.usdot.asn1.generated.j2735.semi.ConnectionPoint;
+import gov.usdot.asn1.generated.j2735.semi.GroupID;
+import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
+import gov.usdot.asn1.generated.j2735.semi.ServiceRequest;
+import gov.usdot.asn1.generated.j2735.semi.ServiceResponse;
+import gov.usdot.asn1.j2735.CVSampleMessageBuilder;
+import gov.usdot.asn1.j2735.J2735Util;
+import gov.usdot.cv.common.asn1.TemporaryIDHelper;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+import com.oss.asn1.AbstractData;
+import com.oss.asn1.Coder;
+import com.oss.asn1.DecodeFailedException;
+import com.oss.asn1.DecodeNotSupportedException;
+import com.oss.asn1.EncodeFailedException;
+import com.oss.asn1.EncodeNotSupportedException;
+
+/**
+ * Encodes the ServiceRequest and decodes and checks the ServiceResponse of a trust establishment handshake,
+ * for {@link TrustEstablishment} and {@link TrustEstablishmentClient}. Signing and verifying 1609.2 messages
+ * is left to the callers, which own the crypto provider.
+ */
+class TrustEstablishmentCodec {
+
+	private static final Logger log = Logger.getLogger(TrustEstablishmentCodec.class);
+
+	static final String DIGEST_ALGORITHM_NAME = "SHA-256";
+	static final int MAX_PACKET_SIZE = 2048;
+
+	// digest() resets the digest, so each thread can keep reusing its own
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>();
+
+	/**
+	 * Encoded ServiceRequest and its hash, which the ServiceResponse has to echo
+	 */
+	static final class Request {
+		final byte[] bytes;
+		final byte[] hash;
+
+		Request(byte[] bytes, byte[] hash) {
+			this.bytes = bytes;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * ServiceResponse fields a handshake checks
+	 */
+	static final class Response {
+		final int requestID;
+		final long dialogID;
+		final boolean expired;
+		final String expiration;
+		final byte[] hash;
+
+		Response(int requestID, long dialogID, boolean expired, String expiration, byte[] hash) {
+			this.requestID = requestID;
+			this.dialogID = dialogID;
+			this.expired = expired;
+			this.expiration = expiration;
+			this.hash = hash;
+		}
+	}
+
+	private final Coder coder;
+	private final ConnectionPoint destConnection;
+	private final boolean verbose;
+
+	/**
+	 * @param destConnection where the server should send data after the handshake, or null
+	 */
+	TrustEstablishmentCodec(Coder coder, ConnectionPoint destConnection, boolean verbose) {
+		this.coder = coder;
+		this.destConnection = destConnection;
+		this.verbose = verbose;
+	}
+
+	/**
+	 * @return SHA-256 digest owned by the calling thread
+	 */
+	static MessageDigest getDigest() throws NoSuchAlgorithmException {
+		MessageDigest digest = digests.get();
+		if ( digest == null ) {
+			digest = MessageDigest.getInstance(DIGEST_ALGORITHM_NAME);
+			digests.set(digest);
+		}
+		return digest;
+	}
+
+	Request encodeRequest(int requestID, SemiDialogID dialogID, GroupID groupID) throws TrustEstablishmentException {
+		TemporaryID reqID = TemporaryIDHelper.toTemporaryID(requestID);
+		ServiceRequest request = destConnection != null ?
+				CVSampleMessageBuilder.buildServiceRequest(reqID, dialogID, destConnection, groupID) :
+				CVSampleMessageBuilder.buildServiceRequest(reqID, dialogID);
+		if ( verbose )
+			log.info("ServiceRequest\n" + request);
+
+		try {
+			byte[] requestBytes = CVSampleMessageBuilder.messageToEncodedBytes(request);
+			return new Request(requestBytes, getDigest().digest(requestBytes));
+		} catch (EncodeFailedException ex) {
+			throw new TrustEstablishmentException("Couldn't encode ServiceRequest message because encoding failed.", ex);
+		} catch (EncodeNotSupportedException ex) {
+			throw new TrustEstablishmentException("Couldn't encode ServiceRequest message because encoding is not supported.", ex);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new TrustEstablishmentException(String.format("Couldn't instantiate digest algorithm %s.", DIGEST_ALGORITHM_NAME), ex );
+		}
+	}
+
+	/**
+	 * @param responseBytes unsigned response payload
+	 * @return the response, or null if the bytes are not a ServiceResponse
+	 */
+	Response decodeResponse(byte[] responseBytes) {
+		try {
+			AbstractData pdu = J2735Util.decode(coder, responseBytes);
+			if( pdu == null || !(pdu instanceof ServiceResponse )) {
+				log.warn(String.format("Unexpected response message of type '%s'", pdu != null ? pdu.getClass().getName() : "unknown"));
+				return null;
+			}
+			ServiceResponse response = (ServiceResponse)pdu;
+			if ( verbose )
+				log.info("ServiceResponse\n" + response);
+			DDateTime expiration = response.getExpiration();
+			return new Response(
+					TemporaryIDHelper.fromTemporaryID(response.getRequestID()),
+					response.getDialogID().longValue(),
+					J2735Util.isExpired(expiration),
+					J2735Util.formatCalendar(J2735Util.DDateTimeToCalendar(expiration)),
+					response.getHash().byteArrayValue());
+		} catch (DecodeFailedException ex) {
+			log.error("Couldn't decode J2735 ASN.1 BER message because decoding failed", ex);
+		} catch (DecodeNotSupportedException ex) {
+			log.error("Couldn't decode J2735 ASN.1 BER message because decoding is not supported", ex);
+		}
+		return null;
+	}
+
+	/**
+	 * @return reason the response doesn't answer the request, or null if it does
+	 */
+	static String validate(Response response, long dialogID, int requestID, byte[] requestHash) {
+		if ( dialogID != response.dialogID )
+			return String.format("Unexpected response dialog ID. Expected ID %d. Actual ID: %d", dialogID, response.dialogID);
+		if ( requestID != response.requestID )
+			return String.format("Unexpected ServiceResponse requestID. Expected ID %d. Actual ID: %d", requestID, response.requestID);
+		if ( response.expired )
+			return String.format("ServiceResponse message has expired. Expiration time: %s.", response.expiration);
+		if ( !Arrays.equals(requestHash, response.hash) )
+			return "ServiceResponse message hash validation failed";
+		return null;
+	}
+}
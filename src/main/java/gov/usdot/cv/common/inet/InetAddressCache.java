@@ -0,0 +1,163 @@
+package gov.usdot.cv.common.inet;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of host name to address resolutions with a time to live so that senders don't hit
+ * the resolver for every packet while still picking up DNS changes. Failed resolutions are not cached.
+ * When the cache is full the host name resolved longest ago is evicted, which with a single time to live
+ * is also the one that expires first. Safe for use by multiple threads.
+ */
+public class InetAddressCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1024;
+	public static final long DEFAULT_TTL_MS = 60*1000;
+	
+	// points kept per host name by getPoint, a power of two
+	private static final int POINTS_PER_HOST = 4;
+
+	private final int maxSize;
+	private final long ttlMs;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	// entries in the order they were added, including ones since replaced or removed, guarded by itself
+	private final ArrayDeque<Entry> order = new ArrayDeque<Entry>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public InetAddressCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MS);
+	}
+
+	/**
+	 * @param maxSize maximum number of host names to keep
+	 * @param ttlMs how long in milliseconds a resolved address is used before the host name is resolved again
+	 */
+	public InetAddressCache(int maxSize, long ttlMs) {
+		if ( maxSize < 1 )
+			throw new IllegalArgumentException("Address cache size must be positive");
+		if ( ttlMs < 0 )
+			throw new IllegalArgumentException("Address cache time to live can not be negative");
+		this.maxSize = maxSize;
+		this.ttlMs = ttlMs;
+	}
+
+	/**
+	 * Returns the address for the host from the cache or resolves it with {@link InetAddress#getByName(String)}
+	 * @param host host name or address literal
+	 * @return resolved address
+	 * @throws UnknownHostException if the host couldn't be resolved
+	 */
+	public InetAddress getByName(String host) throws UnknownHostException {
+		if ( host == null )
+			return InetAddress.getByName(host);
+		return getEntry(host).address;
+	}
+	
+	/**
+	 * Returns a point for the host's address and the port. Points are reused for as long as the address is cached,
+	 * so senders neither build a point nor resolve its socket address for every packet.
+	 * @param host host name or address literal
+	 * @param port destination port
+	 * @return point with the resolved address
+	 * @throws UnknownHostException if the host couldn't be resolved
+	 */
+	public InetPoint getPoint(String host, int port) throws UnknownHostException {
+		if ( host == null )
+			return new InetPoint(InetAddress.getByName(host), port);
+		Entry entry = getEntry(host);
+		final int slot = port & (POINTS_PER_HOST - 1);
+		InetPoint point = entry.points[slot];
+		if ( point == null || point.port != port ) {
+			// racing threads may each build a point, either one is fine to keep
+			point = new InetPoint(entry.address, port);
+			entry.points[slot] = point;
+		}
+		return point;
+	}
+
+	/**
+	 * Removes the host from the cache so that it is resolved on next use
+	 */
+	public void invalidate(String host) {
+		if ( host != null )
+			entries.remove(host);
+	}
+
+	public void clear() {
+		synchronized (order) {
+			entries.clear();
+			order.clear();
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	private Entry getEntry(String host) throws UnknownHostException {
+		final long now = System.currentTimeMillis();
+		Entry entry = entries.get(host);
+		if ( entry != null && entry.expiresAt > now ) {
+			hits.incrementAndGet();
+			return entry;
+		}
+		misses.incrementAndGet();
+		entry = new Entry(host, InetAddress.getByName(host), now + ttlMs);
+		entries.put(host, entry);
+		added(entry);
+		return entry;
+	}
+	
+	/**
+	 * Evicts the oldest entries once there are more than maxSize of them. Entries that have been replaced or removed
+	 * are skipped when they come up, and purged once they make up half the queue, so each call is amortized constant time.
+	 */
+	private void added(Entry entry) {
+		synchronized (order) {
+			order.addLast(entry);
+			if ( order.size() > 2 * maxSize ) {
+				for ( int i = order.size(); i > 0; i-- ) {
+					Entry oldest = order.pollFirst();
+					if ( entries.get(oldest.host) == oldest )
+						order.addLast(oldest);
+				}
+			}
+			Entry oldest;
+			while ( entries.size() > maxSize && (oldest = order.pollFirst()) != null ) {
+				if ( entries.remove(oldest.host, oldest) )
+					evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private static final class Entry {
+		final String host;
+		final InetAddress address;
+		final long expiresAt;
+		final InetPoint[] points = new InetPoint[POINTS_PER_HOST];
+
+		Entry(String host, InetAddress address, long expiresAt) {
+			this.host = host;
+			this.address = address;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -5,16 +5,17 @@ import gov.usdot.cv.common.util.CrcCccitt;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Arrays;
 
 import org.apache.commons.codec.binary.Hex;
 
 public class InetPacket {
 	
-	private static final int magicNumber = 982451653; 
-	private static final int minBundleLength = 4 + 4 + 1 + 4 + 2; // magic + port + type + ip4 + CRC
+	static final int magicNumber = 982451653; 
+	static final int minBundleLength = 4 + 4 + 1 + 4 + 2; // magic + port + type + ip4 + CRC
+	static final int maxHeaderLength = minBundleLength - 4 + 16;  // magic + port + type + ip6 + CRC
 
 	private InetPoint point;
 	private byte[] payload;
@@ -24,7 +25,7 @@ public class InetPacket {
 	}
 	
 	public InetPacket(InetAddress ipAddress, int port, byte[] payload) {
-		this(new InetPoint(ipAddress.getAddress(), port), payload);
+		this(new InetPoint(ipAddress, port), payload);
 	}
 	
 	public InetPacket(InetPoint point, byte[] payload) {
@@ -34,7 +35,7 @@ public class InetPacket {
 	}
 	
 	public InetPacket(DatagramPacket packet) {
-		point = new InetPoint(packet.getAddress().getAddress(), packet.getPort());
+		point = new InetPoint(packet.getAddress(), packet.getPort());
 		byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getLength());
 		if ( parseBundle(data) == false )
 			payload = data;
@@ -56,21 +57,63 @@ public class InetPacket {
 	public byte[] getBundle() {
 		if ( point == null )
 			return payload;
+		byte [] bundle = new byte[bundleLength()];
+		writeBundle(ByteBuffer.wrap(bundle), point, payload);
+		return bundle;
+	}
+	
+	/**
+	 * @return length in bytes of the bundle returned by {@link #getBundle()} and written by {@link #writeBundle(ByteBuffer)}
+	 */
+	public int bundleLength() {
+		return bundleLength(point, payload);
+	}
+	
+	/**
+	 * Writes the bundle at the current position of the destination buffer and advances the position past it.
+	 * Produces the same bytes as {@link #getBundle()} without allocating, so the bundle can be encoded straight
+	 * into a pooled or direct buffer. The header is always written in network byte order.
+	 * @param dst destination buffer
+	 * @return number of bytes written
+	 * @throws BufferOverflowException if there are fewer than {@link #bundleLength()} bytes remaining in the buffer
+	 */
+	public int writeBundle(ByteBuffer dst) {
+		return writeBundle(dst, point, payload);
+	}
+	
+	static int bundleLength(InetPoint point, byte[] payload) {
 		int payloadLength = payload != null ? payload.length : 0;
-		final int header_length = minBundleLength - 4 + point.address.length;
-		byte [] bundle = new byte[header_length + payloadLength];
-		ByteBuffer buffer = ByteBuffer.allocate(header_length).order(ByteOrder.BIG_ENDIAN);
-		buffer.putInt(magicNumber);
-		buffer.putInt(point.port);
-		buffer.put((byte)(point.address.length == 16 ? 1 : 0));
-		buffer.put(point.address);
-		byte[] header = buffer.array();
-		assert(header.length == header_length);
-		CrcCccitt.setMsgCRC(header);
-		System.arraycopy(header, 0, bundle, 0, header_length);
+		return point != null ? minBundleLength - 4 + addressLength(point) + payloadLength : payloadLength;
+	}
+	
+	static int writeBundle(ByteBuffer dst, InetPoint point, byte[] payload) {
+		final int length = bundleLength(point, payload);
+		if ( dst.remaining() < length )
+			throw new BufferOverflowException();
+		if ( point != null ) {
+			final int start = dst.position();
+			final int header_length = minBundleLength - 4 + addressLength(point);
+			putInt(dst, magicNumber);
+			putInt(dst, point.port);
+			dst.put((byte)(point.isIPv6Address() ? 1 : 0));
+			point.putAddress(dst);
+			dst.position(start + header_length);
+			CrcCccitt.setBufferMsgCRC(dst, start, header_length);
+		}
 		if ( payload != null )
-			System.arraycopy(payload, 0, bundle, header_length, payloadLength);
-		return bundle;
+			dst.put(payload);
+		return length;
+	}
+	
+	private static int addressLength(InetPoint point) {
+		return point.isIPv6Address() ? 16 : 4;
+	}
+	
+	private static void putInt(ByteBuffer dst, int value) {
+		dst.put((byte)(value >>> 24));
+		dst.put((byte)(value >>> 16));
+		dst.put((byte)(value >>> 8));
+		dst.put((byte)value);
 	}
 	
 	private boolean parseBundle(byte[] bundle) {
@@ -90,7 +133,7 @@ public class InetPacket {
 		byte[] address = new byte[addressLength];
 		buffer.get(address,0,addressLength);
 		buffer.getShort();
-		point = new InetPoint(address, port, true);
+		point = new InetPoint(address, port, true, false);
 		int payloadLength = bundle.length - minBundleLength + 4 - addressLength;
 		payload = new byte[payloadLength];
 		buffer.get(payload,0,payloadLength);
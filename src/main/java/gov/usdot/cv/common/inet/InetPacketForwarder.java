@@ -0,0 +1,496 @@
+package gov.usdot.cv.common.inet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reusable non-blocking UDP forwarder engine.
+ *
+ * A single selector thread receives datagrams on one or more IPv4/IPv6 channels into a fixed pool of direct buffers
+ * and hands them to worker threads. Datagrams that are bundles (see {@link InetPacket}) are treated as outbound and
+ * their payload is sent to the destination in the bundle. Any other datagram is treated as inbound and is forwarded
+ * to the forward point as a bundle that carries the sender's address and port. The bundle header is written in front
+ * of the received payload in the same buffer so neither direction copies the payload.
+ *
+ * When all buffers are in use the selector stops reading until workers release some, leaving excess datagrams in the
+ * socket receive buffers (backpressure) rather than growing memory.
+ */
+public class InetPacketForwarder implements Closeable {
+
+	private static final Logger log = Logger.getLogger(InetPacketForwarder.class);
+
+	// room in front of the received payload for the largest (IPv6) bundle header
+	private static final int HEADER_ROOM = InetPacket.maxHeaderLength;
+	private static final int MAX_RECEIVES_PER_SELECT = 64;
+	private static final long WORKER_POLL_MS = 200;
+
+	private final int listenPort;
+	private final List<InetAddress> bindAddresses;
+	private final InetPoint forwardPoint;
+	private final int workerThreads;
+	private final int bufferPoolSize;
+	private final int maxPacketSize;
+	// replaced on restart if the forwarder created it, threads read it after start() publishes it
+	private volatile InetPacketSender sender;
+	private final boolean ownSender;
+
+	private final BlockingQueue<Datagram> freeDatagrams;
+	private final BlockingQueue<Datagram> receivedDatagrams;
+	private final List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private Selector selector;
+	private volatile boolean running;
+	private volatile boolean paused;
+
+	private final AtomicLong packetsReceived = new AtomicLong();
+	private final AtomicLong packetsForwarded = new AtomicLong();
+	private final AtomicLong packetsSent = new AtomicLong();
+	private final AtomicLong packetsDropped = new AtomicLong();
+	private final AtomicLong packetsFailed = new AtomicLong();
+	private final AtomicLong pauses = new AtomicLong();
+
+	private InetPacketForwarder(
+			int listenPort,
+			List<InetAddress> bindAddresses,
+			InetPoint forwardPoint,
+			int workerThreads,
+			int bufferPoolSize,
+			int maxPacketSize,
+			InetPacketSender sender) {
+		this.listenPort = listenPort;
+		this.bindAddresses = bindAddresses;
+		this.forwardPoint = forwardPoint;
+		this.workerThreads = workerThreads;
+		this.bufferPoolSize = bufferPoolSize;
+		this.maxPacketSize = maxPacketSize;
+		this.ownSender = sender == null;
+		this.sender = sender != null ? sender : new InetPacketSender();
+		this.freeDatagrams = new ArrayBlockingQueue<Datagram>(bufferPoolSize);
+		this.receivedDatagrams = new ArrayBlockingQueue<Datagram>(bufferPoolSize);
+	}
+
+	/**
+	 * Opens and binds the listening channels and starts the selector and worker threads.
+	 * A forwarder can be started again after {@link #close()}; if it created its own sender it creates a new one.
+	 * @throws InetPacketException if a channel couldn't be opened or bound, or the sender given to the builder has been closed
+	 */
+	public synchronized void start() throws InetPacketException {
+		if ( running )
+			return;
+		if ( sender.isClosed() ) {
+			if ( !ownSender )
+				throw new InetPacketException("Couldn't start forwarder. Reason: Sender has been closed.");
+			sender = new InetPacketSender();
+		}
+		try {
+			selector = Selector.open();
+			if ( bindAddresses.isEmpty() ) {
+				// a channel opened without protocol family is dual stack where IPv6 is available
+				openChannel(DatagramChannel.open(), new InetSocketAddress(listenPort));
+			} else {
+				for ( InetAddress address : bindAddresses ) {
+					DatagramChannel channel = DatagramChannel.open(address.getAddress().length == 16 ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+					openChannel(channel, new InetSocketAddress(address, listenPort));
+				}
+			}
+		} catch (IOException ex) {
+			closeChannels();
+			throw new InetPacketException(String.format("Couldn't start forwarder on port %d. Reason: %s", listenPort, ex.getMessage()), ex);
+		}
+		freeDatagrams.clear();
+		receivedDatagrams.clear();
+		for ( int i = 0; i < bufferPoolSize; i++ )
+			freeDatagrams.add(new Datagram(HEADER_ROOM + maxPacketSize));
+		running = true;
+		paused = false;
+		startThread("selector", new Runnable() {
+			public void run() {
+				runSelector();
+			}
+		});
+		for ( int i = 0; i < workerThreads; i++ ) {
+			startThread("worker-" + i, new Runnable() {
+				public void run() {
+					runWorker();
+				}
+			});
+		}
+		log.info(String.format("Started forwarder on %s with %d worker threads", getLocalAddresses(), workerThreads));
+	}
+
+	/**
+	 * Stops all threads and closes the listening channels and the sender the forwarder created.
+	 * Worker threads are interrupted and joined before anything is closed, so no datagram is processed afterwards.
+	 * Datagrams that have not been processed yet are discarded, and a worker interrupted in the middle of a send
+	 * counts that datagram as failed.
+	 */
+	@Override
+	public void close() {
+		List<Thread> stopping;
+		synchronized(this) {
+			if ( !running )
+				return;
+			running = false;
+			stopping = new ArrayList<Thread>(threads);
+			threads.clear();
+			selector.wakeup();
+		}
+		final Thread current = Thread.currentThread();
+		for ( Thread thread : stopping ) {
+			if ( thread != current )
+				thread.interrupt();
+		}
+		boolean interrupted = false;
+		for ( Thread thread : stopping ) {
+			while ( thread != current && thread.isAlive() ) {
+				try {
+					thread.join();
+				} catch (InterruptedException ex) {
+					// finish stopping, the forwarder must not process datagrams once close() returns
+					interrupted = true;
+				}
+			}
+		}
+		if ( interrupted )
+			current.interrupt();
+		synchronized(this) {
+			closeChannels();
+			if ( ownSender )
+				sender.close();
+		}
+		log.info("Stopped forwarder");
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return addresses the forwarder is listening on, useful when the listen port is 0
+	 */
+	public synchronized List<InetSocketAddress> getLocalAddresses() {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(channels.size());
+		for ( DatagramChannel channel : channels ) {
+			try {
+				addresses.add((InetSocketAddress)channel.getLocalAddress());
+			} catch (IOException ignore) {
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * @return number of datagrams received on all channels
+	 */
+	public long getPacketsReceived() {
+		return packetsReceived.get();
+	}
+
+	/**
+	 * @return number of inbound datagrams forwarded to the forward point
+	 */
+	public long getPacketsForwarded() {
+		return packetsForwarded.get();
+	}
+
+	/**
+	 * @return number of outbound bundles whose payload was sent to the destination
+	 */
+	public long getPacketsSent() {
+		return packetsSent.get();
+	}
+
+	/**
+	 * @return number of inbound datagrams dropped because the forward point is not defined
+	 */
+	public long getPacketsDropped() {
+		return packetsDropped.get();
+	}
+
+	/**
+	 * @return number of datagrams that couldn't be forwarded or sent
+	 */
+	public long getPacketsFailed() {
+		return packetsFailed.get();
+	}
+
+	/**
+	 * @return number of times reading was paused because all receive buffers were in use
+	 */
+	public long getPauses() {
+		return pauses.get();
+	}
+
+	/**
+	 * @return number of received datagrams waiting for a worker
+	 */
+	public int getQueueDepth() {
+		return receivedDatagrams.size();
+	}
+
+	private void openChannel(DatagramChannel channel, InetSocketAddress address) throws IOException {
+		channels.add(channel);
+		channel.bind(address);
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	private void closeChannels() {
+		for ( DatagramChannel channel : channels ) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				log.warn("Couldn't close datagram channel", ex);
+			}
+		}
+		channels.clear();
+		if ( selector != null ) {
+			try {
+				selector.close();
+			} catch (IOException ex) {
+				log.warn("Couldn't close selector", ex);
+			}
+			selector = null;
+		}
+	}
+
+	private void startThread(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, getClass().getSimpleName() + "-" + listenPort + "-" + name);
+		threads.add(thread);
+		thread.start();
+	}
+
+	private void runSelector() {
+		final Selector selector = this.selector;
+		final InetPacketView view = workerThreads == 0 ? new InetPacketView() : null;
+		try {
+			while ( running ) {
+				selector.select(WORKER_POLL_MS);
+				if ( paused && !freeDatagrams.isEmpty() )
+					setReading(selector, true);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while ( keys.hasNext() ) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if ( key.isValid() && key.isReadable() )
+						receive((DatagramChannel)key.channel(), selector, view);
+				}
+			}
+		} catch (ClosedSelectorException ex) {
+			// closed while stopping
+		} catch (IOException ex) {
+			// a receive interrupted by close() closes its channel
+			if ( running )
+				log.error("Forwarder selector failed", ex);
+		}
+	}
+
+	private void receive(DatagramChannel channel, Selector selector, InetPacketView view) throws IOException {
+		for ( int i = 0; i < MAX_RECEIVES_PER_SELECT; i++ ) {
+			Datagram datagram = freeDatagrams.poll();
+			if ( datagram == null ) {
+				setReading(selector, false);
+				// a worker may have released a buffer before it could see the pause
+				if ( !freeDatagrams.isEmpty() )
+					selector.wakeup();
+				return;
+			}
+			ByteBuffer buffer = datagram.buffer;
+			buffer.clear();
+			buffer.position(HEADER_ROOM);
+			SocketAddress source = channel.receive(buffer);
+			if ( source == null ) {
+				freeDatagrams.offer(datagram);
+				return;
+			}
+			buffer.flip();
+			buffer.position(HEADER_ROOM);
+			datagram.source = (InetSocketAddress)source;
+			packetsReceived.incrementAndGet();
+			if ( view != null ) {
+				process(datagram, view);
+			} else {
+				// can't fail, there are never more received datagrams than buffers in the pool
+				receivedDatagrams.offer(datagram);
+			}
+		}
+	}
+
+	private void setReading(Selector selector, boolean reading) {
+		paused = !reading;
+		if ( !reading )
+			pauses.incrementAndGet();
+		for ( SelectionKey key : selector.keys() ) {
+			if ( key.isValid() )
+				key.interestOps(reading ? SelectionKey.OP_READ : 0);
+		}
+	}
+
+	private void runWorker() {
+		final InetPacketView view = new InetPacketView();
+		while ( running ) {
+			Datagram datagram;
+			try {
+				datagram = receivedDatagrams.poll(WORKER_POLL_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				break;
+			}
+			if ( datagram != null )
+				process(datagram, view);
+		}
+	}
+
+	private void process(Datagram datagram, InetPacketView view) {
+		final ByteBuffer buffer = datagram.buffer;
+		try {
+			view.wrap(buffer, datagram.source);
+			if ( view.isBundle() ) {
+				sender.send(view.getPoint(), view.getPayload());
+				packetsSent.incrementAndGet();
+			} else if ( forwardPoint != null ) {
+				InetPoint source = view.getPoint();
+				int header_length = InetPacket.bundleLength(source, null);
+				buffer.position(HEADER_ROOM - header_length);
+				InetPacket.writeBundle(buffer, source, null);
+				buffer.position(HEADER_ROOM - header_length);
+				sender.send(forwardPoint, buffer);
+				packetsForwarded.incrementAndGet();
+			} else {
+				packetsDropped.incrementAndGet();
+			}
+		} catch (InetPacketException ex) {
+			packetsFailed.incrementAndGet();
+			log.warn(String.format("Couldn't forward packet from %s. Reason: %s", datagram.source, ex.getMessage()));
+		} finally {
+			release(datagram);
+		}
+	}
+
+	private void release(Datagram datagram) {
+		datagram.source = null;
+		freeDatagrams.offer(datagram);
+		if ( paused ) {
+			Selector selector = this.selector;
+			if ( selector != null )
+				selector.wakeup();
+		}
+	}
+
+	/**
+	 * Pooled receive buffer and the address the datagram in it came from
+	 */
+	private static final class Datagram {
+		final ByteBuffer buffer;
+		InetSocketAddress source;
+
+		Datagram(int capacity) {
+			buffer = ByteBuffer.allocateDirect(capacity);
+		}
+	}
+
+	public static class Builder {
+		private int listenPort = -1;
+		private List<InetAddress> bindAddresses = new ArrayList<InetAddress>();
+		private InetPoint forwardPoint;
+		private int workerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		private int bufferPoolSize = 256;
+		private int maxPacketSize = 65535;
+		private InetPacketSender sender;
+
+		/**
+		 * @param listenPort port to receive packets on, 0 for an ephemeral port
+		 */
+		public Builder setListenPort(int listenPort) {
+			this.listenPort = listenPort;
+			return this;
+		}
+
+		/**
+		 * Adds a local address to listen on. By default the forwarder listens on a single dual stack wildcard channel.
+		 * Add both an IPv4 and an IPv6 address to use separate channels for each protocol.
+		 */
+		public Builder addBindAddress(InetAddress bindAddress) {
+			if ( bindAddress != null )
+				this.bindAddresses.add(bindAddress);
+			return this;
+		}
+
+		/**
+		 * @param forwardPoint where inbound client packets are forwarded to, typically Transport
+		 */
+		public Builder setForwardPoint(InetPoint forwardPoint) {
+			this.forwardPoint = forwardPoint;
+			return this;
+		}
+
+		/**
+		 * @param workerThreads number of threads processing received packets, 0 to process on the selector thread
+		 */
+		public Builder setWorkerThreads(int workerThreads) {
+			this.workerThreads = workerThreads;
+			return this;
+		}
+
+		/**
+		 * @param bufferPoolSize number of receive buffers, bounds the number of packets queued for the workers
+		 */
+		public Builder setBufferPoolSize(int bufferPoolSize) {
+			this.bufferPoolSize = bufferPoolSize;
+			return this;
+		}
+
+		/**
+		 * @param maxPacketSize largest datagram expected, longer datagrams are truncated
+		 */
+		public Builder setMaxPacketSize(int maxPacketSize) {
+			this.maxPacketSize = maxPacketSize;
+			return this;
+		}
+
+		/**
+		 * @param sender sender to send and forward packets through, by default the forwarder creates and owns one
+		 */
+		public Builder setSender(InetPacketSender sender) {
+			this.sender = sender;
+			return this;
+		}
+
+		public InetPacketForwarder build() {
+			if ( this.listenPort < 0 || this.listenPort > 65535 )
+				throw new IllegalArgumentException("Forwarder listen port is not valid.");
+			if ( this.workerThreads < 0 )
+				throw new IllegalArgumentException("Forwarder worker thread count can not be negative.");
+			if ( this.bufferPoolSize < 1 )
+				throw new IllegalArgumentException("Forwarder buffer pool size must be positive.");
+			if ( this.maxPacketSize < 1 || this.maxPacketSize > 65535 )
+				throw new IllegalArgumentException("Forwarder max packet size is not valid.");
+			return new InetPacketForwarder(
+					this.listenPort,
+					Collections.unmodifiableList(new ArrayList<InetAddress>(this.bindAddresses)),
+					this.forwardPoint,
+					this.workerThreads,
+					this.bufferPoolSize,
+					this.maxPacketSize,
+					this.sender);
+		}
+	}
+}
@@ -1,19 +1,34 @@
 package gov.usdot.cv.common.inet;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 /**
- * Sender/Forwarder helper class for use by Forwarder, Transport, and Data Sink that need to send packets around
+ * Sender/Forwarder helper class for use by Forwarder, Transport, and Data Sink that need to send packets around.
+ * Packets are sent through a small pool of long-lived datagram channels that is opened on first use and
+ * shared by all threads using this instance. Call {@link #close()} to release the channels.
  */
-public class InetPacketSender {
+public class InetPacketSender implements Closeable {
 	
 	private static final Logger log = Logger.getLogger(InetPacketSender.class);
-
+	
+	private static final int DEFAULT_CHANNEL_POOL_SIZE = 4;
+	private static final int BATCH_BUFFER_SIZE = 128*1024;
+	
 	/**
 	 * Inet address and port to forward packets to
 	 */
@@ -24,6 +39,24 @@ public class InetPacketSender {
 	 * To force forwarding IPv4 messages, set this variable to true.
 	 */
 	private boolean forwardAll;
+	
+	/**
+	 * Number of datagram channels to open on first send
+	 */
+	private int channelPoolSize = DEFAULT_CHANNEL_POOL_SIZE;
+	
+	private volatile DatagramChannel[] channels;
+	private volatile boolean closed;
+	private final AtomicInteger nextChannel = new AtomicInteger();
+	
+	/**
+	 * Idle direct buffers that batched datagrams are assembled in, at most one per channel is kept
+	 */
+	private final Queue<BatchBuffer> batchBuffers = new ConcurrentLinkedQueue<BatchBuffer>();
+	
+	private final AtomicLong packetsSent = new AtomicLong();
+	private final AtomicLong packetsFailed = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
 
 	public InetPacketSender() {}
 	
@@ -113,22 +146,162 @@ public class InetPacketSender {
 	public void send(InetPoint dstPoint, byte[] payload) throws InetPacketException {
 		if ( dstPoint == null || payload == null )
 			throw new InetPacketException("Invalid Parameters. Parameters destination point and payload can not be null");
-		DatagramSocket sock = null;
-	    try {
-	        DatagramPacket packet = new DatagramPacket(payload, payload.length, dstPoint.getInetAddress(), dstPoint.port);
-	        sock = new DatagramSocket();
-	        sock.send(packet);
-	    } catch (SocketException ex) {
-	    	throw new InetPacketException("Couldn't send packet because socket closed.", ex);
-	    } catch (IOException ex) {
-	    	throw new InetPacketException("Couldn't send packet due to IO exception.", ex);
-	    } finally {
-			if ( sock != null ) {
-				if ( !sock.isClosed() )
-					sock.close();
-				sock = null;
-			}
-	    }
+		send(dstPoint, ByteBuffer.wrap(payload));
+	}
+	
+	/**
+	 * Send packet view. Intended client is the forwarder that reroutes an outbound bundle without copying its payload
+	 * @param packet view of the outbound packet that contains destination+payload bundle
+	 * @throws InetPacketException
+	 */
+	public void send(InetPacketView packet) throws InetPacketException {
+		if ( packet == null ) {
+			log.warn("Ignoring send request for null packet");
+			return;
+		}
+		InetPoint point = packet.getPoint();
+		if ( point == null )
+			throw new InetPacketException("Couldn't send packet. Reason: Destination is not defined in the packet (not a bundle?)");
+		send(point, packet.getPayload());
+	}
+	
+	/**
+	 * Send bytes between the payload buffer's position and limit to the destination specified
+	 * @param dstPoint destination address and port to send to
+	 * @param payload data to send, may be a read-only slice of a received datagram
+	 * @throws InetPacketException
+	 */
+	public void send(InetPoint dstPoint, ByteBuffer payload) throws InetPacketException {
+		if ( dstPoint == null || payload == null )
+			throw new InetPacketException("Invalid Parameters. Parameters destination point and payload can not be null");
+		try {
+			int sent = acquireChannel().send(payload, dstPoint.getInetSocketAddress());
+			packetsSent.incrementAndGet();
+			bytesSent.addAndGet(sent);
+		} catch (ClosedChannelException ex) {
+			packetsFailed.incrementAndGet();
+			throw new InetPacketException("Couldn't send packet because socket closed.", ex);
+		} catch (SocketException ex) {
+			packetsFailed.incrementAndGet();
+			throw new InetPacketException("Couldn't send packet because socket closed.", ex);
+		} catch (IOException ex) {
+			packetsFailed.incrementAndGet();
+			throw new InetPacketException("Couldn't send packet due to IO exception.", ex);
+		}
+	}
+	
+	/**
+	 * Send a batch of packets. Each packet's payload is sent to the packet's destination point.
+	 * Intended clients are Transport or Data Sink fanning a message out to many clients directly.
+	 * All datagrams are assembled in a reusable direct buffer and sent back-to-back on a single channel.
+	 * Failure to send to one destination does not prevent sending to the remaining destinations.
+	 * @param packets outbound packets that contain destination and payload
+	 * @throws InetPacketException if parameters are invalid or any of the packets couldn't be sent
+	 */
+	public void sendBatch(List<InetPacket> packets) throws InetPacketException {
+		validateBatch(packets);
+		Batch batch = newBatch();
+		try {
+			for ( InetPacket packet : packets )
+				batch.send(packet.getPoint(), packet.getPayload());
+		} catch (InetPacketException ex) {
+			batch.cancel();
+			throw ex;
+		}
+		batch.finish();
+	}
+	
+	/**
+	 * Send a batch of payloads to the same destination. Intended clients are Transport or Data Sink sending directly to the client.
+	 * All datagrams are assembled in a reusable direct buffer and sent back-to-back on a single channel.
+	 * @param dstPoint destination address and port to send to
+	 * @param payloads data to send
+	 * @throws InetPacketException if parameters are invalid or any of the payloads couldn't be sent
+	 */
+	public void sendBatch(InetPoint dstPoint, List<byte[]> payloads) throws InetPacketException {
+		validateBatch(dstPoint, payloads);
+		Batch batch = newBatch();
+		try {
+			for ( byte[] payload : payloads )
+				batch.send(dstPoint, payload);
+		} catch (InetPacketException ex) {
+			batch.cancel();
+			throw ex;
+		}
+		batch.finish();
+	}
+	
+	/**
+	 * Forward a batch of payloads to be sent to the same dstPoint. Routing is the same as for {@link #forward(InetPoint, byte[])}
+	 * but all datagrams are assembled in a reusable direct buffer and sent back-to-back on a single channel.
+	 * @param dstPoint destination address and port for forwarder to forward to
+	 * @param payloads data to forward
+	 * @throws InetPacketException if parameters are invalid or any of the payloads couldn't be sent
+	 */
+	public void forwardBatch(InetPoint dstPoint, List<byte[]> payloads) throws InetPacketException {
+		validateBatch(dstPoint, payloads);
+		if ( frwdPoint == null )
+			log.warn("Couldn't forward packets. Reason: Forwarding destination is not defined.");
+		Batch batch = newBatch();
+		try {
+			for ( byte[] payload : payloads )
+				batch.route(dstPoint, payload);
+		} catch (InetPacketException ex) {
+			batch.cancel();
+			throw ex;
+		}
+		batch.finish();
+	}
+	
+	/**
+	 * Forward a batch of packets where each packet's point is the final destination for the packet's payload.
+	 * Each packet is routed the same way as {@link #forward(InetPoint, byte[])} routes it, but all datagrams are 
+	 * assembled in a reusable direct buffer and sent back-to-back on a single channel.
+	 * @param packets outbound packets that contain final destination and payload
+	 * @throws InetPacketException if parameters are invalid or any of the packets couldn't be sent
+	 */
+	public void forwardBatch(List<InetPacket> packets) throws InetPacketException {
+		validateBatch(packets);
+		if ( frwdPoint == null )
+			log.warn("Couldn't forward packets. Reason: Forwarding destination is not defined.");
+		Batch batch = newBatch();
+		try {
+			for ( InetPacket packet : packets )
+				batch.route(packet.getPoint(), packet.getPayload());
+		} catch (InetPacketException ex) {
+			batch.cancel();
+			throw ex;
+		}
+		batch.finish();
+	}
+	
+	/**
+	 * Starts a batch that datagrams are written into directly, for callers that would otherwise have to build
+	 * a list of {@link InetPacket} for {@link #sendBatch(List)} or {@link #forwardBatch(List)}.
+	 * The batch holds one of this sender's direct buffers until {@link Batch#finish()} or {@link Batch#cancel()} is called,
+	 * which is safe to do after any of the batch's methods has thrown.
+	 * @return new batch to be used by the calling thread only
+	 */
+	public Batch newBatch() {
+		return new Batch();
+	}
+	
+	private static void validateBatch(InetPoint dstPoint, List<byte[]> payloads) throws InetPacketException {
+		if ( dstPoint == null || payloads == null )
+			throw new InetPacketException("Invalid Parameters. Parameters destination point and payloads can not be null");
+		for ( byte[] payload : payloads ) {
+			if ( payload == null )
+				throw new InetPacketException("Invalid Parameters. Payloads in the batch can not be null");
+		}
+	}
+	
+	private static void validateBatch(List<InetPacket> packets) throws InetPacketException {
+		if ( packets == null )
+			throw new InetPacketException("Invalid Parameters. Parameter packets can not be null");
+		for ( InetPacket packet : packets ) {
+			if ( packet == null || packet.getPoint() == null || packet.getPayload() == null )
+				throw new InetPacketException("Invalid Parameters. Every packet in the batch must have destination and payload defined");
+		}
 	}
 	
 	/**
@@ -148,4 +321,335 @@ public class InetPacketSender {
 		this.forwardAll = forwardAll;
 	}
 	
+	/**
+	 * Closes all pooled channels and releases the batch buffers. Subsequent send and forward requests will fail.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		batchBuffers.clear();
+		DatagramChannel[] pool = channels;
+		channels = null;
+		if ( pool == null )
+			return;
+		for ( DatagramChannel channel : pool ) {
+			if ( channel == null )
+				continue;
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				log.warn("Couldn't close datagram channel", ex);
+			}
+		}
+	}
+	
+	/**
+	 * Reports whether this sender has been closed
+	 * @return true if {@link #close()} has been called
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * @return number of packets successfully sent or forwarded by this instance
+	 */
+	public long getPacketsSent() {
+		return packetsSent.get();
+	}
+	
+	/**
+	 * @return number of packets that couldn't be sent or forwarded due to an IO error
+	 */
+	public long getPacketsFailed() {
+		return packetsFailed.get();
+	}
+	
+	/**
+	 * @return number of payload bytes successfully sent or forwarded by this instance
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+	
+	/**
+	 * @return number of datagram channels this instance sends through
+	 */
+	public int getChannelPoolSize() {
+		return channelPoolSize;
+	}
+	
+	/**
+	 * Sets number of datagram channels to send through. Takes effect only if called before the first send.
+	 * @param channelPoolSize number of channels, must be positive
+	 */
+	public void setChannelPoolSize(int channelPoolSize) {
+		if ( channelPoolSize < 1 )
+			throw new IllegalArgumentException("Channel pool size must be positive");
+		this.channelPoolSize = channelPoolSize;
+	}
+	
+	private DatagramChannel acquireChannel() throws IOException {
+		DatagramChannel[] pool = channels;
+		if ( pool == null )
+			pool = openChannels();
+		int index = (nextChannel.getAndIncrement() & Integer.MAX_VALUE) % pool.length;
+		DatagramChannel channel = pool[index];
+		// a channel is closed for good if a thread blocked on it has been interrupted
+		if ( !channel.isOpen() )
+			channel = reopenChannel(pool, index);
+		return channel;
+	}
+	
+	private synchronized DatagramChannel[] openChannels() throws IOException {
+		if ( closed )
+			throw new ClosedChannelException();
+		if ( channels != null )
+			return channels;
+		DatagramChannel[] pool = new DatagramChannel[channelPoolSize];
+		try {
+			for ( int i = 0; i < pool.length; i++ )
+				pool[i] = openChannel();
+		} catch (IOException ex) {
+			for ( DatagramChannel channel : pool ) {
+				if ( channel != null ) {
+					try { channel.close(); } catch (IOException ignore) {}
+				}
+			}
+			throw ex;
+		}
+		log.debug(String.format("Opened %d datagram channels", pool.length));
+		channels = pool;
+		return pool;
+	}
+	
+	private synchronized DatagramChannel reopenChannel(DatagramChannel[] pool, int index) throws IOException {
+		if ( closed )
+			throw new ClosedChannelException();
+		if ( !pool[index].isOpen() ) {
+			log.debug("Replacing closed datagram channel");
+			pool[index] = openChannel();
+		}
+		return pool[index];
+	}
+	
+	private static DatagramChannel openChannel() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind(null);
+		return channel;
+	}
+	
+	/**
+	 * Reusable direct buffer with the boundaries and destinations of the datagrams assembled in it
+	 */
+	private static final class BatchBuffer {
+		final ByteBuffer buffer;
+		int[] limits = new int[64];
+		InetSocketAddress[] targets = new InetSocketAddress[64];
+		int count;
+		
+		BatchBuffer(int capacity) {
+			buffer = ByteBuffer.allocateDirect(capacity);
+		}
+		
+		/**
+		 * Appends a datagram to the buffer. If bundlePoint is not null the payload is wrapped into a bundle for that point.
+		 * @return false if there is not enough room left in the buffer
+		 */
+		boolean add(InetSocketAddress target, InetPoint bundlePoint, byte[] payload) {
+			if ( buffer.remaining() < InetPacket.bundleLength(bundlePoint, payload) )
+				return false;
+			InetPacket.writeBundle(buffer, bundlePoint, payload);
+			if ( count == limits.length ) {
+				limits = Arrays.copyOf(limits, count*2);
+				targets = Arrays.copyOf(targets, count*2);
+			}
+			limits[count] = buffer.position();
+			targets[count++] = target;
+			return true;
+		}
+		
+		void clear() {
+			Arrays.fill(targets, 0, count, null);
+			count = 0;
+			buffer.clear();
+		}
+	}
+	
+	private BatchBuffer acquireBuffer() {
+		BatchBuffer batch = batchBuffers.poll();
+		if ( batch == null )
+			batch = new BatchBuffer(BATCH_BUFFER_SIZE);
+		batch.clear();
+		return batch;
+	}
+	
+	private void releaseBuffer(BatchBuffer batch) {
+		// buffers returned after close() or beyond one per channel are left to the garbage collector
+		if ( !closed && batchBuffers.size() < channelPoolSize )
+			batchBuffers.offer(batch);
+	}
+	
+	/**
+	 * Batch of datagrams that are assembled in one of the sender's direct buffers and sent back-to-back on a single channel.
+	 * Failure to send to one destination does not prevent sending to the remaining destinations, failures are reported
+	 * by {@link #finish()} which also returns the buffer to the sender.
+	 */
+	public final class Batch {
+		private BatchBuffer batch = acquireBuffer();
+		private DatagramChannel channel;
+		private int total;
+		private int failed;
+		private IOException failure;
+		private boolean warned;
+		
+		private Batch() {
+		}
+		
+		/**
+		 * Adds payload to be sent directly to dstPoint, same as {@link InetPacketSender#send(InetPoint, byte[])} does
+		 * @param dstPoint destination address and port to send to
+		 * @param payload data to send
+		 * @throws InetPacketException if parameters are invalid or the datagrams assembled so far couldn't be sent
+		 */
+		public void send(InetPoint dstPoint, byte[] payload) throws InetPacketException {
+			validate(dstPoint, payload);
+			add(dstPoint, null, payload);
+		}
+		
+		/**
+		 * Adds payload to be sent to dstPoint, routed the same way {@link InetPacketSender#forward(InetPoint, byte[])} routes it
+		 * @param dstPoint destination address and port of the final destination
+		 * @param payload data to forward or send
+		 * @throws InetPacketException if parameters are invalid or the datagrams assembled so far couldn't be sent
+		 */
+		public void forward(InetPoint dstPoint, byte[] payload) throws InetPacketException {
+			validate(dstPoint, payload);
+			route(dstPoint, payload);
+		}
+		
+		/**
+		 * Sends the datagrams that are still in the buffer and releases the buffer. The batch can't be used afterwards.
+		 * @throws InetPacketException if any of the datagrams in the batch couldn't be sent
+		 */
+		public void finish() throws InetPacketException {
+			try {
+				flush();
+			} finally {
+				release();
+			}
+			if ( failed > 0 )
+				throw new InetPacketException(String.format("Couldn't send %d of %d packets in the batch.", failed, total), failure);
+		}
+		
+		/**
+		 * Discards the datagrams that haven't been sent yet and releases the buffer. The batch can't be used afterwards.
+		 */
+		public void cancel() {
+			if ( batch != null )
+				batch.clear();
+			release();
+		}
+		
+		private void validate(InetPoint dstPoint, byte[] payload) throws InetPacketException {
+			if ( dstPoint == null || payload == null )
+				throw new InetPacketException("Invalid Parameters. Parameters destination point and payload can not be null");
+			if ( batch == null )
+				throw new IllegalStateException("Batch has already been finished");
+		}
+		
+		void route(InetPoint dstPoint, byte[] payload) throws InetPacketException {
+			if ( frwdPoint == null && !warned ) {
+				log.warn("Couldn't forward packets. Reason: Forwarding destination is not defined.");
+				warned = true;
+			}
+			if ( frwdPoint != null && (dstPoint.isIPv6Address() || isForwardAll()) )
+				add(frwdPoint, dstPoint, payload);
+			else
+				add(dstPoint, null, payload);
+		}
+		
+		private void add(InetPoint targetPoint, InetPoint bundlePoint, byte[] payload) throws InetPacketException {
+			total++;
+			InetSocketAddress target = resolve(targetPoint);
+			if ( target == null )
+				return;
+			if ( batch.add(target, bundlePoint, payload) )
+				return;
+			try {
+				flush();
+			} catch (InetPacketException ex) {
+				// the datagram that didn't fit is not sent either, the buffer is released by finish() or cancel()
+				fail(1, null);
+				throw ex;
+			}
+			if ( !batch.add(target, bundlePoint, payload) )
+				fail(new IOException(String.format("Datagram is larger than batch buffer size of %d bytes", BATCH_BUFFER_SIZE)));
+		}
+		
+		private void release() {
+			if ( batch != null ) {
+				releaseBuffer(batch);
+				batch = null;
+			}
+		}
+		
+		private InetSocketAddress resolve(InetPoint point) {
+			try {
+				return point.getInetSocketAddress();
+			} catch (IOException ex) {
+				fail(ex);
+				return null;
+			}
+		}
+		
+		private void flush() throws InetPacketException {
+			if ( batch == null )
+				return;
+			final int count = batch.count;
+			if ( count == 0 )
+				return;
+			final ByteBuffer buffer = batch.buffer;
+			int position = 0;
+			try {
+				if ( channel == null )
+					channel = acquireChannel();
+				for ( int i = 0; i < count; i++ ) {
+					buffer.limit(batch.limits[i]);
+					buffer.position(position);
+					position = batch.limits[i];
+					try {
+						int sent = channel.send(buffer, batch.targets[i]);
+						packetsSent.incrementAndGet();
+						bytesSent.addAndGet(sent);
+					} catch (ClosedChannelException ex) {
+						fail(count - i, ex);
+						throw new InetPacketException("Couldn't send packets because socket closed.", ex);
+					} catch (IOException ex) {
+						fail(ex);
+					}
+				}
+			} catch (ClosedChannelException ex) {
+				fail(count, ex);
+				throw new InetPacketException("Couldn't send packets because socket closed.", ex);
+			} catch (IOException ex) {
+				fail(count, ex);
+				throw new InetPacketException("Couldn't send packets due to IO exception.", ex);
+			} finally {
+				batch.clear();
+			}
+		}
+		
+		private void fail(IOException ex) {
+			fail(1, ex);
+		}
+		
+		private void fail(int datagrams, IOException ex) {
+			failed += datagrams;
+			packetsFailed.addAndGet(datagrams);
+			if ( failure == null )
+				failure = ex;
+		}
+	}
+
 }
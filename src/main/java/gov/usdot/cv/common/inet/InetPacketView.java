@@ -0,0 +1,160 @@
+package gov.usdot.cv.common.inet;
+
+import gov.usdot.cv.common.util.CrcCccitt;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight read-only view of a datagram that may contain a bundle.
+ * Unlike {@link InetPacket}, the view parses the bundle header in place and exposes the payload as a slice
+ * of the underlying buffer, so a packet can be inspected and rerouted without copying the payload.
+ * The same view can be reused for many datagrams by calling wrap again, and it is only valid for as long
+ * as the wrapped buffer content is not overwritten.
+ */
+public class InetPacketView {
+
+	private ByteBuffer buffer;
+	private InetSocketAddress source;
+	private boolean bundle;
+	private int port;
+	private int addressOffset;
+	private int addressLength;
+	private int payloadOffset;
+	private int payloadLength;
+
+	public InetPacketView() {}
+
+	public InetPacketView(ByteBuffer datagram) {
+		wrap(datagram);
+	}
+
+	public InetPacketView(ByteBuffer datagram, InetSocketAddress source) {
+		wrap(datagram, source);
+	}
+
+	/**
+	 * Points this view at the bytes between the datagram's position and limit.
+	 * @param datagram buffer with the received datagram
+	 * @return this view
+	 */
+	public InetPacketView wrap(ByteBuffer datagram) {
+		return wrap(datagram, null);
+	}
+
+	/**
+	 * Points this view at the bytes between the datagram's position and limit.
+	 * @param datagram buffer with the received datagram
+	 * @param source address the datagram was received from, used as the point if the datagram is not a bundle
+	 * @return this view
+	 */
+	public InetPacketView wrap(ByteBuffer datagram, InetSocketAddress source) {
+		assert(datagram != null);
+		this.buffer = datagram;
+		this.source = source;
+		bundle = parseBundle(datagram);
+		if ( !bundle ) {
+			port = source != null ? source.getPort() : 0;
+			addressOffset = -1;
+			// the address bytes are only copied if they are asked for
+			addressLength = source == null ? 0 : source.getAddress() instanceof Inet6Address ? 16 : 4;
+			payloadOffset = datagram.position();
+			payloadLength = datagram.remaining();
+		}
+		return this;
+	}
+
+	/**
+	 * @return true if the wrapped datagram is a valid bundle
+	 */
+	public boolean isBundle() {
+		return bundle;
+	}
+
+	/**
+	 * @return port of the bundle destination or of the datagram source
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	public boolean isIPv6Address() {
+		return addressLength == 16;
+	}
+
+	/**
+	 * @return a copy of the bundle destination or datagram source address, or null if neither is known.
+	 * Use {@link #isIPv6Address()} or {@link #getInetAddress()} where a copy is not needed.
+	 */
+	public byte[] getAddress() {
+		if ( bundle ) {
+			byte[] address = new byte[addressLength];
+			for ( int i = 0; i < addressLength; i++ )
+				address[i] = buffer.get(addressOffset + i);
+			return address;
+		}
+		return source != null ? source.getAddress().getAddress() : null;
+	}
+
+	public InetAddress getInetAddress() throws UnknownHostException {
+		if ( !bundle )
+			return source != null ? source.getAddress() : null;
+		return InetAddress.getByAddress(getAddress());
+	}
+
+	/**
+	 * Returns the point equivalent to {@link InetPacket#getPoint()} for the same datagram
+	 * @return bundle destination, datagram source, or null if neither is known
+	 */
+	public InetPoint getPoint() {
+		if ( bundle )
+			return new InetPoint(getAddress(), port, true, false);
+		return source != null ? new InetPoint(source.getAddress(), source.getPort()) : null;
+	}
+
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+
+	/**
+	 * @return read-only slice of the wrapped buffer that holds the payload
+	 */
+	public ByteBuffer getPayload() {
+		ByteBuffer payload = buffer.asReadOnlyBuffer();
+		payload.limit(payloadOffset + payloadLength);
+		payload.position(payloadOffset);
+		return payload.slice();
+	}
+
+	private boolean parseBundle(ByteBuffer datagram) {
+		final int start = datagram.position();
+		final int length = datagram.remaining();
+		if ( length < InetPacket.minBundleLength )
+			return false;
+		if ( getInt(datagram, start) != InetPacket.magicNumber )
+			return false;
+		int port = getInt(datagram, start + 4);
+		byte type = datagram.get(start + 8);
+		int addressLength = type == 1 ? 16 : 4;
+		final int header_length = InetPacket.minBundleLength - 4 + addressLength;
+		if ( length < header_length )
+			return false;
+		if ( !CrcCccitt.isValidBufferMsgCRC(datagram, start, header_length) )
+			return false;
+		this.port = port;
+		this.addressOffset = start + 9;
+		this.addressLength = addressLength;
+		this.payloadOffset = start + header_length;
+		this.payloadLength = length - header_length;
+		return true;
+	}
+
+	// big endian regardless of the buffer's byte order
+	private static int getInt(ByteBuffer buffer, int index) {
+		return (buffer.get(index) & 0xFF) << 24 | (buffer.get(index+1) & 0xFF) << 16 |
+			   (buffer.get(index+2) & 0xFF) << 8 | (buffer.get(index+3) & 0xFF);
+	}
+}
@@ -1,43 +1,183 @@
 package gov.usdot.cv.common.inet;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 import org.apache.commons.codec.binary.Hex;
 
+/**
+ * Immutable network end point with value semantics so that it can be used as a map key.
+ * The address is also kept packed into primitives: an IPv4 address and port fit into a single long
+ * (see {@link #toLong()}) and an IPv6 address into two longs (see {@link #getAddressHigh()} and {@link #getAddressLow()}),
+ * which is what {@link #equals(Object)} and {@link #hashCode()} use and what {@link InetPointMap} keys on.
+ */
 public class InetPoint {
-	final public byte[] address;
+	// address bytes in network byte order, never handed out without copying, see getAddress()
+	private final byte[] address;
 	final public int port;
 	final public boolean forward;
 	
+	// address packed big endian, IPv4 addresses only use the low 32 bits of addressLow
+	private final long addressHigh;
+	private final long addressLow;
+	
+	// resolved lazily and cached, address is not expected to change after construction
+	private volatile InetAddress inetAddress;
+	private volatile InetSocketAddress inetSocketAddress;
+	
 	public InetPoint(String host, int port, boolean forward) throws UnknownHostException {
-		this(InetAddress.getByName(host).getAddress(), port, forward);
+		this(InetAddress.getByName(host).getAddress(), port, forward, false);
 	}
 	
+	public InetPoint(InetAddress address, int port) {
+		this(address.getAddress(), port, false, false);
+		this.inetAddress = address;
+	}
+	
+	/**
+	 * @param address IPv4 or IPv6 address bytes in network byte order, copied by the point
+	 * @throws IllegalArgumentException if the address is not 4 or 16 bytes long
+	 */
 	public InetPoint(byte[] address, int port) {
 		this(address, port, false);
 	}
 	
+	/**
+	 * @param address IPv4 or IPv6 address bytes in network byte order, copied by the point
+	 * @throws IllegalArgumentException if the address is not 4 or 16 bytes long
+	 */
 	public InetPoint(byte[] address, int port, boolean forward ) {
+		this(address, port, forward, true);
+	}
+	
+	// package code passes freshly allocated address arrays and skips the defensive copy
+	InetPoint(byte[] address, int port, boolean forward, boolean copy) {
 		assert(address != null);
-		this.address = address;
+		if ( address.length != 4 && address.length != 16 )
+			throw new IllegalArgumentException(String.format("Invalid address length %d, expected 4 or 16 bytes", address.length));
+		this.address = copy ? address.clone() : address;
 		this.port = port;
 		this.forward = forward;
+		if ( address.length == 16 ) {
+			addressHigh = getLong(address, 0);
+			addressLow = getLong(address, 8);
+		} else {
+			addressHigh = 0;
+			addressLow = getInt(address, 0) & 0xFFFFFFFFL;
+		}
+	}
+	
+	/**
+	 * Creates IPv4 point from the value returned by {@link #toLong()}
+	 * @param key IPv4 address in the high 32 bits and port in the low 32 bits
+	 * @param forward whether the point is a forward destination
+	 * @return new point
+	 */
+	public static InetPoint fromLong(long key, boolean forward) {
+		final int ip = (int)(key >>> 32);
+		byte[] address = new byte[] { (byte)(ip >>> 24), (byte)(ip >>> 16), (byte)(ip >>> 8), (byte)ip };
+		return new InetPoint(address, (int)key, forward, false);
 	}
 	
 	public InetAddress getInetAddress() throws UnknownHostException {
-		return InetAddress.getByAddress(address);
+		InetAddress result = inetAddress;
+		if ( result == null )
+			inetAddress = result = InetAddress.getByAddress(address);
+		return result;
+	}
+	
+	public InetSocketAddress getInetSocketAddress() throws UnknownHostException {
+		InetSocketAddress result = inetSocketAddress;
+		if ( result == null )
+			inetSocketAddress = result = new InetSocketAddress(getInetAddress(), port);
+		return result;
+	}
+	
+	/**
+	 * @return a copy of the address bytes
+	 */
+	public byte[] getAddress() {
+		return address.clone();
+	}
+	
+	/**
+	 * Writes the address bytes at the current position of the destination buffer without copying them first
+	 */
+	void putAddress(ByteBuffer dst) {
+		dst.put(address);
 	}
 	
 	public boolean isIPv6Address() {
 		return address.length == 16;
 	}
 	
+	/**
+	 * @return high 64 bits of an IPv6 address, zero for IPv4
+	 */
+	public long getAddressHigh() {
+		return addressHigh;
+	}
+	
+	/**
+	 * @return low 64 bits of an IPv6 address, or the IPv4 address as an unsigned 32 bit value
+	 */
+	public long getAddressLow() {
+		return addressLow;
+	}
+	
+	/**
+	 * Packs an IPv4 point into a single primitive key
+	 * @return IPv4 address in the high 32 bits and port in the low 32 bits
+	 * @throws UnsupportedOperationException if this is an IPv6 point, use {@link #getAddressHigh()}, {@link #getAddressLow()} and port instead
+	 */
+	public long toLong() {
+		if ( isIPv6Address() )
+			throw new UnsupportedOperationException("IPv6 point can not be packed into a single long");
+		return addressLow << 32 | (port & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * @return true if the other point has the same address and port regardless of the forward flag
+	 */
+	public boolean sameEndpoint(InetPoint other) {
+		return other != null && port == other.port && addressLow == other.addressLow && 
+			   addressHigh == other.addressHigh && address.length == other.address.length;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if ( this == obj )
+			return true;
+		if ( !(obj instanceof InetPoint) )
+			return false;
+		InetPoint other = (InetPoint)obj;
+		return forward == other.forward && sameEndpoint(other);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * hash(addressHigh, addressLow, port, isIPv6Address()) + (forward ? 1 : 0);
+	}
+	
+	/**
+	 * Mixes packed point components into a well spread hash code
+	 */
+	static int hash(long addressHigh, long addressLow, int port, boolean ipv6) {
+		long h = addressHigh * 0x9E3779B97F4A7C15L + addressLow;
+		h = (h ^ (h >>> 32)) * 0x9E3779B97F4A7C15L + (port & 0xFFFFFFFFL) + (ipv6 ? 0x100000000L : 0);
+		h ^= h >>> 29;
+		h *= 0xBF58476D1CE4E5B9L;
+		h ^= h >>> 32;
+		return (int)h;
+	}
+	
 	@Override
 	public String toString() {
 		String host = "?";
 		try {
-			host = InetAddress.getByAddress(address).getHostAddress();
+			host = getInetAddress().getHostAddress();
 		} catch (UnknownHostException e) {
 		}
 		return String.format("%s { port = %d (0x%x); address = %s (%s, %s); forward = %s }",
@@ -47,4 +187,12 @@ public class InetPoint {
 				forward ? "true" : "false"
 				);
 	}
-}
\ No newline at end of file
+	
+	private static long getLong(byte[] bytes, int offset) {
+		return (getInt(bytes, offset) & 0xFFFFFFFFL) << 32 | (getInt(bytes, offset + 4) & 0xFFFFFFFFL);
+	}
+	
+	private static int getInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) << 24 | (bytes[offset+1] & 0xFF) << 16 | (bytes[offset+2] & 0xFF) << 8 | (bytes[offset+3] & 0xFF);
+	}
+}
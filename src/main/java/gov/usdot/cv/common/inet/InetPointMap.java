@@ -0,0 +1,203 @@
+package gov.usdot.cv.common.inet;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map keyed by network end point for per destination state such as statistics,
+ * rate limits or channel affinity. Keys are stored as the packed primitives of {@link InetPoint}
+ * so lookups neither box nor allocate, and entries can be looked up by the packed key directly
+ * without creating a point. The forward flag of a point is not part of the key.
+ * This class is not thread safe.
+ * @param <V> value type
+ */
+public class InetPointMap<V> {
+
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private static final byte FREE = 0;
+	private static final byte IPV4 = 1;
+	private static final byte IPV6 = 2;
+
+	private byte[] types;
+	private long[] highs;
+	private long[] lows;
+	private int[] ports;
+	private Object[] values;
+	private int size;
+	private int threshold;
+
+	public InetPointMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of entries the map should hold without resizing
+	 */
+	public InetPointMap(int expectedSize) {
+		if ( expectedSize < 0 )
+			throw new IllegalArgumentException("Expected size can not be negative");
+		int capacity = Integer.highestOneBit(Math.max(DEFAULT_CAPACITY, (int)(expectedSize / LOAD_FACTOR)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public V get(InetPoint point) {
+		return point != null ? get(type(point), point.getAddressHigh(), point.getAddressLow(), point.port) : null;
+	}
+
+	/**
+	 * Looks up an IPv4 end point by the key returned from {@link InetPoint#toLong()}
+	 */
+	public V get(long ipv4Key) {
+		return get(IPV4, 0, ipv4Key >>> 32, (int)ipv4Key);
+	}
+
+	/**
+	 * Looks up an IPv6 end point by its packed address and port
+	 */
+	public V get(long addressHigh, long addressLow, int port) {
+		return get(IPV6, addressHigh, addressLow, port);
+	}
+
+	public boolean containsKey(InetPoint point) {
+		return point != null && find(type(point), point.getAddressHigh(), point.getAddressLow(), point.port) >= 0;
+	}
+
+	/**
+	 * Associates the value with the point's address and port
+	 * @return previous value or null if there was none
+	 */
+	public V put(InetPoint point, V value) {
+		if ( point == null )
+			throw new NullPointerException("Point can not be null");
+		final byte type = type(point);
+		final long high = point.getAddressHigh();
+		final long low = point.getAddressLow();
+		final int mask = types.length - 1;
+		int index = InetPoint.hash(high, low, point.port, type == IPV6) & mask;
+		while ( types[index] != FREE ) {
+			if ( matches(index, type, high, low, point.port) ) {
+				V previous = value(index);
+				values[index] = value;
+				return previous;
+			}
+			index = (index + 1) & mask;
+		}
+		types[index] = type;
+		highs[index] = high;
+		lows[index] = low;
+		ports[index] = point.port;
+		values[index] = value;
+		if ( ++size > threshold )
+			allocate(types.length << 1);
+		return null;
+	}
+
+	/**
+	 * @return removed value or null if the point was not in the map
+	 */
+	public V remove(InetPoint point) {
+		if ( point == null )
+			return null;
+		int index = find(type(point), point.getAddressHigh(), point.getAddressLow(), point.port);
+		if ( index < 0 )
+			return null;
+		V previous = value(index);
+		delete(index);
+		size--;
+		return previous;
+	}
+
+	public void clear() {
+		Arrays.fill(types, FREE);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private V get(byte type, long high, long low, int port) {
+		int index = find(type, high, low, port);
+		return index >= 0 ? value(index) : null;
+	}
+
+	private int find(byte type, long high, long low, int port) {
+		final int mask = types.length - 1;
+		int index = InetPoint.hash(high, low, port, type == IPV6) & mask;
+		while ( types[index] != FREE ) {
+			if ( matches(index, type, high, low, port) )
+				return index;
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	private boolean matches(int index, byte type, long high, long low, int port) {
+		return lows[index] == low && ports[index] == port && highs[index] == high && types[index] == type;
+	}
+
+	// backward shift deletion keeps linear probe sequences intact without tombstones
+	private void delete(int index) {
+		final int mask = types.length - 1;
+		int free = index;
+		int next = (index + 1) & mask;
+		while ( types[next] != FREE ) {
+			int home = InetPoint.hash(highs[next], lows[next], ports[next], types[next] == IPV6) & mask;
+			if ( ((next - home) & mask) >= ((next - free) & mask) ) {
+				types[free] = types[next];
+				highs[free] = highs[next];
+				lows[free] = lows[next];
+				ports[free] = ports[next];
+				values[free] = values[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		types[free] = FREE;
+		values[free] = null;
+	}
+
+	private void allocate(int capacity) {
+		byte[] oldTypes = types;
+		long[] oldHighs = highs;
+		long[] oldLows = lows;
+		int[] oldPorts = ports;
+		Object[] oldValues = values;
+		types = new byte[capacity];
+		highs = new long[capacity];
+		lows = new long[capacity];
+		ports = new int[capacity];
+		values = new Object[capacity];
+		threshold = (int)(capacity * LOAD_FACTOR);
+		if ( oldTypes == null )
+			return;
+		final int mask = capacity - 1;
+		for ( int i = 0; i < oldTypes.length; i++ ) {
+			if ( oldTypes[i] == FREE )
+				continue;
+			int index = InetPoint.hash(oldHighs[i], oldLows[i], oldPorts[i], oldTypes[i] == IPV6) & mask;
+			while ( types[index] != FREE )
+				index = (index + 1) & mask;
+			types[index] = oldTypes[i];
+			highs[index] = oldHighs[i];
+			lows[index] = oldLows[i];
+			ports[index] = oldPorts[i];
+			values[index] = oldValues[i];
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private V value(int index) {
+		return (V)values[index];
+	}
+
+	private static byte type(InetPoint point) {
+		return point.isIPv6Address() ? IPV6 : IPV4;
+	}
+}
@@ -8,6 +8,9 @@ public class CrcCccitt {
 	final private static int ccittPolynomial = 0x1021;
 	final private static int ccittTableSize = 256;
 	final private static int[] ccittTable = new int[ccittTableSize];
+	// slicing-by-8 tables: slice n holds the CRC of a byte followed by n zero bytes, slice 0 is ccittTable
+	final private static int ccittSlices = 8;
+	final private static int[] ccittSlicingTable = new int[ccittSlices * ccittTableSize];
 
 	static {
 		for (int i = 0; i < ccittTableSize; i++) {
@@ -16,6 +19,13 @@ public class CrcCccitt {
 				checkSum = (checkSum & 0x8000) == 0x8000 ? (checkSum << 1) ^ ccittPolynomial : (checkSum << 1);
 			ccittTable[i] = checkSum & 0xFFFF;
 		}
+		System.arraycopy(ccittTable, 0, ccittSlicingTable, 0, ccittTableSize);
+		for (int n = 1; n < ccittSlices; n++) {
+			for (int i = 0; i < ccittTableSize; i++) {
+				int checkSum = ccittSlicingTable[(n-1)*ccittTableSize + i];
+				ccittSlicingTable[n*ccittTableSize + i] = (ccittTable[(checkSum >> 8) & 0xFF] ^ (checkSum << 8)) & 0xFFFF;
+			}
+		}
 	}
 	
 	public static boolean isValidMsgCRC(byte[] msgIncludingMsgCRC) {
@@ -27,22 +37,46 @@ public class CrcCccitt {
 		return calculateCrcCccitt(msgIncludingMsgCRC, offset, count) == 0;
 	}
 	
+	public static boolean isValidBufferMsgCRC(ByteBuffer msgIncludingMsgCRC, int offset, int count) {
+		return calculateBufferCrcCccitt(msgIncludingMsgCRC, offset, count) == 0;
+	}
+	
 	// update last two bytes of the message with CRC of all preceding bytes
 	public static void setMsgCRC(byte[] msg) {
 		if ( msg != null && msg.length > 2) {
-			int checkSum = calculateCrcCccitt(msg, 0, msg.length-2);
-			ByteBuffer buffer = ByteBuffer.allocate(2).order(ByteOrder.BIG_ENDIAN);
-			buffer.putShort((short)checkSum);
-			byte[] crcBytes = buffer.array();
-			System.arraycopy(crcBytes, 0, msg, msg.length-2, 2);
+			setMsgCRC(msg, 0, msg.length);
 		}
 	}
 	
+	// update last two of count bytes starting at offset with CRC of the preceding bytes
+	public static void setMsgCRC(byte[] msg, int offset, int count) {
+		int checkSum = calculateCrcCccitt(msg, offset, count-2);
+		msg[offset+count-2] = (byte)(checkSum >>> 8);
+		msg[offset+count-1] = (byte)checkSum;
+	}
+	
+	// update last two of count bytes starting at absolute offset with CRC of the preceding bytes
+	public static void setBufferMsgCRC(ByteBuffer msg, int offset, int count) {
+		int checkSum = calculateBufferCrcCccitt(msg, offset, count-2);
+		msg.put(offset+count-2, (byte)(checkSum >>> 8));
+		msg.put(offset+count-1, (byte)checkSum);
+	}
+	
 	public static int calculateCrcCccitt(byte[] msg) {
 		return msg != null ? calculateCrcCccitt(msg, 0, msg.length) : 0;
 	}
 	
 	public static int calculateCrcCccitt(byte[] msg, int offset, int count) {
+		int checkSum = 0;
+		if ( msg != null && offset >= 0 ) {
+			final int size = Math.min(msg.length, count);
+			checkSum = update(checkSum, msg, offset, size);
+		}
+		return checkSum;
+	}
+	
+	// reference byte at a time implementation
+	static int calculateCrcCccittBytewise(byte[] msg, int offset, int count) {
 		int checkSum = 0;
 		if ( msg != null && offset >= 0 ) {
 			final int size = Math.min(msg.length, count);
@@ -52,4 +86,119 @@ public class CrcCccitt {
 		}
 		return checkSum;
 	}
+	
+	// calculate CRC of the bytes between position and limit without changing the buffer's position
+	public static int calculateBufferCrcCccitt(ByteBuffer msg) {
+		return msg != null ? calculateBufferCrcCccitt(msg, msg.position(), msg.remaining()) : 0;
+	}
+	
+	// calculate CRC of count bytes starting at absolute offset without changing the buffer's position
+	// distinct name keeps calculateCrcCccitt(null, ...) calls unambiguous
+	public static int calculateBufferCrcCccitt(ByteBuffer msg, int offset, int count) {
+		int checkSum = 0;
+		if ( msg != null && offset >= 0 ) {
+			final int size = Math.min(msg.limit() - offset, count);
+			if ( size > 0 )
+				checkSum = update(checkSum, msg, offset, size);
+		}
+		return checkSum;
+	}
+	
+	// continue CRC calculation over count bytes of msg starting at offset
+	static int update(int checkSum, byte[] msg, int offset, int count) {
+		final int[] t = ccittSlicingTable;
+		int i = offset;
+		final int end = offset + count;
+		for( ; end - i >= 8; i += 8 ) {
+			checkSum = t[7*256 + (((checkSum >> 8) ^ msg[i]) & 0xFF)] ^
+					   t[6*256 + ((checkSum ^ msg[i+1]) & 0xFF)] ^
+					   t[5*256 + (msg[i+2] & 0xFF)] ^
+					   t[4*256 + (msg[i+3] & 0xFF)] ^
+					   t[3*256 + (msg[i+4] & 0xFF)] ^
+					   t[2*256 + (msg[i+5] & 0xFF)] ^
+					   t[256 + (msg[i+6] & 0xFF)] ^
+					   t[msg[i+7] & 0xFF];
+		}
+		if ( end - i >= 4 ) {
+			checkSum = t[3*256 + (((checkSum >> 8) ^ msg[i]) & 0xFF)] ^
+					   t[2*256 + ((checkSum ^ msg[i+1]) & 0xFF)] ^
+					   t[256 + (msg[i+2] & 0xFF)] ^
+					   t[msg[i+3] & 0xFF];
+			i += 4;
+		}
+		for( ; i < end; i++ ) {
+			checkSum = (t[((checkSum >> 8) ^ msg[i]) & 0xFF] ^ (checkSum << 8)) & 0xFFFF;
+		}
+		return checkSum;
+	}
+	
+	// continue CRC calculation over count bytes of msg starting at absolute offset without changing the buffer's position
+	static int update(int checkSum, ByteBuffer msg, int offset, int count) {
+		if ( msg.hasArray() )
+			return update(checkSum, msg.array(), msg.arrayOffset() + offset, count);
+		final int[] t = ccittSlicingTable;
+		final boolean bigEndian = msg.order() == ByteOrder.BIG_ENDIAN;
+		int i = offset;
+		final int end = offset + count;
+		for( ; end - i >= 8; i += 8 ) {
+			long v = msg.getLong(i);
+			if ( !bigEndian )
+				v = Long.reverseBytes(v);
+			checkSum = t[7*256 + (((checkSum >> 8) ^ (int)(v >>> 56)) & 0xFF)] ^
+					   t[6*256 + ((checkSum ^ (int)(v >>> 48)) & 0xFF)] ^
+					   t[5*256 + ((int)(v >>> 40) & 0xFF)] ^
+					   t[4*256 + ((int)(v >>> 32) & 0xFF)] ^
+					   t[3*256 + ((int)(v >>> 24) & 0xFF)] ^
+					   t[2*256 + ((int)(v >>> 16) & 0xFF)] ^
+					   t[256 + ((int)(v >>> 8) & 0xFF)] ^
+					   t[(int)v & 0xFF];
+		}
+		for( ; i < end; i++ ) {
+			checkSum = (t[((checkSum >> 8) ^ msg.get(i)) & 0xFF] ^ (checkSum << 8)) & 0xFFFF;
+		}
+		return checkSum;
+	}
+	
+	/**
+	 * Stateful CRC-CCITT calculator for messages that are split across several arrays or buffers,
+	 * for example a header in one buffer followed by a payload slice in another.
+	 * Feeding all parts in order produces the same value as calculateCrcCccitt over their concatenation.
+	 * Instances are not thread safe.
+	 */
+	public static class Accumulator {
+		private int checkSum = 0;
+		
+		public Accumulator update(byte b) {
+			checkSum = (ccittTable[((checkSum >> 8) ^ b) & 0xFF] ^ (checkSum << 8)) & 0xFFFF;
+			return this;
+		}
+		
+		public Accumulator update(byte[] msg) {
+			return update(msg, 0, msg.length);
+		}
+		
+		public Accumulator update(byte[] msg, int offset, int count) {
+			if ( offset < 0 || count < 0 || offset > msg.length - count )
+				throw new IndexOutOfBoundsException();
+			checkSum = CrcCccitt.update(checkSum, msg, offset, count);
+			return this;
+		}
+		
+		// consumes the bytes between position and limit leaving the buffer's position at its limit
+		public Accumulator update(ByteBuffer msg) {
+			final int position = msg.position();
+			final int count = msg.remaining();
+			checkSum = CrcCccitt.update(checkSum, msg, position, count);
+			msg.position(position + count);
+			return this;
+		}
+		
+		public int value() {
+			return checkSum;
+		}
+		
+		public void reset() {
+			checkSum = 0;
+		}
+	}
 }
@@ -0,0 +1,346 @@
+package gov.usdot.cv.common.database.mongodb.dao;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import gov.usdot.cv.common.database.mongodb.criteria.DateRange;
+import gov.usdot.cv.common.database.mongodb.geospatial.Geometry;
+import gov.usdot.cv.common.database.mongodb.geospatial.Point;
+import gov.usdot.cv.common.util.UnitTestHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+
+public class AbstractQuerySitDataDaoTest {
+
+	static final private boolean isDebugOutput = false;
+
+	private static final String COLLECTION = "travelerInformation";
+
+	@BeforeClass
+	public static void init() throws Exception {
+		UnitTestHelper.initLog4j(isDebugOutput);
+	}
+
+	/** Mocked collection answering within and intersects queries with fixed documents */
+	private static class Server {
+		final List<DBObject> within = new ArrayList<DBObject>();
+		final List<DBObject> intersects = new ArrayList<DBObject>();
+		final List<DBObject> criteria = new ArrayList<DBObject>();
+		final List<DBObject> projections = new ArrayList<DBObject>();
+		final List<DBCursor> cursors = new ArrayList<DBCursor>();
+		final Mongo mongo = mock(Mongo.class);
+
+		@SuppressWarnings("deprecation")
+		Server() {
+			DB db = mock(DB.class);
+			DBCollection collection = mock(DBCollection.class);
+			when(mongo.getDB(anyString())).thenReturn(db);
+			when(db.getCollection(COLLECTION)).thenReturn(collection);
+			when(collection.find(any(DBObject.class), any(DBObject.class))).thenAnswer(new Answer<DBCursor>() {
+				public DBCursor answer(InvocationOnMock invocation) throws Throwable {
+					DBObject query = (DBObject)invocation.getArguments()[0];
+					criteria.add(query);
+					projections.add((DBObject)invocation.getArguments()[1]);
+					DBCursor cursor = cursor(query.toString().contains("$geoWithin") ? within : intersects);
+					cursors.add(cursor);
+					return cursor;
+				}
+			});
+		}
+
+		private static DBCursor cursor(List<DBObject> documents) {
+			final Iterator<DBObject> it = new ArrayList<DBObject>(documents).iterator();
+			DBCursor cursor = mock(DBCursor.class);
+			when(cursor.hasNext()).thenAnswer(new Answer<Boolean>() {
+				public Boolean answer(InvocationOnMock invocation) throws Throwable {
+					return it.hasNext();
+				}
+			});
+			when(cursor.next()).thenAnswer(new Answer<DBObject>() {
+				public DBObject answer(InvocationOnMock invocation) throws Throwable {
+					return it.next();
+				}
+			});
+			return cursor;
+		}
+	}
+
+	private Server server;
+	private AbstractQuerySitDataDao dao;
+
+	@Before
+	public void setUp() {
+		server = new Server();
+		dao = new AbstractQuerySitDataDao(server.mongo, "cvdb") {};
+	}
+
+	private static DBObject doc(int id) {
+		return new BasicDBObject("_id", id).append("payload", new BasicDBObject("encoded", "data" + id));
+	}
+
+	private static List<DBObject> docs(int from, int to) {
+		List<DBObject> docs = new ArrayList<DBObject>();
+		for (int id = from; id <= to; id++)
+			docs.add(doc(id));
+		return docs;
+	}
+
+	private static List<Object> ids(Collection<DBObject> docs) {
+		List<Object> ids = new ArrayList<Object>();
+		for (DBObject doc : docs)
+			ids.add(doc.get("_id"));
+		return ids;
+	}
+
+	private static GeoQuery.Builder query(int limit) {
+		Point point = new Point.Builder().setLat(42.0).setLon(-83.0).build();
+		Geometry geometry = new Geometry.Builder().setType(Geometry.POINT_TYPE).setPoint(point).build();
+		return new GeoQuery.Builder().setCollectionName(COLLECTION).setGeoSpatialFieldName("region")
+				.setGeometry(geometry).setLimit(limit);
+	}
+
+	// expressions of the $and criteria of a query
+	private static BasicDBList expressions(DBObject criteria) {
+		return (BasicDBList)criteria.get("$and");
+	}
+
+	@Test
+	public void testPredicates() {
+		DateRange dateRange = new DateRange.Builder().setFieldName("createdAt").setStartTime(60000L).setEndTime(120000L).build();
+		GeoQuery query = query(10).setExistingFieldName("payload").setServiceId(7).setDateRange(dateRange).build();
+		dao.find(query, GeoQuery.Relation.WITHIN);
+
+		BasicDBList exps = expressions(server.criteria.get(0));
+		assertEquals(4, exps.size());
+		assertEquals(new BasicDBObject("payload", new BasicDBObject("$exists", true)), exps.get(0));
+		assertEquals(new BasicDBObject("serviceId", 7), exps.get(1));
+		assertEquals(new BasicDBObject("createdAt", new BasicDBObject("$gte", dateRange.getStartTime()).append("$lte", dateRange.getEndTime())), exps.get(2));
+		DBObject geo = (DBObject)((DBObject)exps.get(3)).get("region");
+		assertTrue(geo.containsField("$geoWithin"));
+
+		dao.find(query, GeoQuery.Relation.INTERSECTS);
+		exps = expressions(server.criteria.get(1));
+		assertEquals(4, exps.size());
+		geo = (DBObject)((DBObject)exps.get(3)).get("region");
+		assertTrue(geo.containsField("$geoIntersects"));
+	}
+
+	@Test
+	public void testOptionalPredicatesAreLeftOut() {
+		dao.find(query(0).build(), GeoQuery.Relation.WITHIN);
+		assertEquals(1, expressions(server.criteria.get(0)).size());
+		DBCursor cursor = server.cursors.get(0);
+		verify(cursor, never()).limit(anyInt());
+		verify(cursor, never()).sort(any(DBObject.class));
+		verify(cursor, never()).batchSize(anyInt());
+	}
+
+	@Test
+	public void testExpressionsAreBuiltOnce() {
+		GeoQuery query = query(10).setExistingFieldName("payload").build();
+		dao.find(query, GeoQuery.Relation.WITHIN);
+		DBObject[] predicates = query.predicates;
+		DBObject within = query.withinExpression;
+		assertNotNull(predicates);
+		dao.find(query, GeoQuery.Relation.WITHIN);
+		assertSame(predicates, query.predicates);
+		assertSame(within, query.withinExpression);
+		assertSame(within, query.withProjection(GeoQuery.fields(true)).withinExpression);
+	}
+
+	@Test
+	public void testCursorOptions() {
+		dao.find(query(10).setOrderByFieldName("createdAt").setHint("createdAt_1").setBatchSize(50).setMaxTime(250).build(), GeoQuery.Relation.WITHIN);
+		DBCursor cursor = server.cursors.get(0);
+		verify(cursor).sort(new BasicDBObject("createdAt", -1));
+		verify(cursor).limit(10);
+		verify(cursor).hint("createdAt_1");
+		verify(cursor).batchSize(50);
+		verify(cursor).maxTime(250, TimeUnit.MILLISECONDS);
+		verify(cursor).close();
+	}
+
+	@Test
+	public void testNegativeLimitIsPassedToTheCursor() {
+		dao.find(query(-3).build(), GeoQuery.Relation.WITHIN);
+		verify(server.cursors.get(0)).limit(-3);
+	}
+
+	@Test
+	public void testFindAllFilledByWithin() {
+		server.within.addAll(docs(1, 3));
+		assertEquals(Arrays.<Object>asList(1, 2, 3), ids(dao.findAll(query(3).build())));
+		assertEquals(1, server.criteria.size());
+	}
+
+	@Test
+	public void testFindAllExcludesWithinIds() {
+		server.within.addAll(docs(1, 2));
+		server.intersects.addAll(docs(3, 6));
+		assertEquals(Arrays.<Object>asList(1, 2, 3, 4), ids(dao.findAll(query(4).build())));
+
+		assertEquals(2, server.criteria.size());
+		BasicDBList exps = expressions(server.criteria.get(1));
+		DBObject exclude = (DBObject)exps.get(exps.size() - 1);
+		BasicDBList excluded = (BasicDBList)((DBObject)exclude.get("_id")).get("$nin");
+		assertEquals(Arrays.<Object>asList(1, 2), new ArrayList<Object>(excluded));
+		verify(server.cursors.get(1)).limit(2);
+	}
+
+	@Test
+	public void testFindAllWithTooManyWithinIds() {
+		server.within.addAll(docs(1, 1001));
+		// the server sends the within documents again since they aren't excluded
+		server.intersects.addAll(docs(1, 1003));
+		List<Object> ids = ids(dao.findAll(query(1002).build()));
+		assertEquals(1002, ids.size());
+		assertEquals(1002, ids.get(1001));
+
+		assertFalse(server.criteria.get(1).toString().contains("$nin"));
+		verify(server.cursors.get(1)).limit(1002);
+	}
+
+	@Test
+	public void testFindAllDeduplicatesWithoutLimit() {
+		server.within.addAll(docs(1, 2));
+		server.intersects.addAll(docs(2, 4));
+		assertEquals(Arrays.<Object>asList(1, 2, 3, 4), ids(dao.findAll(query(0).build())));
+		verify(server.cursors.get(1), never()).limit(anyInt());
+	}
+
+	private static class Collector implements AbstractQuerySitDataDao.DocumentHandler {
+		final List<Object> ids = new ArrayList<Object>();
+		final int stopAfter;
+
+		Collector(int stopAfter) {
+			this.stopAfter = stopAfter;
+		}
+
+		@Override
+		public boolean handle(DBObject document) {
+			ids.add(document.get("_id"));
+			return ids.size() != stopAfter;
+		}
+	}
+
+	@Test
+	public void testStreamCursorIsLeftOpen() {
+		server.within.addAll(docs(1, 3));
+		DBCursor cursor = dao.stream(query(0).setBatchSize(2).build(), GeoQuery.Relation.WITHIN);
+		assertSame(server.cursors.get(0), cursor);
+		verify(cursor).batchSize(2);
+		verify(cursor, never()).close();
+	}
+
+	@Test
+	public void testStreamHandsOverDocuments() {
+		server.intersects.addAll(docs(1, 5));
+		Collector collector = new Collector(0);
+		assertEquals(5, dao.stream(query(0).build(), GeoQuery.Relation.INTERSECTS, collector));
+		assertEquals(Arrays.<Object>asList(1, 2, 3, 4, 5), collector.ids);
+		verify(server.cursors.get(0)).close();
+	}
+
+	@Test
+	public void testStreamStopsAtLimitAndHandler() {
+		server.within.addAll(docs(1, 5));
+		Collector collector = new Collector(0);
+		assertEquals(3, dao.stream(query(3).build(), GeoQuery.Relation.WITHIN, collector));
+		assertEquals(Arrays.<Object>asList(1, 2, 3), collector.ids);
+
+		collector = new Collector(2);
+		assertEquals(2, dao.stream(query(0).build(), GeoQuery.Relation.WITHIN, collector));
+		assertEquals(Arrays.<Object>asList(1, 2), collector.ids);
+		verify(server.cursors.get(1)).close();
+	}
+
+	@Test
+	public void testStreamAllMatchesFindAll() {
+		server.within.addAll(docs(1, 2));
+		server.intersects.addAll(docs(2, 6));
+		List<Object> found = ids(dao.findAll(query(4).build()));
+		Collector collector = new Collector(0);
+		assertEquals(4, dao.streamAll(query(4).build(), collector));
+		assertEquals(found, collector.ids);
+		assertEquals(server.criteria.get(1), server.criteria.get(3));
+
+		collector = new Collector(0);
+		assertEquals(6, dao.streamAll(query(0).build(), collector));
+		assertEquals(Arrays.<Object>asList(1, 2, 3, 4, 5, 6), collector.ids);
+	}
+
+	@Test
+	public void testStreamAllStopsInWithin() {
+		server.within.addAll(docs(1, 3));
+		server.intersects.addAll(docs(4, 6));
+		Collector collector = new Collector(2);
+		assertEquals(2, dao.streamAll(query(0).build(), collector));
+		assertEquals(1, server.criteria.size());
+		verify(server.cursors.get(0)).close();
+	}
+
+	@Test
+	public void testProjectionIsSent() {
+		DBObject projection = GeoQuery.fields(true, "createdAt");
+		dao.find(query(0).setProjection(projection).build(), GeoQuery.Relation.WITHIN);
+		assertSame(projection, server.projections.get(0));
+		dao.find(query(0).setFields("region").build(), GeoQuery.Relation.WITHIN);
+		assertEquals(new BasicDBObject("region", 1), server.projections.get(1));
+		dao.find(query(0).build(), GeoQuery.Relation.WITHIN);
+		assertNull(server.projections.get(2));
+	}
+
+	@Test
+	public void testFindIds() {
+		server.within.addAll(docs(1, 2));
+		server.intersects.addAll(docs(2, 3));
+		assertEquals(Arrays.<Object>asList(1, 2), dao.findIds(query(0).build(), GeoQuery.Relation.WITHIN));
+		assertEquals(new BasicDBObject("_id", 1), server.projections.get(0));
+		assertEquals(Arrays.<Object>asList(1, 2, 3), dao.findAllIds(query(0).build()));
+		assertEquals(new BasicDBObject("_id", 1), server.projections.get(2));
+	}
+
+	@Test
+	public void testFindPayloads() {
+		server.within.addAll(docs(1, 2));
+		server.within.add(new BasicDBObject("_id", 3));
+		server.within.add(new BasicDBObject("_id", 4).append("payload", "not a document"));
+		assertEquals(Arrays.<Object>asList("data1", "data2", null, null),
+				dao.findPayloads(query(0).build(), GeoQuery.Relation.WITHIN, "payload.encoded"));
+		assertEquals(new BasicDBObject("payload.encoded", 1).append("_id", 0), server.projections.get(0));
+
+		List<Object> payloads = dao.findPayloads(query(0).build(), GeoQuery.Relation.WITHIN, "payload");
+		assertEquals(new BasicDBObject("encoded", "data1"), payloads.get(0));
+		assertEquals("not a document", payloads.get(3));
+	}
+
+	@Test
+	public void testFindAllPayloadsKeepsIds() {
+		server.within.addAll(docs(1, 2));
+		server.intersects.addAll(docs(2, 3));
+		assertEquals(Arrays.<Object>asList("data1", "data2", "data3"), dao.findAllPayloads(query(0).build(), "payload.encoded"));
+		// findAll de-duplicates by _id, so it has to stay in the projection
+		assertEquals(new BasicDBObject("payload.encoded", 1), server.projections.get(0));
+		assertTrue(server.criteria.get(1).toString().contains("$nin"));
+	}
+}
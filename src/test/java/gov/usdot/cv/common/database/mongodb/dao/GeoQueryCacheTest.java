@@ -0,0 +1,215 @@
+package gov.usdot.cv.common.database.mongodb.dao;
+
+import static org.junit.Assert.*;
+
+import gov.usdot.cv.common.database.mongodb.criteria.DateRange;
+import gov.usdot.cv.common.database.mongodb.geospatial.Geometry;
+import gov.usdot.cv.common.database.mongodb.geospatial.Point;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class GeoQueryCacheTest {
+
+	private static final String COLLECTION = "travelerInformation";
+
+	private static class CountingLoader implements GeoQueryCache.Loader {
+		int loads;
+
+		@Override
+		public List<DBObject> load() {
+			loads++;
+			List<DBObject> result = new ArrayList<DBObject>();
+			result.add(new BasicDBObject("_id", loads));
+			return result;
+		}
+	}
+
+	private static GeoQuery query(double lat, double lon, long startTime, int limit) {
+		Point point = new Point.Builder().setLat(lat).setLon(lon).build();
+		Geometry geometry = new Geometry.Builder().setType(Geometry.POINT_TYPE).setPoint(point).build();
+		DateRange dateRange = new DateRange.Builder().setFieldName("createdAt").setStartTime(startTime).build();
+		return new GeoQuery.Builder().setCollectionName(COLLECTION).setGeoSpatialFieldName("region")
+				.setGeometry(geometry).setDateRange(dateRange).setLimit(limit).build();
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		GeoQueryCache cache = new GeoQueryCache.Builder().build();
+		CountingLoader loader = new CountingLoader();
+		List<DBObject> result = cache.get(query(42.0, -83.0, 60000, 10), null, loader, 0);
+		assertSame(result, cache.get(query(42.0, -83.0, 60000, 10), null, loader, 1));
+		assertEquals(1, loader.loads);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(0.5, cache.getHitRatio(), 0);
+	}
+
+	@Test
+	public void testTileAndBucket() {
+		GeoQueryCache cache = new GeoQueryCache.Builder().build();
+		CountingLoader loader = new CountingLoader();
+		cache.get(query(42.00001, -83.00001, 60000, 10), null, loader, 0);
+		cache.get(query(42.00002, -83.00002, 119999, 10), null, loader, 0);
+		assertEquals(1, loader.loads);
+		cache.get(query(42.00002, -83.00002, 120000, 10), null, loader, 0);
+		cache.get(query(42.1, -83.0, 60000, 10), null, loader, 0);
+		cache.get(query(42.0, -83.0, 60000, 20), null, loader, 0);
+		cache.get(query(42.0, -83.0, 60000, 10), GeoQuery.Relation.WITHIN, loader, 0);
+		assertEquals(5, loader.loads);
+	}
+
+	@Test
+	public void testExpiration() {
+		GeoQueryCache cache = new GeoQueryCache.Builder().setTtl(100).build();
+		CountingLoader loader = new CountingLoader();
+		cache.get(query(42.0, -83.0, 60000, 10), null, loader, 0);
+		cache.get(query(42.0, -83.0, 60000, 10), null, loader, 99);
+		assertEquals(1, loader.loads);
+		cache.get(query(42.0, -83.0, 60000, 10), null, loader, 100);
+		assertEquals(2, loader.loads);
+	}
+
+	private static DBObject document(double lat, double lon, long createdAt) {
+		BasicDBList coordinates = new BasicDBList();
+		coordinates.add(lon);
+		coordinates.add(lat);
+		return new BasicDBObject("region", new BasicDBObject("type", "Point").append("coordinates", coordinates))
+				.append("createdAt", new Date(createdAt));
+	}
+
+	@Test
+	public void testInvalidation() {
+		GeoQueryCache cache = new GeoQueryCache.Builder().build();
+		CountingLoader loader = new CountingLoader();
+		cache.get(query(42.0, -83.0, 60000, 10), null, loader, 0);
+		cache.written("intersectionSitData", document(42.0, -83.0, 60000));
+		cache.get(query(42.0, -83.0, 60000, 10), null, loader, 0);
+		assertEquals(1, loader.loads);
+		cache.written(COLLECTION, document(42.0, -83.0, 60000));
+		cache.get(query(42.0, -83.0, 60000, 10), null, loader, 0);
+		assertEquals(2, loader.loads);
+		cache.written(COLLECTION, null);
+		cache.get(query(42.0, -83.0, 60000, 10), null, loader, 0);
+		assertEquals(3, loader.loads);
+		assertEquals(2, cache.getInvalidations());
+	}
+
+	@Test
+	public void testInvalidationIsScopedToTileAndBucket() {
+		GeoQueryCache cache = new GeoQueryCache.Builder().build();
+		CountingLoader loader = new CountingLoader();
+		cache.get(query(42.0, -83.0, 60000, 10), null, loader, 0);
+		// elsewhere in the corridor
+		cache.written(COLLECTION, document(42.01, -83.0, 60000));
+		// before the start of the date range, even rounded down to its bucket
+		cache.written(COLLECTION, document(42.0, -83.0, 59999));
+		cache.get(query(42.0, -83.0, 60000, 10), null, loader, 0);
+		assertEquals(1, loader.loads);
+		assertEquals(0, cache.getInvalidations());
+
+		// in the same tile as the query point
+		cache.written(COLLECTION, document(42.00005, -82.99995, 70000));
+		cache.get(query(42.0, -83.0, 60000, 10), null, loader, 0);
+		assertEquals(2, loader.loads);
+
+		// without a usable geometry the document could be anywhere
+		cache.written(COLLECTION, new BasicDBObject("createdAt", new Date(70000)));
+		cache.get(query(42.0, -83.0, 60000, 10), null, loader, 0);
+		assertEquals(3, loader.loads);
+		assertEquals(2, cache.getInvalidations());
+	}
+
+	@Test
+	public void testBounds() {
+		BasicDBList ring = new BasicDBList();
+		for (double[] point : new double[][] { { -83.1, 42.0 }, { -82.9, 42.0 }, { -83.0, 42.2 }, { -83.1, 42.0 } }) {
+			BasicDBList position = new BasicDBList();
+			position.add(point[0]);
+			position.add(point[1]);
+			ring.add(position);
+		}
+		BasicDBList polygon = new BasicDBList();
+		polygon.add(ring);
+		assertArrayEquals(new double[] { -83.1, 42.0, -82.9, 42.2 }, GeoQueryCache.boundsOf(polygon), 0);
+		assertNull(GeoQueryCache.boundsOf(new BasicDBList()));
+		assertNull(GeoQueryCache.boundsOf("not coordinates"));
+	}
+
+	@Test
+	public void testEviction() {
+		GeoQueryCache cache = new GeoQueryCache.Builder().setMaxEntries(2).build();
+		CountingLoader loader = new CountingLoader();
+		cache.get(query(42.0, -83.0, 60000, 1), null, loader, 0);
+		cache.get(query(42.0, -83.0, 60000, 2), null, loader, 0);
+		cache.get(query(42.0, -83.0, 60000, 3), null, loader, 0);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		// the first one added went first
+		cache.get(query(42.0, -83.0, 60000, 3), null, loader, 0);
+		assertEquals(3, loader.loads);
+		cache.get(query(42.0, -83.0, 60000, 1), null, loader, 0);
+		assertEquals(4, loader.loads);
+	}
+
+	@Test
+	public void testEvictionWhileLoading() {
+		final GeoQueryCache cache = new GeoQueryCache.Builder().setMaxEntries(2).build();
+		final CountingLoader loader = new CountingLoader();
+		List<DBObject> result = cache.get(query(42.0, -83.0, 60000, 1), null, new GeoQueryCache.Loader() {
+			@Override
+			public List<DBObject> load() {
+				// fill the cache while the first query is still loading
+				cache.get(query(42.0, -83.0, 60000, 2), null, loader, 0);
+				cache.get(query(42.0, -83.0, 60000, 3), null, loader, 0);
+				assertEquals(2, cache.size());
+				return loader.load();
+			}
+		}, 0);
+		assertEquals(1, result.size());
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void testReplacedEntriesAreNotEvicted() {
+		GeoQueryCache cache = new GeoQueryCache.Builder().setMaxEntries(2).setTtl(1).build();
+		CountingLoader loader = new CountingLoader();
+		for (int i = 0; i < 100; i++) {
+			cache.get(query(42.0, -83.0, 60000, 1), null, loader, i);
+			cache.get(query(42.0, -83.0, 60000, 2), null, loader, i);
+		}
+		assertEquals(200, loader.loads);
+		assertEquals(2, cache.size());
+		assertEquals(0, cache.getEvictions());
+	}
+
+	@Test
+	public void testFailedLoadIsNotCached() {
+		GeoQueryCache cache = new GeoQueryCache.Builder().build();
+		try {
+			cache.get(query(42.0, -83.0, 60000, 10), null, new GeoQueryCache.Loader() {
+				@Override
+				public List<DBObject> load() {
+					throw new IllegalStateException("query failed");
+				}
+			}, 0);
+			fail("Expected the load failure");
+		} catch (IllegalStateException ex) {
+			assertEquals("query failed", ex.getMessage());
+		}
+		assertEquals(0, cache.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidSize() {
+		new GeoQueryCache.Builder().setMaxEntries(0).build();
+	}
+}
@@ -0,0 +1,263 @@
+package gov.usdot.cv.common.dialog;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import gov.usdot.cv.common.util.UnitTestHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class AsyncReceiptPublisherTest {
+	
+	static final private boolean isDebugOutput = false;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		UnitTestHelper.initLog4j(isDebugOutput);
+	}
+	
+	/** Mocked JMS session that records committed receipt ids and can be made to block or fail */
+	private static class Broker {
+		final List<String> committed = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> pending = new ArrayList<String>();
+		final CountDownLatch release;
+		volatile int failCommits;
+		int commits;
+		final ConnectionFactory factory = mock(ConnectionFactory.class);
+		
+		Broker(CountDownLatch release) throws JMSException {
+			this.release = release;
+			Connection connection = mock(Connection.class);
+			Session session = mock(Session.class);
+			MessageProducer producer = mock(MessageProducer.class);
+			when(factory.createConnection()).thenReturn(connection);
+			when(connection.createSession(true, Session.SESSION_TRANSACTED)).thenReturn(session);
+			when(session.createProducer(any(javax.jms.Destination.class))).thenReturn(producer);
+			when(session.createTextMessage(anyString())).thenAnswer(new Answer<TextMessage>() {
+				public TextMessage answer(InvocationOnMock invocation) throws Throwable {
+					ActiveMQTextMessage message = new ActiveMQTextMessage();
+					message.setText((String)invocation.getArguments()[0]);
+					return message;
+				}
+			});
+			when(session.createBytesMessage()).thenAnswer(new Answer<BytesMessage>() {
+				public BytesMessage answer(InvocationOnMock invocation) throws Throwable {
+					return new ActiveMQBytesMessage();
+				}
+			});
+			doAnswer(new Answer<Void>() {
+				public Void answer(InvocationOnMock invocation) throws Throwable {
+					Broker.this.release.await();
+					Message message = (Message)invocation.getArguments()[0];
+					if (message instanceof TextMessage) {
+						pending.add(new Receipt(((TextMessage)message).getText()).getReceiptId());
+					} else {
+						BytesMessage bytesMessage = (BytesMessage)message;
+						bytesMessage.reset();
+						byte[] bytes = new byte[(int)bytesMessage.getBodyLength()];
+						bytesMessage.readBytes(bytes);
+						pending.add(Receipt.fromBytes(bytes).getReceiptId());
+					}
+					return null;
+				}
+			}).when(producer).send(any(Message.class));
+			doAnswer(new Answer<Void>() {
+				public Void answer(InvocationOnMock invocation) throws Throwable {
+					if (failCommits > 0) {
+						failCommits--;
+						pending.clear();
+						throw new JMSException("broker is down");
+					}
+					commits++;
+					committed.addAll(pending);
+					pending.clear();
+					return null;
+				}
+			}).when(session).commit();
+		}
+	}
+
+	@Test
+	public void testPublish() throws Exception {
+		Broker broker = new Broker(new CountDownLatch(0));
+		broker.failCommits = 1;
+		AsyncReceiptPublisher publisher = new AsyncReceiptPublisher(broker.factory, "receipts", 1000, 10,
+			ReceiptSender.OverflowPolicy.DROP, null, 5000);
+		List<String> expected = send(publisher, 95);
+		publisher.close();
+		assertEquals(expected, broker.committed);
+		assertEquals(95, publisher.getPublished());
+		assertEquals(1, publisher.getFailures());
+		assertTrue(broker.commits >= 10);
+		assertEquals(0, publisher.getQueueDepth());
+		assertTrue(publisher.getMaxLatencyMs() >= publisher.getAverageLatencyMs());
+	}
+
+	@Test
+	public void testDrop() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		Broker broker = new Broker(release);
+		AsyncReceiptPublisher publisher = new AsyncReceiptPublisher(broker.factory, "receipts", 5, 1,
+			ReceiptSender.OverflowPolicy.DROP, null, 5000);
+		send(publisher, 1);
+		// wait for the publisher to take the first receipt so that the queue is empty
+		while (publisher.getQueueDepth() > 0)
+			Thread.sleep(1);
+		send(publisher, 10);
+		assertEquals(5, publisher.getQueueDepth());
+		assertEquals(5, publisher.getDropped());
+		release.countDown();
+		publisher.close();
+		assertEquals(6, broker.committed.size());
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		Broker broker = new Broker(release);
+		AsyncReceiptPublisher publisher = new AsyncReceiptPublisher(broker.factory, "receipts", 5, 3,
+			ReceiptSender.OverflowPolicy.SPILL, null, 5000);
+		List<String> expected = send(publisher, 20);
+		assertTrue(publisher.getSpilled() >= 12);
+		assertEquals(publisher.getSpilled(), publisher.getSpillDepth());
+		release.countDown();
+		publisher.close();
+		assertEquals(0, publisher.getDropped());
+		assertEquals(expected, broker.committed);
+		assertEquals(0, publisher.getSpillDepth());
+	}
+
+	@Test
+	public void testSpillFile() throws Exception {
+		AtomicLong dropped = new AtomicLong();
+		AsyncReceiptPublisher.SpillFile spill = new AsyncReceiptPublisher.SpillFile(null, dropped);
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 100000)
+			large.append(ReceiptIdGenerator.FAST.next());
+		List<AsyncReceiptPublisher.Item> expected = new ArrayList<AsyncReceiptPublisher.Item>();
+		for (int i = 0; i < 2000; i++) {
+			Receipt receipt = new Receipt(ReceiptIdGenerator.FAST.next());
+			if (i == 1000)
+				expected.add(new AsyncReceiptPublisher.Item(large.toString(), null, i));
+			else if (i % 2 == 0)
+				expected.add(new AsyncReceiptPublisher.Item(receipt.toString() + "\u00e9\n", null, i));
+			else
+				expected.add(new AsyncReceiptPublisher.Item(null, receipt.toBytes(), i));
+		}
+		for (int round = 0; round < 2; round++) {
+			for (AsyncReceiptPublisher.Item item : expected)
+				assertTrue(spill.append(item));
+			assertEquals(expected.size(), spill.size());
+			// read back from the file rather than from the writer's queue
+			while (!spill.isWritten())
+				Thread.sleep(1);
+			List<AsyncReceiptPublisher.Item> read = new ArrayList<AsyncReceiptPublisher.Item>();
+			List<AsyncReceiptPublisher.Item> batch = new ArrayList<AsyncReceiptPublisher.Item>();
+			while (spill.size() > 0) {
+				spill.read(batch, 7);
+				assertTrue(batch.size() > 0 && batch.size() <= 7);
+				read.addAll(batch);
+				batch.clear();
+			}
+			assertEquals(expected.size(), read.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i).text, read.get(i).text);
+				assertArrayEquals(expected.get(i).bytes, read.get(i).bytes);
+				assertEquals(expected.get(i).enqueuedAt, read.get(i).enqueuedAt);
+			}
+		}
+		spill.close();
+		assertEquals(0, dropped.get());
+		assertFalse(spill.append(expected.get(0)));
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		Broker broker = new Broker(release);
+		AsyncReceiptPublisher publisher = new AsyncReceiptPublisher(broker.factory, "receipts", 2, 1,
+			ReceiptSender.OverflowPolicy.BLOCK, null, 5000);
+		new Thread(new Runnable() {
+			public void run() {
+				try { Thread.sleep(100); } catch (InterruptedException ignore) { }
+				release.countDown();
+			}
+		}).start();
+		long start = System.nanoTime();
+		List<String> expected = send(publisher, 10);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		publisher.close();
+		assertEquals(expected, broker.committed);
+		assertEquals(0, publisher.getDropped());
+	}
+
+	@Test
+	public void testCloseReleasesBlockedProducer() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		Broker broker = new Broker(release);
+		final AsyncReceiptPublisher publisher = new AsyncReceiptPublisher(broker.factory, "receipts", 2, 1,
+			ReceiptSender.OverflowPolicy.BLOCK, null, 5000);
+		final List<String> accepted = Collections.synchronizedList(new ArrayList<String>());
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				accepted.addAll(send(publisher, 10));
+			}
+		});
+		producer.start();
+		// the publisher holds one receipt in the stuck broker and two are queued
+		long deadline = System.currentTimeMillis() + 5000;
+		while (publisher.getQueued() < 3 && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		Thread.sleep(50);
+		assertTrue(producer.isAlive());
+		Thread closer = new Thread(new Runnable() {
+			public void run() {
+				publisher.close();
+			}
+		});
+		closer.start();
+		// the blocked producer gives up while close() still waits for the broker
+		producer.join(2000);
+		assertFalse(producer.isAlive());
+		assertTrue(closer.isAlive());
+		assertEquals(3, accepted.size());
+		assertEquals(7, publisher.getDropped());
+		release.countDown();
+		closer.join(5000);
+		assertEquals(accepted, broker.committed);
+	}
+	
+	private static List<String> send(AsyncReceiptPublisher publisher, int count) {
+		List<String> receiptIds = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			UUID receiptId = ReceiptIdGenerator.FAST.next();
+			Receipt receipt = new Receipt(receiptId);
+			if (i % 2 == 0 ? publisher.offer(receipt.toString(), null) : publisher.offer(null, receipt.toBytes()))
+				receiptIds.add(receiptId.toString());
+		}
+		return receiptIds;
+	}
+}
@@ -0,0 +1,161 @@
+package gov.usdot.cv.common.dialog;
+
+import static org.junit.Assert.*;
+
+import gov.usdot.cv.common.util.UnitTestHelper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DataBundleBatcherTest {
+	
+	static final private boolean isDebugOutput = false;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		UnitTestHelper.initLog4j(isDebugOutput);
+	}
+	
+	private static class CollectingSink implements DataBundleBatcher.Sink {
+		final List<List<Integer>> batches = new ArrayList<List<Integer>>();
+		
+		@Override
+		public synchronized void send(ByteBuffer batch, int count) {
+			List<Integer> ports = new ArrayList<Integer>();
+			Iterator<DataBundleView> it = DataBundleUtil.decodeBatch(batch);
+			while (it.hasNext())
+				ports.add(it.next().getDestPort());
+			assertEquals(count, ports.size());
+			batches.add(ports);
+		}
+		
+		synchronized int size() {
+			return batches.size();
+		}
+	}
+
+	@Test
+	public void testMaxBundles() throws DataBundleBatcherException {
+		CollectingSink sink = new CollectingSink();
+		DataBundleBatcher batcher = new DataBundleBatcher.Builder().setSink(sink).setMaxBundles(4).setMaxLatency(0).build();
+		for (int i = 0; i < 10; i++)
+			batcher.add(newDataBundle(i, 10));
+		assertEquals(2, sink.size());
+		assertEquals(2, batcher.getPendingBundles());
+		batcher.close();
+		assertEquals(3, sink.size());
+		assertEquals(10, batcher.getBundlesSent());
+		assertEquals(3, batcher.getBatchesSent());
+		assertEquals(4, sink.batches.get(0).size());
+		assertEquals(Integer.valueOf(9), sink.batches.get(2).get(1));
+		try {
+			batcher.add(newDataBundle(0, 10));
+			fail("Closed batcher accepted a data bundle");
+		} catch (DataBundleBatcherException expected) {
+		}
+	}
+
+	@Test
+	public void testMaxBytes() throws DataBundleBatcherException {
+		CollectingSink sink = new CollectingSink();
+		DataBundle dataBundle = newDataBundle(0, 100);
+		int maxBytes = DataBundleUtil.BATCH_HEADER_LENGTH + 3 * (4 + DataBundleUtil.binaryLength(dataBundle)) + 10;
+		DataBundleBatcher batcher = new DataBundleBatcher.Builder().setSink(sink).setMaxBytes(maxBytes).setMaxLatency(0).build();
+		for (int i = 0; i < 7; i++)
+			batcher.add(newDataBundle(i, 100));
+		assertEquals(2, sink.size());
+		assertEquals(3, sink.batches.get(1).size());
+		// larger than a batch goes out on its own
+		batcher.add(newDataBundle(100, maxBytes));
+		assertEquals(4, sink.size());
+		assertEquals(1, sink.batches.get(2).size());
+		assertEquals(Integer.valueOf(100), sink.batches.get(3).get(0));
+		batcher.close();
+	}
+
+	@Test
+	public void testMaxLatency() throws Exception {
+		CollectingSink sink = new CollectingSink();
+		DataBundleBatcher batcher = new DataBundleBatcher.Builder().setSink(sink).setMaxLatency(20).build();
+		batcher.add(newDataBundle(1, 10));
+		batcher.add(newDataBundle(2, 10));
+		// the timeout may or may not split the two data bundles, but neither of them waits for a full batch
+		for (int i = 0; i < 500 && batcher.getBundlesSent() < 2; i++)
+			Thread.sleep(10);
+		assertEquals(2, batcher.getBundlesSent());
+		assertEquals(0, batcher.getPendingBundles());
+		List<Integer> ports = new ArrayList<Integer>();
+		synchronized (sink) {
+			for (List<Integer> batch : sink.batches)
+				ports.addAll(batch);
+		}
+		assertEquals(Arrays.asList(1, 2), ports);
+		batcher.close();
+	}
+
+	@Test(timeout = 10000)
+	public void testAddWhileSending() throws Exception {
+		final CountDownLatch sinkEntered = new CountDownLatch(1);
+		final CountDownLatch sinkRelease = new CountDownLatch(1);
+		final CollectingSink sink = new CollectingSink();
+		final DataBundleBatcher batcher = new DataBundleBatcher.Builder().setMaxBundles(2).setMaxLatency(0).setSink(new DataBundleBatcher.Sink() {
+			@Override
+			public void send(ByteBuffer batch, int count) throws Exception {
+				sinkEntered.countDown();
+				sinkRelease.await();
+				sink.send(batch, count);
+			}
+		}).build();
+		Thread sender = new Thread() {
+			public void run() {
+				try {
+					batcher.add(newDataBundle(1, 10));
+					batcher.add(newDataBundle(2, 10));
+				} catch (DataBundleBatcherException ex) {
+					fail(ex.getMessage());
+				}
+			}
+		};
+		sender.start();
+		sinkEntered.await();
+		// the next batch fills up while the sink is still busy with the first one
+		batcher.add(newDataBundle(3, 10));
+		assertEquals(1, batcher.getPendingBundles());
+		assertEquals(0, batcher.getBatchesSent());
+		sinkRelease.countDown();
+		sender.join();
+		batcher.close();
+		assertEquals(2, sink.size());
+		assertEquals(Arrays.asList(1, 2), sink.batches.get(0));
+		assertEquals(Arrays.asList(3), sink.batches.get(1));
+	}
+
+	@Test
+	public void testSinkFailure() throws DataBundleBatcherException {
+		DataBundleBatcher batcher = new DataBundleBatcher.Builder().setMaxBundles(1).setSink(new DataBundleBatcher.Sink() {
+			@Override
+			public void send(ByteBuffer batch, int count) throws Exception {
+				throw new Exception("broker is down");
+			}
+		}).build();
+		try {
+			batcher.add(newDataBundle(1, 10));
+			fail("Sink failure was not reported");
+		} catch (DataBundleBatcherException expected) {
+		}
+		assertEquals(1, batcher.getBatchesFailed());
+		assertEquals(0, batcher.getPendingBundles());
+		batcher.close();
+	}
+	
+	private static DataBundle newDataBundle(int port, int payloadSize) {
+		return new DataBundle.Builder().setDestHost("localhost").setDestPort(port).setPayload(new byte[payloadSize]).build();
+	}
+}
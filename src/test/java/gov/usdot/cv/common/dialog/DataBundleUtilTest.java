@@ -4,8 +4,16 @@ import static org.junit.Assert.*;
 
 import gov.usdot.cv.common.util.UnitTestHelper;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 
+import javax.jms.JMSException;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -66,4 +74,173 @@ public class DataBundleUtilTest {
 		assertArrayEquals(certificateBytes, dataBundleOut.getCertificate());
 	}
 
-}
+	@Test
+	public void testBinary() throws JMSException {
+		testBinary("localhost", 47651, true,  "some payload text", "some certificate text");
+		testBinary("2607:f0d0:1002:51::4", 47651, false, "some payload text", null);
+		testBinary(null, 0, false, null, null);
+	}
+	
+	@Test
+	public void testBinaryVersion() {
+		DataBundle dataBundle = new DataBundle.Builder().setDestHost("localhost").setDestPort(47651).setPayload("payload".getBytes()).build();
+		byte[] encoded = DataBundleUtil.encodeBinary(dataBundle);
+		assertEquals(DataBundleUtil.BINARY_UUID_FORMAT_VERSION, encoded[0]);
+		assertEquals(DataBundleUtil.binaryLength(dataBundle), encoded.length);
+		encoded[0] = 0x7f;
+		assertNull(DataBundleUtil.decodeBinary(encoded));
+		assertNull(DataBundleUtil.decodeBinary(new byte[0]));
+		assertNull(DataBundleUtil.decodeBinary(new byte[] { DataBundleUtil.BINARY_FORMAT_VERSION, 0x7f }));
+		assertNull(DataBundleUtil.decodeBinary(new byte[] { DataBundleUtil.BINARY_UUID_FORMAT_VERSION, 0x7f }));
+	}
+	
+	@Test
+	public void testBinaryReceiptIdFormat() throws JMSException {
+		UUID uuid = UUID.randomUUID();
+		DataBundle.Builder builder = new DataBundle.Builder().setDestHost("localhost").setDestPort(47651).setPayload("payload".getBytes());
+		
+		// UUID receipt ids take 16 bytes instead of the length prefixed text
+		DataBundle binaryId = builder.setReceiptId(uuid).build();
+		DataBundle textId = builder.setReceiptId(uuid.toString()).build();
+		for (DataBundle dataBundle : new DataBundle[] { binaryId, textId }) {
+			byte[] encoded = DataBundleUtil.encodeBinary(dataBundle);
+			assertEquals(DataBundleUtil.BINARY_UUID_FORMAT_VERSION, encoded[0]);
+			assertEquals(uuid, DataBundleUtil.getReceiptId(encoded, 1));
+			assertEquals(1 + DataBundleUtil.BINARY_RECEIPT_ID_LENGTH + 4 + "localhost".length() + 5 + 4 + 4 + "payload".length(), encoded.length);
+			DataBundle decoded = DataBundleUtil.decodeBinary(encoded);
+			assertEquals(uuid, decoded.getReceiptUuid());
+			assertEquals(uuid.toString(), decoded.getReceiptId());
+			
+			ActiveMQBytesMessage bytesMessage = new ActiveMQBytesMessage();
+			DataBundleUtil.encodeBinary(dataBundle, bytesMessage);
+			bytesMessage.reset();
+			assertEquals(encoded.length, bytesMessage.getBodyLength());
+			assertEquals(uuid.toString(), DataBundleUtil.decode(bytesMessage).getReceiptId());
+		}
+		
+		// text that would not come back the same from the binary form stays text
+		for (String receiptId : new String[] { "not a uuid", uuid.toString().toUpperCase(), "1-1-1-1-1" }) {
+			DataBundle dataBundle = builder.setReceiptId(receiptId).build();
+			byte[] encoded = DataBundleUtil.encodeBinary(dataBundle);
+			assertEquals(DataBundleUtil.BINARY_FORMAT_VERSION, encoded[0]);
+			assertEquals(DataBundleUtil.binaryLength(dataBundle), encoded.length);
+			assertEquals(receiptId, DataBundleUtil.decodeBinary(encoded).getReceiptId());
+		}
+	}
+	
+	public void testBinary(String destHost, int destPort, boolean fromForwarder, String payload, String certificate ) throws JMSException {
+		DataBundle dataBundleIn;
+		try {
+			dataBundleIn = new DataBundle.Builder().setDestHost(destHost).setDestPort(destPort).setFromForwarder(fromForwarder)
+				.setPayload(payload != null ? payload.getBytes() : null).setCertificate(certificate != null ? certificate.getBytes() : null).build();
+		} catch (NullPointerException ex) {
+			return;
+		}
+		
+		// buffer with other content around the bundle
+		ByteBuffer buffer = ByteBuffer.allocate(DataBundleUtil.binaryLength(dataBundleIn) + 10);
+		buffer.position(3);
+		DataBundleUtil.encodeBinary(dataBundleIn, buffer);
+		assertEquals(3 + DataBundleUtil.binaryLength(dataBundleIn), buffer.position());
+		buffer.flip();
+		buffer.position(3);
+		assertBundleEquals(dataBundleIn, DataBundleUtil.decodeBinary(buffer));
+		assertEquals(buffer.limit(), buffer.position());
+		
+		assertBundleEquals(dataBundleIn, DataBundleUtil.decodeBinary(DataBundleUtil.encodeBinary(dataBundleIn)));
+		
+		ActiveMQBytesMessage bytesMessage = new ActiveMQBytesMessage();
+		DataBundleUtil.encodeBinary(dataBundleIn, bytesMessage);
+		bytesMessage.reset();
+		assertEquals(DataBundleUtil.binaryLength(dataBundleIn), bytesMessage.getBodyLength());
+		assertBundleEquals(dataBundleIn, DataBundleUtil.decode(bytesMessage));
+		
+		// old producers keep sending the Base64 text format
+		ActiveMQTextMessage textMessage = new ActiveMQTextMessage();
+		textMessage.setText(DataBundleUtil.encode(dataBundleIn));
+		assertBundleEquals(dataBundleIn, DataBundleUtil.decode(textMessage));
+	}
+	
+	private static void assertBundleEquals(DataBundle expected, DataBundle actual) {
+		assertNotNull(actual);
+		assertEquals(expected.getReceiptId(), actual.getReceiptId());
+		assertEquals(expected.getDestHost(), actual.getDestHost());
+		assertEquals(expected.getDestPort(), actual.getDestPort());
+		assertEquals(expected.fromForwarder(), actual.fromForwarder());
+		assertArrayEquals(expected.getPayload(), actual.getPayload());
+		assertArrayEquals(expected.getCertificate(), actual.getCertificate());
+	}
+	
+	@Test
+	public void testBinaryReceiptId() {
+		byte[] payload = "some payload text".getBytes();
+		UUID receiptId = ReceiptIdGenerator.FAST.next();
+		assertEquals(4, receiptId.version());
+		assertEquals(2, receiptId.variant());
+		
+		byte[] payloadWithId = DataBundleUtil.prependBinaryReceiptId(receiptId, payload);
+		assertEquals(DataBundleUtil.BINARY_RECEIPT_ID_LENGTH + payload.length, payloadWithId.length);
+		assertEquals(receiptId, DataBundleUtil.getBinaryReceiptId(payloadWithId));
+		
+		DataBundle dataBundle = DataBundleUtil.unwrapBinary(payloadWithId, "localhost", 47651);
+		assertEquals(receiptId, dataBundle.getReceiptUuid());
+		assertEquals(receiptId.toString(), dataBundle.getReceiptId());
+		assertEquals("localhost", dataBundle.getDestHost());
+		assertArrayEquals(payload, dataBundle.getPayload());
+		
+		dataBundle = DataBundleUtil.unwrap(DataBundleUtil.prependReceiptId(receiptId, payload), "localhost", 47651);
+		assertEquals(receiptId.toString(), dataBundle.getReceiptId());
+		assertEquals(receiptId, dataBundle.getReceiptUuid());
+		assertArrayEquals(payload, dataBundle.getPayload());
+		
+		// binary receipt id survives the JMS encoding as its text form
+		assertEquals(receiptId.toString(), DataBundleUtil.decode(DataBundleUtil.encode(dataBundle)).getReceiptId());
+		
+		Receipt receipt = new Receipt.Builder().setReceiptId(receiptId).build();
+		assertEquals(receiptId.toString(), receipt.getReceiptId());
+		Receipt parsed = Receipt.fromBytes(receipt.toBytes());
+		assertEquals(receiptId, parsed.getReceiptUuid());
+		assertEquals(receiptId.toString(), new Receipt(parsed.toString()).getReceiptId());
+		assertNull(new Receipt.Builder().setReceiptId("not a uuid").build().toBytes());
+	}
+	
+	@Test
+	public void testBatch() throws JMSException {
+		List<DataBundle> dataBundles = new ArrayList<DataBundle>();
+		for (int i = 0; i < 10; i++) {
+			dataBundles.add(new DataBundle.Builder().setDestHost("localhost").setDestPort(47651 + i)
+				.setPayload(("some payload text " + i).getBytes()).build());
+		}
+		byte[] batch = DataBundleUtil.encodeBatch(dataBundles);
+		assertEquals(DataBundleUtil.batchLength(dataBundles), batch.length);
+		assertTrue(DataBundleUtil.isBatch(ByteBuffer.wrap(batch)));
+		assertFalse(DataBundleUtil.isBatch(ByteBuffer.wrap(dataBundles.get(0).encodeBinary())));
+		
+		Iterator<DataBundleView> it = DataBundleUtil.decodeBatch(ByteBuffer.wrap(batch));
+		for (DataBundle expected : dataBundles) {
+			assertTrue(it.hasNext());
+			assertBundleEquals(expected, it.next().toDataBundle());
+		}
+		assertFalse(it.hasNext());
+		
+		ActiveMQBytesMessage message = new ActiveMQBytesMessage();
+		message.writeBytes(batch);
+		message.reset();
+		it = DataBundleUtil.decodeBatch(message);
+		int count = 0;
+		while (it.hasNext()) {
+			assertEquals(dataBundles.get(count++).getDestPort(), it.next().getDestPort());
+		}
+		assertEquals(dataBundles.size(), count);
+		
+		// truncated batch stops at the last complete data bundle
+		it = DataBundleUtil.decodeBatch(ByteBuffer.wrap(batch, 0, batch.length - 1));
+		count = 0;
+		while (it.hasNext()) {
+			assertTrue(it.next().isValid());
+			count++;
+		}
+		assertEquals(dataBundles.size() - 1, count);
+	}
+
+}
\ No newline at end of file
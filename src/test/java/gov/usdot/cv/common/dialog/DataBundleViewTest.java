@@ -0,0 +1,101 @@
+package gov.usdot.cv.common.dialog;
+
+import static org.junit.Assert.*;
+
+import gov.usdot.cv.common.util.UnitTestHelper;
+
+import java.nio.ByteBuffer;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DataBundleViewTest {
+	
+	static final private boolean isDebugOutput = false;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		UnitTestHelper.initLog4j(isDebugOutput);
+	}
+
+	@Test
+	public void test() {
+		test("localhost", 47651, true,  "some payload text", "some certificate text");
+		test("2607:f0d0:1002:51::4", 47651, false, "some payload text", null);
+	}
+	
+	@Test
+	public void testReceiptId() {
+		DataBundle.Builder builder = new DataBundle.Builder().setDestHost("localhost").setDestPort(47651).setPayload("payload".getBytes());
+		DataBundleView view = new DataBundleView();
+		
+		DataBundle binaryId = builder.build();
+		view.wrap(ByteBuffer.wrap(DataBundleUtil.encodeBinary(binaryId)));
+		assertEquals(binaryId.getReceiptUuid(), view.getReceiptUuid());
+		assertEquals(DataBundleUtil.BINARY_RECEIPT_ID_LENGTH, view.getReceiptIdBuffer().remaining());
+		test(binaryId, view);
+		
+		DataBundle textId = builder.setReceiptId("not a uuid").build();
+		view.wrap(ByteBuffer.wrap(DataBundleUtil.encodeBinary(textId)));
+		assertNull(view.getReceiptUuid());
+		assertEquals(ByteBuffer.wrap("not a uuid".getBytes()), view.getReceiptIdBuffer());
+		test(textId, view);
+	}
+	
+	@Test
+	public void testInvalid() {
+		DataBundleView view = new DataBundleView();
+		assertFalse(view.wrap(ByteBuffer.allocate(0)).isValid());
+		assertFalse(view.wrap(ByteBuffer.wrap(new byte[] { 0x7f })).isValid());
+		assertFalse(view.wrap(ByteBuffer.wrap(new byte[] { DataBundleUtil.BINARY_UUID_FORMAT_VERSION, 0x7f })).isValid());
+		
+		DataBundle dataBundle = new DataBundle.Builder().setDestHost("localhost").setDestPort(47651).setPayload("payload".getBytes()).build();
+		byte[] encoded = DataBundleUtil.encodeBinary(dataBundle);
+		assertFalse(view.wrap(ByteBuffer.wrap(encoded, 0, encoded.length - 1)).isValid());
+		assertNull(view.getDestHost());
+		assertNull(view.getPayload());
+		assertNull(view.toDataBundle());
+		assertTrue(view.wrap(ByteBuffer.wrap(encoded)).isValid());
+		assertEquals("localhost", view.getDestHost());
+	}
+	
+	public void test(String destHost, int destPort, boolean fromForwarder, String payload, String certificate ) {
+		DataBundle dataBundle = new DataBundle.Builder().setDestHost(destHost).setDestPort(destPort).setFromForwarder(fromForwarder)
+			.setPayload(payload.getBytes()).setCertificate(certificate != null ? certificate.getBytes() : null).build();
+		
+		// binary bundle followed by another one in a direct buffer
+		int length = DataBundleUtil.binaryLength(dataBundle);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(2 * length);
+		DataBundleUtil.encodeBinary(dataBundle, buffer);
+		DataBundleUtil.encodeBinary(dataBundle, buffer);
+		buffer.flip();
+		DataBundleView view = new DataBundleView(buffer);
+		test(dataBundle, view);
+		assertEquals(length, view.getEncodedLength());
+		assertEquals(0, buffer.position());
+		buffer.position(length);
+		test(dataBundle, view.wrap(buffer));
+		
+		test(dataBundle, view.wrap(DataBundleUtil.encode(dataBundle)));
+	}
+	
+	private void test(DataBundle expected, DataBundleView view) {
+		assertTrue(view.isValid());
+		assertEquals(expected.getReceiptId(), view.getReceiptId());
+		assertEquals(expected.getDestHost(), view.getDestHost());
+		assertEquals(expected.getDestPort(), view.getDestPort());
+		assertEquals(expected.fromForwarder(), view.fromForwarder());
+		assertEquals(expected.getPayload().length, view.getPayloadLength());
+		assertTrue(view.getPayload().isReadOnly());
+		assertEquals(ByteBuffer.wrap(expected.getPayload()), view.getPayload());
+		assertArrayEquals(expected.getPayload(), view.getPayloadBytes());
+		assertArrayEquals(expected.getCertificate(), view.getCertificateBytes());
+		
+		DataBundle actual = view.toDataBundle();
+		assertEquals(expected.getReceiptId(), actual.getReceiptId());
+		assertEquals(expected.getDestHost(), actual.getDestHost());
+		assertArrayEquals(expected.getPayload(), actual.getPayload());
+		assertArrayEquals(expected.getCertificate(), actual.getCertificate());
+	}
+
+}
@@ -0,0 +1,239 @@
+package gov.usdot.cv.common.dialog;
+
+import static org.junit.Assert.*;
+
+import gov.usdot.cv.common.util.UnitTestHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ReceiptReceiverTest {
+	
+	static final private boolean isDebugOutput = false;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		UnitTestHelper.initLog4j(isDebugOutput);
+	}
+	
+	private static ActiveMQTextMessage textReceipt(String receiptId) throws Exception {
+		ActiveMQTextMessage message = new ActiveMQTextMessage();
+		message.setText(new Receipt.Builder().setReceiptId(receiptId).build().toString());
+		return message;
+	}
+	
+	private static ActiveMQBytesMessage bytesReceipt(UUID receiptId) throws Exception {
+		ActiveMQBytesMessage message = new ActiveMQBytesMessage();
+		message.writeBytes(new Receipt(receiptId).toBytes());
+		message.reset();
+		return message;
+	}
+	
+	@Test
+	public void drainToWithoutWorkers() throws Exception {
+		ReceiptReceiver receiver = new ReceiptReceiver("test.receipts") {};
+		receiver.setWorkerThreads(0);
+		UUID uuid = UUID.randomUUID();
+		receiver.onMessage(textReceipt("first"));
+		receiver.onMessage(bytesReceipt(uuid));
+		receiver.onMessage(textReceipt("third"));
+		
+		ActiveMQBytesMessage truncated = new ActiveMQBytesMessage();
+		truncated.writeBytes(new byte[3]);
+		truncated.reset();
+		receiver.onMessage(truncated);
+		assertEquals(3, receiver.getReceiptsReceived());
+		
+		List<Receipt> batch = new ArrayList<Receipt>();
+		assertEquals(2, receiver.drainTo(batch, 2));
+		assertEquals("first", batch.get(0).getReceiptId());
+		assertEquals(uuid, batch.get(1).getReceiptUuid());
+		assertEquals(1, receiver.drainTo(batch, 10));
+		assertEquals("third", batch.get(2).getReceiptId());
+		assertEquals(0, receiver.drainTo(batch, 10));
+	}
+	
+	@Test
+	public void workersProcessBatches() throws Exception {
+		final int count = 10000;
+		final CountDownLatch done = new CountDownLatch(count);
+		final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+		final AtomicInteger maxBatch = new AtomicInteger();
+		ReceiptReceiver receiver = new ReceiptReceiver("test.receipts") {
+			@Override
+			protected void processReceipts(List<Receipt> batch) {
+				int size = batch.size();
+				for (int max = maxBatch.get(); size > max && !maxBatch.compareAndSet(max, size); max = maxBatch.get())
+					;
+				for (Receipt receipt : batch) {
+					seen.add(receipt.getReceiptId());
+					done.countDown();
+				}
+			}
+		};
+		receiver.setWorkerThreads(4);
+		receiver.setMaxBatchSize(64);
+		receiver.startWorker();
+		try {
+			for (int i = 0; i < count; i++)
+				receiver.onMessage(bytesReceipt(UUID.randomUUID()));
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(count, seen.size());
+			assertEquals(count, receiver.getReceiptsReceived());
+			assertTrue("Largest batch " + maxBatch.get(), maxBatch.get() <= 64);
+		} finally {
+			receiver.stopWorker();
+		}
+	}
+	
+	@Test
+	public void legacyProcessReceipts() throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		ReceiptReceiver receiver = new ReceiptReceiver("test.receipts") {
+			@SuppressWarnings("deprecation")
+			@Override
+			protected void processReceipts() {
+				synchronized (receipts) {
+					if (receipts.size() > 0 && "legacy".equals(receipts.get(0).getReceiptId())) {
+						receipts.clear();
+						done.countDown();
+					}
+				}
+			}
+		};
+		receiver.startWorker();
+		try {
+			receiver.onMessage(textReceipt("legacy"));
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+		} finally {
+			receiver.stopWorker();
+		}
+	}
+	
+	@Test
+	public void legacyProcessReceiptsRunsPeriodicallyOnOneWorker() throws Exception {
+		final CountDownLatch ticks = new CountDownLatch(2);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		ReceiptReceiver receiver = new ReceiptReceiver("test.receipts") {
+			@SuppressWarnings("deprecation")
+			@Override
+			protected void processReceipts() {
+				int now = running.incrementAndGet();
+				if (now > maxRunning.get())
+					maxRunning.set(now);
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException ex) {
+				}
+				running.decrementAndGet();
+				if (receipts.isEmpty())
+					ticks.countDown();
+				receipts.clear();
+			}
+		};
+		receiver.setWorkerThreads(4);
+		receiver.startWorker();
+		try {
+			for (int i = 0; i < 1000; i++)
+				receiver.onMessage(textReceipt("r" + i));
+			// no more receipts arrive, the original contract still calls processReceipts() every 2 seconds
+			assertTrue(ticks.await(10, TimeUnit.SECONDS));
+			assertEquals(1, maxRunning.get());
+		} finally {
+			receiver.stopWorker();
+		}
+	}
+	
+	@Test
+	public void restartWaitsForLegacyWorker() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch restarted = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		ReceiptReceiver receiver = new ReceiptReceiver("test.receipts") {
+			@SuppressWarnings("deprecation")
+			@Override
+			protected void processReceipts() {
+				int now = running.incrementAndGet();
+				if (now > maxRunning.get())
+					maxRunning.set(now);
+				boolean first = entered.getCount() > 0;
+				entered.countDown();
+				try {
+					Thread.sleep(first ? 200 : 1);
+				} catch (InterruptedException ex) {
+				}
+				running.decrementAndGet();
+				synchronized (receipts) {
+					if (!first && !receipts.isEmpty())
+						restarted.countDown();
+					receipts.clear();
+				}
+			}
+		};
+		receiver.startWorker();
+		try {
+			receiver.onMessage(textReceipt("before"));
+			assertTrue(entered.await(5, TimeUnit.SECONDS));
+			// dispose() followed by initialize()
+			receiver.stopWorker();
+			assertEquals(0, running.get());
+			receiver.startWorker();
+			receiver.onMessage(textReceipt("after"));
+			assertTrue(restarted.await(5, TimeUnit.SECONDS));
+			assertEquals(1, maxRunning.get());
+		} finally {
+			receiver.stopWorker();
+		}
+	}
+	
+	@Test
+	public void handoffLatency() throws Exception {
+		final int count = 1000;
+		final long [] latencies = new long[count];
+		final CountDownLatch done = new CountDownLatch(count);
+		final long [] sentAt = new long[1];
+		ReceiptReceiver receiver = new ReceiptReceiver("test.receipts") {
+			@Override
+			protected void processReceipts(List<Receipt> batch) {
+				for (int i = 0; i < batch.size(); i++) {
+					latencies[count - (int)done.getCount()] = System.nanoTime() - sentAt[0];
+					done.countDown();
+				}
+			}
+		};
+		receiver.startWorker();
+		try {
+			for (int i = 0; i < count; i++) {
+				ActiveMQBytesMessage message = bytesReceipt(UUID.randomUUID());
+				long expected = done.getCount() - 1;
+				sentAt[0] = System.nanoTime();
+				receiver.onMessage(message);
+				while (done.getCount() > expected)
+					Thread.yield();
+			}
+			long [] sorted = latencies.clone();
+			java.util.Arrays.sort(sorted);
+			long median = sorted[count / 2];
+			if (isDebugOutput)
+				System.out.println(String.format("Median handoff latency %d us", median / 1000));
+			// the legacy worker polled every 2 seconds, make sure a receipt is not left waiting for a poll
+			assertTrue("Median handoff latency " + median, median < TimeUnit.MILLISECONDS.toNanos(100));
+		} finally {
+			receiver.stopWorker();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package gov.usdot.cv.common.dialog;
+
+import static org.junit.Assert.*;
+
+import java.util.UUID;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import org.junit.Test;
+
+public class ReceiptTest {
+	
+	private static void assertSameAsJsonLib(String text) {
+		JSONObject record = JSONObject.fromObject(text);
+		String expected = record.has("receiptId") ? record.getString("receiptId") : null;
+		assertEquals(text, expected, new Receipt(text).getReceiptId());
+	}
+	
+	@Test
+	public void scansPlainRecords() {
+		String receiptId = UUID.randomUUID().toString();
+		String text = "{\"receiptId\":\"" + receiptId + "\"}";
+		assertEquals(receiptId, Receipt.scanReceiptId(text));
+		assertEquals(receiptId, Receipt.scanReceiptId(" { \"receiptId\" : \"" + receiptId + "\" } "));
+		assertEquals(receiptId, Receipt.scanReceiptId("{\"a\":[1,{\"b\":\"}\"}],\"n\":-1.5e3,\"t\":true,\"receiptId\":\"" + receiptId + "\",\"o\":{}}"));
+		assertNull(Receipt.scanReceiptId("{}"));
+		assertNull(Receipt.scanReceiptId("{\"other\":\"value\"}"));
+		
+		Receipt receipt = new Receipt(text);
+		assertEquals(receiptId, receipt.getReceiptId());
+		assertEquals(UUID.fromString(receiptId), receipt.getReceiptUuid());
+		assertEquals(text, receipt.toString());
+		assertEquals(receiptId, receipt.getRecord().getString("receiptId"));
+		assertEquals(receiptId, receipt.getReceiptId());
+	}
+	
+	@Test
+	public void leavesUnusualRecordsToJsonLib() {
+		String [] texts = {
+			"{\"receiptId\":\"a\\\"b\"}",
+			"{\"receiptId\":12345}",
+			"{\"receiptId\":\"null\"}",
+			"{\"receiptId\":\"{\\\"x\\\":1}\"}",
+			"{\"receiptId\":\"one\",\"receiptId\":\"two\"}",
+			"{receiptId:'unquoted'}",
+		};
+		for (String text : texts) {
+			assertSame(text, Receipt.NOT_SCANNED, Receipt.scanReceiptId(text));
+			assertSameAsJsonLib(text);
+		}
+		assertSame(Receipt.NOT_SCANNED, Receipt.scanReceiptId("{\"receiptId\":\"abc\""));
+		assertSame(Receipt.NOT_SCANNED, Receipt.scanReceiptId(null));
+	}
+	
+	@Test
+	public void matchesJsonLib() {
+		String [] texts = {
+			"{\"receiptId\":\"abc\"}",
+			"{\"receiptIdX\":\"abc\",\"receiptId\":\"def\"}",
+			"{\"nested\":{\"receiptId\":\"inner\"},\"receiptId\":\"outer\"}",
+			"{\"nested\":{\"receiptId\":\"inner\"}}",
+			"{\"receiptId\":\"\"}",
+		};
+		for (String text : texts)
+			assertSameAsJsonLib(text);
+	}
+	
+	@Test(expected=JSONException.class)
+	public void rejectsMalformedRecords() {
+		new Receipt("not a receipt");
+	}
+	
+	@Test
+	public void binaryRoundTrip() {
+		UUID receiptId = UUID.randomUUID();
+		Receipt receipt = Receipt.fromBytes(new Receipt(receiptId).toBytes());
+		assertEquals(receiptId, receipt.getReceiptUuid());
+		assertEquals(receiptId.toString(), new Receipt(receipt.toString()).getReceiptId());
+		assertEquals(receipt.getRecord().toString(), new Receipt(receiptId).toString());
+	}
+}
@@ -0,0 +1,194 @@
+package gov.usdot.cv.common.dialog;
+
+import static org.junit.Assert.*;
+
+import gov.usdot.cv.common.util.UnitTestHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ReceiptTrackerTest {
+	
+	static final private boolean isDebugOutput = false;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		UnitTestHelper.initLog4j(isDebugOutput);
+	}
+	
+	@Test
+	public void matchesTrackedReceipts() {
+		ReceiptTracker<String> tracker = new ReceiptTracker.Builder<String>().build();
+		try {
+			UUID receiptId = UUID.randomUUID();
+			assertTrue(tracker.track(receiptId, "bundle"));
+			assertFalse(tracker.track(receiptId, "again"));
+			assertEquals(1, tracker.getPendingCount());
+			
+			assertNull(tracker.match("unknown"));
+			assertEquals("bundle", tracker.match(new Receipt(receiptId)));
+			assertNull(tracker.match(receiptId.toString()));
+			
+			assertEquals(0, tracker.getPendingCount());
+			assertEquals(1, tracker.getTracked());
+			assertEquals(1, tracker.getMatched());
+			assertEquals(1, tracker.getDuplicates());
+			assertEquals(1, tracker.getUnknown());
+			assertEquals(1, tracker.getRejected());
+			assertEquals(0, tracker.getLate());
+		} finally {
+			tracker.close();
+		}
+	}
+	
+	@Test
+	public void expiresAndEvicts() {
+		final List<String> expired = Collections.synchronizedList(new ArrayList<String>());
+		ReceiptTracker<Integer> tracker = new ReceiptTracker.Builder<Integer>()
+			.setTimeout(10000).setRetention(20000).setTickDuration(100)
+			.setExpiryListener(new ReceiptTracker.ExpiryListener<Integer>() {
+				public void expired(String receiptId, Integer metadata) {
+					expired.add(receiptId + ":" + metadata);
+				}
+			}).build();
+		try {
+			long start = ReceiptTracker.now();
+			tracker.track("a", 1);
+			tracker.track("b", 2);
+			tracker.advance(start + 5000);
+			assertEquals(Integer.valueOf(2), tracker.match("b"));
+			
+			tracker.advance(start + 10200);
+			assertEquals(Collections.singletonList("a:1"), expired);
+			assertEquals(1, tracker.getExpired());
+			assertEquals(0, tracker.getPendingCount());
+			assertEquals(2, tracker.getSize());
+			
+			// tombstones recognize late and duplicate receipts until the retention ends
+			assertNull(tracker.match("a"));
+			assertEquals(1, tracker.getLate());
+			tracker.advance(start + 25200);
+			assertEquals(1, tracker.getSize());
+			assertNull(tracker.match("b"));
+			assertEquals(1, tracker.getUnknown());
+			tracker.advance(start + 30200);
+			assertEquals(0, tracker.getSize());
+			assertNull(tracker.match("a"));
+			assertEquals(2, tracker.getUnknown());
+			assertEquals(1, tracker.getLate());
+		} finally {
+			tracker.close();
+		}
+	}
+	
+	@Test
+	public void boundsMemory() {
+		ReceiptTracker<Object> tracker = new ReceiptTracker.Builder<Object>().setMaxEntries(3).build();
+		try {
+			for (int i = 0; i < 5; i++)
+				tracker.track("r" + i, null);
+			assertEquals(3, tracker.getSize());
+			assertEquals(2, tracker.getRejected());
+			assertFalse(tracker.track("r5", null));
+		} finally {
+			tracker.close();
+		}
+	}
+	
+	@Test
+	public void expiresOnTimer() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		ReceiptTracker<Object> tracker = new ReceiptTracker.Builder<Object>()
+			.setTimeout(50).setTickDuration(10)
+			.setExpiryListener(new ReceiptTracker.ExpiryListener<Object>() {
+				public void expired(String receiptId, Object metadata) {
+					latch.countDown();
+				}
+			}).build();
+		try {
+			tracker.track("r", null);
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+		} finally {
+			tracker.close();
+		}
+	}
+	
+	@Test
+	public void concurrentTrackAndMatch() throws Exception {
+		final int threads = 4;
+		final int perThread = 20000;
+		final ReceiptTracker<Integer> tracker = new ReceiptTracker.Builder<Integer>().setMaxEntries(threads * perThread).build();
+		final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+		try {
+			List<Thread> workers = new ArrayList<Thread>();
+			for (int t = 0; t < threads; t++) {
+				final int base = t * perThread;
+				workers.add(new Thread() {
+					public void run() {
+						for (int i = base; i < base + perThread; i++) {
+							if (!tracker.track("r" + i, i))
+								failures.add("r" + i + " not tracked");
+							if (i > base) {
+								Integer metadata = tracker.match("r" + (i - 1));
+								if (!Integer.valueOf(i - 1).equals(metadata))
+									failures.add("r" + (i - 1) + " matched " + metadata);
+							}
+						}
+					}
+				});
+			}
+			for (Thread worker : workers)
+				worker.start();
+			for (Thread worker : workers)
+				worker.join();
+			assertEquals(Collections.emptyList(), failures);
+			assertEquals(threads * perThread, tracker.getTracked());
+			assertEquals(threads * (perThread - 1), tracker.getMatched());
+			assertEquals(threads, tracker.getPendingCount());
+		} finally {
+			tracker.close();
+		}
+	}
+	
+	@Test
+	public void matchRacingExpiryKeepsSize() throws Exception {
+		final int threads = 4;
+		final int perThread = 5000;
+		final ReceiptTracker<Integer> tracker = new ReceiptTracker.Builder<Integer>()
+			.setTimeout(2).setRetention(2).setTickDuration(1).setMaxEntries(threads * perThread).build();
+		try {
+			List<Thread> workers = new ArrayList<Thread>();
+			for (int t = 0; t < threads; t++) {
+				final int base = t * perThread;
+				workers.add(new Thread() {
+					public void run() {
+						// matches land around the timeout so some of them race the wheel expiring the entry
+						for (int i = base; i < base + perThread; i++) {
+							tracker.track("r" + i, i);
+							if (i - base >= 8)
+								tracker.match("r" + (i - 8));
+						}
+					}
+				});
+			}
+			for (Thread worker : workers)
+				worker.start();
+			for (Thread worker : workers)
+				worker.join();
+			tracker.close();
+			tracker.advance(ReceiptTracker.now() + 1000);
+			assertEquals(0, tracker.getPendingCount());
+			assertEquals(tracker.getTracked(), tracker.getMatched() + tracker.getExpired());
+			assertEquals(0, tracker.getSize());
+		} finally {
+			tracker.close();
+		}
+	}
+}
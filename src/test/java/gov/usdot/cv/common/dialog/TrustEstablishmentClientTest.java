@@ -0,0 +1,327 @@
+package gov.usdot.cv.common.dialog;
+
+import static org.junit.Assert.*;
+
+import gov.usdot.asn1.generated.j2735.semi.GroupID;
+import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
+import gov.usdot.cv.common.util.UnitTestHelper;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TrustEstablishmentClientTest {
+
+	static final private boolean isDebugOutput = false;
+
+	private static final SemiDialogID DIALOG_ID = SemiDialogID.advSitDataDep;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		UnitTestHelper.initLog4j(isDebugOutput);
+	}
+
+	/**
+	 * Plain binary messages instead of J2735 so that the handshakes run without ASN.1:
+	 * request is requestID and dialogID, response adds an expired flag and the request hash.
+	 */
+	private static class LoopbackCodec extends TrustEstablishmentCodec {
+		LoopbackCodec() {
+			super(null, null, false);
+		}
+
+		@Override
+		Request encodeRequest(int requestID, SemiDialogID dialogID, GroupID groupID) throws TrustEstablishmentException {
+			byte[] bytes = ByteBuffer.allocate(12).putInt(requestID).putLong(dialogID.longValue()).array();
+			try {
+				return new Request(bytes, getDigest().digest(bytes));
+			} catch (Exception ex) {
+				throw new TrustEstablishmentException("Couldn't hash request", ex);
+			}
+		}
+
+		@Override
+		Response decodeResponse(byte[] responseBytes) {
+			ByteBuffer buffer = ByteBuffer.wrap(responseBytes);
+			int requestID = buffer.getInt();
+			long dialogID = buffer.getLong();
+			boolean expired = buffer.get() != 0;
+			byte[] hash = new byte[buffer.remaining()];
+			buffer.get(hash);
+			return new Response(requestID, dialogID, expired, "", hash);
+		}
+	}
+
+	private enum Reply {
+		ACCEPT,
+		REJECT,
+		DROP
+	}
+
+	/**
+	 * Answers requests on a loopback port, how it answers each attempt is up to the test
+	 */
+	private static class Responder extends Thread {
+		final DatagramSocket socket;
+		final ConcurrentHashMap<Integer,AtomicInteger> attempts = new ConcurrentHashMap<Integer,AtomicInteger>();
+		final AtomicInteger requests = new AtomicInteger();
+
+		Responder() throws SocketException {
+			socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			setDaemon(true);
+			start();
+		}
+
+		int getPort() {
+			return socket.getLocalPort();
+		}
+
+		int getAttempts(int requestID) {
+			AtomicInteger count = attempts.get(requestID);
+			return count != null ? count.get() : 0;
+		}
+
+		/**
+		 * @param attempt 1 for the first request with the requestID
+		 */
+		Reply reply(int requestID, int attempt) {
+			return Reply.ACCEPT;
+		}
+
+		public void run() {
+			byte[] buffer = new byte[TrustEstablishmentCodec.MAX_PACKET_SIZE];
+			while (!socket.isClosed()) {
+				try {
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					socket.receive(packet);
+					requests.incrementAndGet();
+					ByteBuffer request = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+					int requestID = request.getInt();
+					long dialogID = request.getLong();
+					attempts.putIfAbsent(requestID, new AtomicInteger());
+					Reply reply = reply(requestID, attempts.get(requestID).incrementAndGet());
+					if (reply == Reply.DROP)
+						continue;
+					byte[] hash = TrustEstablishmentCodec.getDigest().digest(
+							java.util.Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength()));
+					if (reply == Reply.REJECT)
+						hash[0] ^= 1;
+					byte[] response = ByteBuffer.allocate(13 + hash.length).putInt(requestID).putLong(dialogID).put((byte)0).put(hash).array();
+					socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+				} catch (IOException ex) {
+					if (!socket.isClosed())
+						ex.printStackTrace();
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+
+		void close() {
+			socket.close();
+		}
+	}
+
+	private Responder responder;
+	private int clientPort;
+	private final List<TrustEstablishmentClient> clients = new ArrayList<TrustEstablishmentClient>();
+
+	@Before
+	public void setUp() throws Exception {
+		clientPort = freePort();
+	}
+
+	@After
+	public void tearDown() {
+		for (TrustEstablishmentClient client : clients)
+			client.close();
+		if (responder != null)
+			responder.close();
+	}
+
+	private static int freePort() throws SocketException {
+		DatagramSocket socket = new DatagramSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private TrustEstablishmentClient newClient(int attempts, int timeout) throws TrustEstablishmentException {
+		TrustEstablishmentClient client = new TrustEstablishmentClient.Builder()
+			.setCodec(new LoopbackCodec())
+			.setHostAddress(InetAddress.getLoopbackAddress())
+			.setSendToPort(responder.getPort())
+			.setSendFromPort(clientPort)
+			.setDestination(null, clientPort)
+			.setAttempts(attempts)
+			.setTimeout(timeout)
+			.build();
+		clients.add(client);
+		return client;
+	}
+
+	private static TrustEstablishmentException failure(TrustEstablishmentClient.Handshake handshake) throws Exception {
+		try {
+			handshake.get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof TrustEstablishmentException);
+			return (TrustEstablishmentException)ex.getCause();
+		}
+		fail("Handshake " + handshake.getRequestID() + " should have failed");
+		return null;
+	}
+
+	@Test
+	public void concurrentHandshakesOnOnePort() throws Exception {
+		responder = new Responder();
+		final TrustEstablishmentClient first = newClient(3, 2000);
+		final TrustEstablishmentClient second = newClient(3, 2000);
+		final int perThread = 250;
+		final List<TrustEstablishmentClient.Handshake> handshakes = new ArrayList<TrustEstablishmentClient.Handshake>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int base = t * perThread;
+			final TrustEstablishmentClient client = t % 2 == 0 ? first : second;
+			threads.add(new Thread() {
+				public void run() {
+					for (int i = base; i < base + perThread; i++) {
+						TrustEstablishmentClient.Handshake handshake = client.establishTrust(DIALOG_ID, null, i);
+						synchronized (handshakes) {
+							handshakes.add(handshake);
+						}
+					}
+				}
+			});
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(4 * perThread, handshakes.size());
+		for (TrustEstablishmentClient.Handshake handshake : handshakes)
+			assertNull(handshake.get(10, TimeUnit.SECONDS));
+		assertEquals(0, first.getPendingCount());
+		assertEquals(0, second.getPendingCount());
+	}
+
+	@Test
+	public void retriesAfterTimeout() throws Exception {
+		responder = new Responder() {
+			Reply reply(int requestID, int attempt) {
+				return attempt == 1 ? Reply.DROP : Reply.ACCEPT;
+			}
+		};
+		TrustEstablishmentClient client = newClient(3, 200);
+		TrustEstablishmentClient.Handshake handshake = client.establishTrust(DIALOG_ID, null, 1);
+		assertNull(handshake.get(5, TimeUnit.SECONDS));
+		assertEquals(2, responder.getAttempts(1));
+	}
+
+	@Test
+	public void failsAfterAllAttemptsTimeOut() throws Exception {
+		responder = new Responder() {
+			Reply reply(int requestID, int attempt) {
+				return Reply.DROP;
+			}
+		};
+		TrustEstablishmentClient client = newClient(2, 100);
+		long start = System.nanoTime();
+		TrustEstablishmentClient.Handshake handshake = client.establishTrust(DIALOG_ID, null, 1);
+		assertNotNull(failure(handshake));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+		assertEquals(2, responder.getAttempts(1));
+		assertEquals(0, client.getPendingCount());
+	}
+
+	@Test
+	public void rejectedResponseCountsAsFailedAttempt() throws Exception {
+		responder = new Responder() {
+			Reply reply(int requestID, int attempt) {
+				return attempt == 1 ? Reply.REJECT : Reply.ACCEPT;
+			}
+		};
+		// the rejection starts the next attempt right away instead of waiting for the timeout
+		TrustEstablishmentClient client = newClient(2, 30000);
+		assertNull(client.establishTrust(DIALOG_ID, null, 1).get(5, TimeUnit.SECONDS));
+		assertEquals(2, responder.getAttempts(1));
+
+		client.close();
+		TrustEstablishmentClient single = newClient(1, 30000);
+		assertNotNull(failure(single.establishTrust(DIALOG_ID, null, 2)));
+		assertEquals(1, responder.getAttempts(2));
+	}
+
+	@Test
+	public void closeFailsHandshakesStartedConcurrently() throws Exception {
+		responder = new Responder() {
+			Reply reply(int requestID, int attempt) {
+				return Reply.DROP;
+			}
+		};
+		final TrustEstablishmentClient client = newClient(3, 30000);
+		final List<TrustEstablishmentClient.Handshake> handshakes = new ArrayList<TrustEstablishmentClient.Handshake>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int base = t * 1000;
+			threads.add(new Thread() {
+				public void run() {
+					for (int i = base; i < base + 1000; i++) {
+						TrustEstablishmentClient.Handshake handshake = client.establishTrust(DIALOG_ID, null, i);
+						synchronized (handshakes) {
+							handshakes.add(handshake);
+						}
+					}
+				}
+			});
+		}
+		for (Thread thread : threads)
+			thread.start();
+		Thread.sleep(20);
+		client.close();
+		for (Thread thread : threads)
+			thread.join();
+		// none of them is left waiting for a response that the closed client will never receive
+		for (TrustEstablishmentClient.Handshake handshake : handshakes)
+			assertNotNull(failure(handshake));
+		assertEquals(0, client.getPendingCount());
+	}
+
+	@Test
+	public void closeReleasesSharedChannel() throws Exception {
+		responder = new Responder() {
+			Reply reply(int requestID, int attempt) {
+				return requestID == 7 ? Reply.DROP : Reply.ACCEPT;
+			}
+		};
+		TrustEstablishmentClient first = newClient(3, 30000);
+		TrustEstablishmentClient second = newClient(3, 30000);
+		TrustEstablishmentClient.Handshake pending = first.establishTrust(DIALOG_ID, null, 7);
+		first.close();
+		assertNotNull(failure(pending));
+		assertNotNull(failure(first.establishTrust(DIALOG_ID, null, 8)));
+
+		// the channel stays open while another client uses it
+		assertNull(second.establishTrust(DIALOG_ID, null, 9).get(5, TimeUnit.SECONDS));
+		second.close();
+
+		DatagramSocket socket = new DatagramSocket(clientPort);
+		socket.close();
+	}
+}
@@ -0,0 +1,85 @@
+package gov.usdot.cv.common.inet;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+public class InetAddressCacheTest {
+
+	@Test
+	public void testHitsAndMisses() throws UnknownHostException {
+		InetAddressCache cache = new InetAddressCache();
+		InetAddress address = cache.getByName("127.0.0.1");
+		assertEquals(InetAddress.getByName("127.0.0.1"), address);
+		assertSame(address, cache.getByName("127.0.0.1"));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		cache.invalidate("127.0.0.1");
+		assertEquals(0, cache.size());
+		cache.getByName("127.0.0.1");
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testExpiration() throws UnknownHostException {
+		InetAddressCache cache = new InetAddressCache(10, 0);
+		cache.getByName("::1");
+		cache.getByName("::1");
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testEviction() throws UnknownHostException {
+		InetAddressCache cache = new InetAddressCache(2, InetAddressCache.DEFAULT_TTL_MS);
+		cache.getByName("127.0.0.1");
+		cache.getByName("127.0.0.2");
+		cache.getByName("127.0.0.3");
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		// the host resolved first went first
+		cache.getByName("127.0.0.2");
+		cache.getByName("127.0.0.3");
+		assertEquals(2, cache.getHits());
+		cache.getByName("127.0.0.1");
+		assertEquals(4, cache.getMisses());
+		assertEquals(2, cache.getEvictions());
+	}
+
+	@Test
+	public void testReplacedEntriesAreNotEvicted() throws UnknownHostException {
+		InetAddressCache cache = new InetAddressCache(2, 0);
+		for (int i = 0; i < 100; i++) {
+			cache.getByName("127.0.0.1");
+			cache.getByName("127.0.0.2");
+		}
+		assertEquals(2, cache.size());
+		assertEquals(0, cache.getEvictions());
+	}
+
+	@Test
+	public void testPoints() throws UnknownHostException {
+		InetAddressCache cache = new InetAddressCache();
+		InetPoint point = cache.getPoint("127.0.0.1", 47651);
+		assertEquals(new InetPoint(InetAddress.getByName("127.0.0.1"), 47651), point);
+		assertSame(point, cache.getPoint("127.0.0.1", 47651));
+		assertSame(point.getInetSocketAddress(), cache.getPoint("127.0.0.1", 47651).getInetSocketAddress());
+		// ports that share a slot replace each other
+		InetPoint other = cache.getPoint("127.0.0.1", 47655);
+		assertEquals(47655, other.port);
+		assertEquals(47651, cache.getPoint("127.0.0.1", 47651).port);
+		assertEquals(1, cache.getMisses());
+		// points are dropped with their host name
+		cache.invalidate("127.0.0.1");
+		assertNotSame(point, cache.getPoint("127.0.0.1", 47651));
+		assertEquals(InetAddress.getByName(null), cache.getPoint(null, 80).getInetAddress());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidSize() {
+		new InetAddressCache(0, InetAddressCache.DEFAULT_TTL_MS);
+	}
+}
@@ -0,0 +1,157 @@
+package gov.usdot.cv.common.inet;
+
+import static org.junit.Assert.*;
+
+import gov.usdot.cv.common.util.UnitTestHelper;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class InetPacketForwarderTest {
+	
+	static final private boolean isDebugOutput = false;
+	
+	private static final int DEFAULT_MAX_PACKET_SIZE = 65535;
+	
+	private static final String TRANSPORT_HOST = "localhost";
+	private static final int TRANSPORT_PORT = 46761;
+	
+	private static final String FORWARDER_HOST = "localhost";
+	private static final int FORWARDER_PORT = 46762;
+	
+	private static final String CLIENT_HOST = "localhost";
+	private static final int CLIENT_PORT = 46763;
+	
+	private static final byte[] PAYLOAD = new byte[] { (byte)0xde, (byte)0xad, (byte)0xbe, (byte)0xef, (byte)0xca, (byte)0xfe, (byte)0xba, (byte)0xbe };
+	
+	@BeforeClass
+	public static void init() {
+		UnitTestHelper.initLog4j(isDebugOutput);
+	}
+	
+	@Test
+	public void testForwarder() throws IOException, InetPacketException {
+		testForwarder(2);
+	}
+	
+	@Test
+	public void testForwarderOnSelectorThread() throws IOException, InetPacketException {
+		testForwarder(0);
+	}
+	
+	public void testForwarder(int workerThreads) throws IOException, InetPacketException {
+		final int count = 20;
+		DatagramSocket transport = new DatagramSocket(TRANSPORT_PORT);
+		DatagramSocket client = new DatagramSocket(CLIENT_PORT);
+		InetPacketForwarder forwarder = new InetPacketForwarder.Builder()
+			.setListenPort(FORWARDER_PORT)
+			.setForwardPoint(new InetPoint(getAddressBytes(TRANSPORT_HOST), TRANSPORT_PORT))
+			.setWorkerThreads(workerThreads)
+			.setBufferPoolSize(4)
+			.setMaxPacketSize(2048)
+			.build();
+		try {
+			transport.setSoTimeout(1000);
+			client.setSoTimeout(1000);
+			forwarder.start();
+			assertTrue(forwarder.isRunning());
+			InetAddress forwarderAddress = InetAddress.getByName(FORWARDER_HOST);
+			DatagramPacket received = new DatagramPacket(new byte[DEFAULT_MAX_PACKET_SIZE], DEFAULT_MAX_PACKET_SIZE);
+			
+			// inbound: client -> forwarder -> transport
+			for ( int i = 0; i < count; i++ ) {
+				client.send(new DatagramPacket(PAYLOAD, PAYLOAD.length, forwarderAddress, FORWARDER_PORT));
+				transport.receive(received);
+				InetPacket p = new InetPacket(received);
+				InetPoint point = p.getPoint();
+				assertNotNull(point);
+				assertTrue(point.forward);
+				assertEquals(CLIENT_PORT, point.port);
+				assertArrayEquals(PAYLOAD, p.getPayload());
+			}
+			
+			// outbound: transport -> forwarder -> client
+			byte[] bundle = new InetPacket(new InetPoint(getAddressBytes(CLIENT_HOST), CLIENT_PORT), PAYLOAD).getBundle();
+			for ( int i = 0; i < count; i++ ) {
+				transport.send(new DatagramPacket(bundle, bundle.length, forwarderAddress, FORWARDER_PORT));
+				client.receive(received);
+				assertArrayEquals(PAYLOAD, Arrays.copyOfRange(received.getData(), received.getOffset(), received.getLength()));
+			}
+			
+			// counters are updated after the packet has been sent
+			for ( int i = 0; i < 10 && forwarder.getPacketsSent() < count; i++ )
+				sleep(100);
+			assertEquals(2*count, forwarder.getPacketsReceived());
+			assertEquals(count, forwarder.getPacketsForwarded());
+			assertEquals(count, forwarder.getPacketsSent());
+			assertEquals(0, forwarder.getPacketsFailed());
+		} finally {
+			forwarder.close();
+			transport.close();
+			client.close();
+		}
+		assertFalse(forwarder.isRunning());
+	}
+	
+	@Test
+	public void testRestart() throws IOException, InetPacketException {
+		DatagramSocket transport = new DatagramSocket(TRANSPORT_PORT);
+		DatagramSocket client = new DatagramSocket(CLIENT_PORT);
+		InetPacketForwarder forwarder = new InetPacketForwarder.Builder()
+			.setListenPort(FORWARDER_PORT)
+			.setForwardPoint(new InetPoint(getAddressBytes(TRANSPORT_HOST), TRANSPORT_PORT))
+			.setWorkerThreads(2)
+			.setBufferPoolSize(4)
+			.setMaxPacketSize(2048)
+			.build();
+		try {
+			transport.setSoTimeout(1000);
+			InetAddress forwarderAddress = InetAddress.getByName(FORWARDER_HOST);
+			DatagramPacket received = new DatagramPacket(new byte[DEFAULT_MAX_PACKET_SIZE], DEFAULT_MAX_PACKET_SIZE);
+			for ( int round = 0; round < 2; round++ ) {
+				forwarder.start();
+				client.send(new DatagramPacket(PAYLOAD, PAYLOAD.length, forwarderAddress, FORWARDER_PORT));
+				transport.receive(received);
+				assertArrayEquals(PAYLOAD, new InetPacket(received).getPayload());
+				int threads = Thread.activeCount();
+				forwarder.close();
+				// workers are stopped by the time close() returns, without waiting for their poll to time out
+				assertTrue(Thread.activeCount() < threads);
+				assertFalse(forwarder.isRunning());
+			}
+		} finally {
+			forwarder.close();
+			transport.close();
+			client.close();
+		}
+		
+		// a sender given to the forwarder is not replaced
+		InetPacketSender sender = new InetPacketSender();
+		sender.close();
+		InetPacketForwarder shared = new InetPacketForwarder.Builder().setListenPort(FORWARDER_PORT).setSender(sender).build();
+		try {
+			shared.start();
+			fail("Forwarder should not start with a closed sender");
+		} catch (InetPacketException expected) {
+		}
+	}
+	
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException unused) {
+		}
+	}
+	
+	private static byte[] getAddressBytes(String host) throws UnknownHostException {
+		return InetAddress.getByName( host ).getAddress();
+	}
+
+}
@@ -11,7 +11,10 @@ import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.log4j.Logger;
@@ -152,6 +155,166 @@ public class InetPacketSenderTest {
 		checkBackgroundThreadAssertion();
 	}
 		
+	@Test
+	public void testChannelReuse() throws IOException, InetPacketException {
+		// Use case: long running sender reuses its pooled channels and reports statistics
+		final int count = 10;
+		DatagramSocket socket = new DatagramSocket(CLIENT_PORT);
+		try {
+			socket.setSoTimeout(1000);
+			InetPacketSender sender = new InetPacketSender();
+			sender.setChannelPoolSize(2);
+			InetPoint client = new InetPoint(getAddressBytes( CLIENT_HOST_IPV4 ), CLIENT_PORT);
+			for ( int i = 0; i < count; i++ )
+				sender.send(client, PAYLOAD);
+			DatagramPacket datagramPacket = new DatagramPacket(new byte[DEFAULT_MAX_PACKET_SIZE], DEFAULT_MAX_PACKET_SIZE);
+			for ( int i = 0; i < count; i++ ) {
+				socket.receive(datagramPacket);
+				assertArrayEquals(PAYLOAD, Arrays.copyOfRange(datagramPacket.getData(), datagramPacket.getOffset(), datagramPacket.getLength()));
+			}
+			assertEquals(count, sender.getPacketsSent());
+			assertEquals(count * PAYLOAD.length, sender.getBytesSent());
+			assertEquals(0, sender.getPacketsFailed());
+			sender.close();
+			assertTrue(sender.isClosed());
+			try {
+				sender.send(client, PAYLOAD);
+				fail("Send on closed sender should fail");
+			} catch (InetPacketException expected) {
+			}
+			assertEquals(1, sender.getPacketsFailed());
+		} finally {
+			socket.close();
+		}
+	}
+		
+	@Test
+	public void testBatch() throws IOException, InetPacketException {
+		// Use case: Transport or Data Sink fans out a message to many clients
+		final int count = 50;
+		DatagramSocket socket = new DatagramSocket(FORWARDER_PORT);
+		try {
+			socket.setSoTimeout(1000);
+			InetPoint forwarder = new InetPoint(getAddressBytes( FORWARDER_HOST ), FORWARDER_PORT);
+			InetPacketSender sender = new InetPacketSender(forwarder);
+			List<InetPacket> packets = new ArrayList<InetPacket>(count);
+			for ( int i = 0; i < count; i++ ) {
+				InetPoint client = new InetPoint(getAddressBytes( CLIENT_HOST_IPV6 ), CLIENT_PORT + i);
+				packets.add(new InetPacket(client, PAYLOAD));
+			}
+			sender.forwardBatch(packets);
+			DatagramPacket datagramPacket = new DatagramPacket(new byte[DEFAULT_MAX_PACKET_SIZE], DEFAULT_MAX_PACKET_SIZE);
+			boolean[] seen = new boolean[count];
+			for ( int i = 0; i < count; i++ ) {
+				socket.receive(datagramPacket);
+				InetPacket p = new InetPacket(Arrays.copyOfRange(datagramPacket.getData(), datagramPacket.getOffset(), datagramPacket.getLength()));
+				InetPoint point = p.getPoint();
+				assertNotNull(point);
+				assertTrue(point.isIPv6Address());
+				assertArrayEquals(getAddressBytes( CLIENT_HOST_IPV6 ), point.getAddress());
+				seen[point.port - CLIENT_PORT] = true;
+				assertArrayEquals(PAYLOAD, p.getPayload());
+			}
+			for ( boolean s : seen )
+				assertTrue(s);
+			assertEquals(count, sender.getPacketsSent());
+			assertEquals(0, sender.getPacketsFailed());
+			
+			List<byte[]> payloads = new ArrayList<byte[]>(count);
+			for ( int i = 0; i < count; i++ )
+				payloads.add(PAYLOAD);
+			sender.sendBatch(forwarder, payloads);
+			for ( int i = 0; i < count; i++ ) {
+				socket.receive(datagramPacket);
+				assertArrayEquals(PAYLOAD, Arrays.copyOfRange(datagramPacket.getData(), datagramPacket.getOffset(), datagramPacket.getLength()));
+			}
+			assertEquals(2*count, sender.getPacketsSent());
+			sender.close();
+		} finally {
+			socket.close();
+		}
+	}
+	
+	@Test
+	public void testBatchWriter() throws IOException, InetPacketException {
+		// Use case: Data Sink writes each outbound bundle straight into the batch without building packets first
+		DatagramSocket socket = new DatagramSocket(FORWARDER_PORT);
+		try {
+			socket.setSoTimeout(1000);
+			InetPoint forwarder = new InetPoint(getAddressBytes( FORWARDER_HOST ), FORWARDER_PORT);
+			InetPoint client = new InetPoint(getAddressBytes( CLIENT_HOST_IPV6 ), CLIENT_PORT);
+			InetPacketSender sender = new InetPacketSender(forwarder);
+			
+			InetPacketSender.Batch batch = sender.newBatch();
+			batch.forward(client, PAYLOAD);
+			batch.send(forwarder, PAYLOAD);
+			batch.finish();
+			DatagramPacket datagramPacket = new DatagramPacket(new byte[DEFAULT_MAX_PACKET_SIZE], DEFAULT_MAX_PACKET_SIZE);
+			socket.receive(datagramPacket);
+			InetPacket p = new InetPacket(Arrays.copyOfRange(datagramPacket.getData(), datagramPacket.getOffset(), datagramPacket.getLength()));
+			assertEquals(client.port, p.getPoint().port);
+			assertEquals(client.getAddressHigh(), p.getPoint().getAddressHigh());
+			assertEquals(client.getAddressLow(), p.getPoint().getAddressLow());
+			assertArrayEquals(PAYLOAD, p.getPayload());
+			socket.receive(datagramPacket);
+			assertArrayEquals(PAYLOAD, Arrays.copyOfRange(datagramPacket.getData(), datagramPacket.getOffset(), datagramPacket.getLength()));
+			assertEquals(2, sender.getPacketsSent());
+			try {
+				batch.send(forwarder, PAYLOAD);
+				fail("Finished batch should not be reused");
+			} catch (IllegalStateException expected) {
+			}
+			
+			// canceled datagrams are never sent
+			batch = sender.newBatch();
+			batch.send(forwarder, PAYLOAD);
+			batch.cancel();
+			assertEquals(2, sender.getPacketsSent());
+			
+			sender.close();
+			batch = sender.newBatch();
+			batch.send(forwarder, PAYLOAD);
+			try {
+				batch.finish();
+				fail("Batch on closed sender should fail");
+			} catch (InetPacketException expected) {
+			}
+			assertEquals(1, sender.getPacketsFailed());
+		} finally {
+			socket.close();
+		}
+	}
+	
+	@Test
+	public void testBatchFlushFailure() throws IOException, InetPacketException {
+		// Use case: the sender is closed while a batch too large for one buffer is being assembled
+		InetPoint client = new InetPoint(getAddressBytes( CLIENT_HOST_IPV4 ), CLIENT_PORT);
+		InetPacketSender sender = new InetPacketSender();
+		byte[] payload = new byte[60000];
+		InetPacketSender.Batch batch = sender.newBatch();
+		try {
+			batch.send(client, payload);
+			batch.send(client, payload);
+			sender.close();
+			// the third datagram doesn't fit, so the first two have to be flushed
+			batch.send(client, payload);
+			fail("Flush on closed sender should fail");
+		} catch (InetPacketException expected) {
+			assertTrue(expected.getCause() instanceof ClosedChannelException);
+		} finally {
+			try {
+				batch.finish();
+				fail("Finish should report the failed datagrams");
+			} catch (InetPacketException expected) {
+				assertTrue(expected.getMessage(), expected.getMessage().contains("3 of 3"));
+				assertTrue(expected.getCause() instanceof ClosedChannelException);
+			}
+		}
+		assertEquals(0, sender.getPacketsSent());
+		assertEquals(3, sender.getPacketsFailed());
+		batch.cancel();
+	}
+	
 	private static byte[] getAddressBytes(String host) throws UnknownHostException {
 		return InetAddress.getByName( host ).getAddress();
 	}
@@ -251,12 +414,12 @@ public class InetPacketSenderTest {
 				assertEquals(listenPort, TRANSPORT_PORT );
 				InetPoint point = p.getPoint();
 				assertNotNull(point);
-				byte[] srcAddress = point.address;
+				byte[] srcAddress = point.getAddress();
 				assertNotNull(srcAddress);
 				if ( point.isIPv6Address() )
-					assertArrayEquals(point.address, getAddressBytes( CLIENT_HOST_IPV6 ) );
+					assertArrayEquals(point.getAddress(), getAddressBytes( CLIENT_HOST_IPV6 ) );
 				else
-					assertArrayEquals(point.address, getAddressBytes( CLIENT_HOST_IPV4 ) );	
+					assertArrayEquals(point.getAddress(), getAddressBytes( CLIENT_HOST_IPV4 ) );	
 				assertEquals(point.port, CLIENT_PORT);
 				assertEquals(point.forward, true );
 				assertArrayEquals(p.getPayload(), PAYLOAD );
@@ -281,12 +444,12 @@ public class InetPacketSenderTest {
 				assertEquals(listenPort, CLIENT_PORT );
 				InetPoint point = p.getPoint();
 				assertNotNull(point);
-				byte[] srcAddress = point.address;
+				byte[] srcAddress = point.getAddress();
 				assertNotNull(srcAddress);
 				if ( point.isIPv6Address() )
-					assertArrayEquals(point.address, getAddressBytes( CLIENT_HOST_IPV6 ) );
+					assertArrayEquals(point.getAddress(), getAddressBytes( CLIENT_HOST_IPV6 ) );
 				else
-					assertArrayEquals(point.address, getAddressBytes( CLIENT_HOST_IPV4 ) );	
+					assertArrayEquals(point.getAddress(), getAddressBytes( CLIENT_HOST_IPV4 ) );	
 				assertFalse(point.forward);
 				assertArrayEquals(p.getPayload(), PAYLOAD );
 			}
@@ -306,10 +469,10 @@ public class InetPacketSenderTest {
 				assertEquals(listenPort, FORWARDER_PORT );
 				InetPoint point = p.getPoint();
 				assertNotNull(point);
-				byte[] srcAddress = point.address;
+				byte[] srcAddress = point.getAddress();
 				assertNotNull(srcAddress);
 				assertTrue(point.isIPv6Address());
-				assertArrayEquals(point.address, getAddressBytes( CLIENT_HOST_IPV6 ) );
+				assertArrayEquals(point.getAddress(), getAddressBytes( CLIENT_HOST_IPV6 ) );
 				assertEquals(point.port, CLIENT_PORT);
 				assertEquals(point.forward, true );
 				assertArrayEquals(p.getPayload(), PAYLOAD );
@@ -330,10 +493,10 @@ public class InetPacketSenderTest {
 				assertEquals(listenPort, FORWARDER_PORT );
 				InetPoint point = p.getPoint();
 				assertNotNull(point);
-				byte[] srcAddress = point.address;
+				byte[] srcAddress = point.getAddress();
 				assertNotNull(srcAddress);
 				assertFalse(point.isIPv6Address());
-				assertArrayEquals(point.address, getAddressBytes( CLIENT_HOST_IPV4 ) );
+				assertArrayEquals(point.getAddress(), getAddressBytes( CLIENT_HOST_IPV4 ) );
 				assertEquals(point.port, CLIENT_PORT);
 				assertEquals(point.forward, true );
 				assertArrayEquals(p.getPayload(), PAYLOAD );
@@ -358,12 +521,12 @@ public class InetPacketSenderTest {
 				assertEquals(listenPort, CLIENT_PORT );
 				InetPoint point = p.getPoint();
 				assertNotNull(point);
-				byte[] srcAddress = point.address;
+				byte[] srcAddress = point.getAddress();
 				assertNotNull(srcAddress);
 				if ( point.isIPv6Address() )
-					assertArrayEquals(point.address, getAddressBytes( CLIENT_HOST_IPV6 ) );
+					assertArrayEquals(point.getAddress(), getAddressBytes( CLIENT_HOST_IPV6 ) );
 				else
-					assertArrayEquals(point.address, getAddressBytes( CLIENT_HOST_IPV4 ) );	
+					assertArrayEquals(point.getAddress(), getAddressBytes( CLIENT_HOST_IPV4 ) );	
 				assertFalse(point.forward);
 				assertArrayEquals(p.getPayload(), PAYLOAD );
 			}
@@ -401,12 +564,12 @@ public class InetPacketSenderTest {
 				assertEquals(listenPort, CLIENT_PORT );
 				InetPoint point = p.getPoint();
 				assertNotNull(point);
-				byte[] srcAddress = point.address;
+				byte[] srcAddress = point.getAddress();
 				assertNotNull(srcAddress);
 				if ( point.isIPv6Address() )
-					assertArrayEquals(point.address, getAddressBytes( CLIENT_HOST_IPV6 ) );
+					assertArrayEquals(point.getAddress(), getAddressBytes( CLIENT_HOST_IPV6 ) );
 				else
-					assertArrayEquals(point.address, getAddressBytes( CLIENT_HOST_IPV4 ) );	
+					assertArrayEquals(point.getAddress(), getAddressBytes( CLIENT_HOST_IPV4 ) );	
 				assertFalse(point.forward);
 				assertArrayEquals(p.getPayload(), PAYLOAD );
 			}
@@ -416,8 +579,8 @@ public class InetPacketSenderTest {
 				InetPoint point = pb.getPoint();
 				if( point != null ) {
 					System.out.printf("%s: port:  %d (0x%x)\n", header, point.port, point.port );
-					System.out.printf("%s: address size: %d value: %s ip: %s\n", header, point.address.length, 
-							Hex.encodeHexString(point.address), InetAddress.getByAddress(point.address).getHostAddress() );
+					System.out.printf("%s: address size: %d value: %s ip: %s\n", header, point.getAddress().length, 
+							Hex.encodeHexString(point.getAddress()), InetAddress.getByAddress(point.getAddress()).getHostAddress() );
 					System.out.printf("%s: forward:  %s\n", header, point.forward ? "true" : "false" );
 				} else {
 					System.out.printf("%s: Inet point is null\n", header);
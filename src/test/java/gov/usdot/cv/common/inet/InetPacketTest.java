@@ -5,6 +5,9 @@ import static org.junit.Assert.*;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 import org.apache.commons.codec.binary.Hex;
@@ -48,7 +51,7 @@ public class InetPacketTest {
 		assertNotNull(pointIn);
 		InetPoint pointOut = pbOut.getPoint();
 		assertEquals(pointOut.port, pointIn.port);
-		assertArrayEquals(pointOut.address, pointIn.address);
+		assertArrayEquals(pointOut.getAddress(), pointIn.getAddress());
 		byte[] pbOutPayload = pbOut.getPayload();
 		byte[] pyInPayload = pbIn.getPayload();
 		if ( pbOutPayload != null && pbOutPayload != null )
@@ -56,6 +59,28 @@ public class InetPacketTest {
 		else if (pbOutPayload != null || pbOutPayload != null)
 			assertTrue(false);
 		assertTrue(Arrays.equals(pbOut.getBundle(), pbIn.getBundle()));		
+		testWriteBundle(pbOut, ByteBuffer.allocate(pbOut.bundleLength() + 3));
+		testWriteBundle(pbOut, ByteBuffer.allocateDirect(pbOut.bundleLength() + 3).order(ByteOrder.LITTLE_ENDIAN));
+	}
+	
+	public void testWriteBundle(InetPacket pb, ByteBuffer dst) {
+		byte[] expected = pb.getBundle();
+		assertEquals(expected.length, pb.bundleLength());
+		dst.position(3);
+		assertEquals(expected.length, pb.writeBundle(dst));
+		assertEquals(3 + expected.length, dst.position());
+		byte[] actual = new byte[expected.length];
+		dst.position(3);
+		dst.get(actual);
+		assertArrayEquals(expected, actual);
+		dst.clear();
+		dst.limit(expected.length - 1);
+		try {
+			pb.writeBundle(dst);
+			fail("Expected BufferOverflowException");
+		} catch (BufferOverflowException expectedException) {
+			assertEquals(0, dst.position());
+		}
 	}
 	
 	void print(String header, InetPacket pb) throws UnknownHostException {
@@ -63,8 +88,8 @@ public class InetPacketTest {
 		InetPoint point = pb.getPoint();
 		if( point != null ) {
 			System.out.printf("%s: port:  %d (0x%x)\n", header, point.port, point.port );
-			System.out.printf("%s: address size: %d value: %s ip: %s\n", header, point.address.length, 
-					Hex.encodeHexString(point.address), InetAddress.getByAddress(point.address).getHostAddress() );
+			System.out.printf("%s: address size: %d value: %s ip: %s\n", header, point.getAddress().length, 
+					Hex.encodeHexString(point.getAddress()), InetAddress.getByAddress(point.getAddress()).getHostAddress() );
 			System.out.printf("%s: forward:  %s\n", header, point.forward ? "true" : "false" );
 		} else {
 			System.out.printf("%s: Inet point is null\n", header);
@@ -0,0 +1,101 @@
+package gov.usdot.cv.common.inet;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class InetPacketViewTest {
+
+	@Test
+	public void test() throws UnknownHostException {
+		test("127.0.0.1", 12, "01234567890".getBytes());
+		test("::1", 47561, "0123456789001234567890".getBytes());
+		test("1080:0:0:0:8:800:200C:417A", 345, "".getBytes());
+		test("::FFFF:129.144.52.38", 4756, "0".getBytes());
+		test("2001:0:9d38:90d7:3ce3:339d:f5c3:c42b", 11111, new byte[] { (byte)0xde, (byte)0xad, (byte)0xbe, (byte)0xef });
+	}
+
+	@Test
+	public void testNotBundle() throws UnknownHostException {
+		byte[] payload = "not a bundle".getBytes();
+		InetSocketAddress source = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 4567);
+		InetPacketView view = new InetPacketView(ByteBuffer.wrap(payload), source);
+		assertFalse(view.isBundle());
+		InetPoint point = view.getPoint();
+		assertNotNull(point);
+		assertEquals(4567, point.port);
+		assertFalse(point.forward);
+		assertArrayEquals(source.getAddress().getAddress(), point.getAddress());
+		assertArrayEquals(payload, toArray(view.getPayload()));
+
+		assertFalse(view.isIPv6Address());
+		assertSame(source.getAddress(), view.getInetAddress());
+
+		InetSocketAddress source6 = new InetSocketAddress(InetAddress.getByName("::1"), 4567);
+		view.wrap(ByteBuffer.wrap(payload), source6);
+		assertTrue(view.isIPv6Address());
+		assertArrayEquals(source6.getAddress().getAddress(), view.getAddress());
+
+		view.wrap(ByteBuffer.wrap(payload));
+		assertFalse(view.isBundle());
+		assertFalse(view.isIPv6Address());
+		assertNull(view.getPoint());
+		assertArrayEquals(payload, toArray(view.getPayload()));
+	}
+
+	@Test
+	public void testCorruptedHeader() throws UnknownHostException {
+		byte[] bundle = new InetPacket("127.0.0.1", 12, "payload".getBytes()).getBundle();
+		bundle[5] ^= 1;
+		InetPacketView view = new InetPacketView(ByteBuffer.wrap(bundle));
+		assertFalse(view.isBundle());
+		assertEquals(bundle.length, view.getPayloadLength());
+	}
+
+	public void test(String address, int port, byte[] payload) throws UnknownHostException {
+		InetPacket packet = new InetPacket(address, port, payload);
+		byte[] bundle = packet.getBundle();
+
+		// heap buffer at a non-zero position
+		ByteBuffer heap = ByteBuffer.allocate(bundle.length + 10);
+		heap.position(7);
+		heap.put(bundle);
+		heap.flip();
+		heap.position(7);
+		test(packet, new InetPacketView(heap));
+		assertEquals(7, heap.position());
+
+		// direct buffer as filled by a datagram channel
+		ByteBuffer direct = ByteBuffer.allocateDirect(bundle.length);
+		direct.put(bundle);
+		direct.flip();
+		test(packet, new InetPacketView().wrap(direct));
+	}
+
+	private void test(InetPacket packet, InetPacketView view) {
+		InetPacket parsed = new InetPacket(packet.getBundle());
+		assertTrue(view.isBundle());
+		InetPoint point = view.getPoint();
+		assertEquals(parsed.getPoint().port, point.port);
+		assertEquals(parsed.getPoint().port, view.getPort());
+		assertArrayEquals(parsed.getPoint().getAddress(), point.getAddress());
+		assertEquals(parsed.getPoint().isIPv6Address(), view.isIPv6Address());
+		assertTrue(point.forward);
+		ByteBuffer payload = view.getPayload();
+		assertTrue(payload.isReadOnly());
+		assertEquals(parsed.getPayload().length, view.getPayloadLength());
+		assertArrayEquals(parsed.getPayload(), toArray(payload));
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,55 @@
+package gov.usdot.cv.common.inet;
+
+import static org.junit.Assert.*;
+
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class InetPointMapTest {
+
+	@Test
+	public void testLookup() throws UnknownHostException {
+		InetPointMap<String> map = new InetPointMap<String>();
+		InetPoint v4 = new InetPoint("127.0.0.1", 46751, true);
+		InetPoint v6 = new InetPoint("::1", 46751, true);
+		assertNull(map.put(v4, "v4"));
+		assertNull(map.put(v6, "v6"));
+		assertEquals(2, map.size());
+		assertEquals("v4", map.get(new InetPoint("127.0.0.1", 46751, false)));
+		assertEquals("v4", map.get(v4.toLong()));
+		assertEquals("v6", map.get(v6.getAddressHigh(), v6.getAddressLow(), v6.port));
+		assertNull(map.get(new InetPoint("127.0.0.1", 46752, true)));
+		assertEquals("v4", map.put(v4, "v4'"));
+		assertEquals(2, map.size());
+		assertEquals("v4'", map.remove(v4));
+		assertFalse(map.containsKey(v4));
+		assertTrue(map.containsKey(v6));
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(v6));
+	}
+
+	@Test
+	public void testAgainstHashMap() {
+		Random random = new Random(46751);
+		InetPointMap<Integer> map = new InetPointMap<Integer>(4);
+		Map<InetPoint,Integer> expected = new HashMap<InetPoint,Integer>();
+		for ( int i = 0; i < 20000; i++ ) {
+			byte[] address = new byte[random.nextBoolean() ? 4 : 16];
+			address[address.length-1] = (byte)random.nextInt(8);
+			InetPoint point = new InetPoint(address, random.nextInt(64), false);
+			if ( random.nextInt(3) == 0 ) {
+				assertEquals(expected.remove(point), map.remove(point));
+			} else {
+				assertEquals(expected.put(point, i), map.put(point, i));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for ( Map.Entry<InetPoint,Integer> entry : expected.entrySet() )
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+	}
+}
@@ -0,0 +1,72 @@
+package gov.usdot.cv.common.inet;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class InetPointTest {
+
+	@Test
+	public void testEquality() throws UnknownHostException {
+		InetPoint a = new InetPoint("127.0.0.1", 46751, true);
+		InetPoint b = new InetPoint(InetAddress.getByName("127.0.0.1").getAddress(), 46751, true);
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+		assertFalse(a.equals(new InetPoint("127.0.0.1", 46752, true)));
+		assertFalse(a.equals(new InetPoint("127.0.0.1", 46751, false)));
+		assertTrue(a.sameEndpoint(new InetPoint("127.0.0.1", 46751, false)));
+		// IPv4 and IPv4 compatible IPv6 address are different end points
+		assertFalse(a.equals(new InetPoint("::127.0.0.1", 46751, true)));
+
+		InetPoint c = new InetPoint("2001:0:9d38:90d7:3ce3:339d:f5c3:c42b", 11111, false);
+		InetPoint d = new InetPoint("2001:0:9d38:90d7:3ce3:339d:f5c3:c42b", 11111, false);
+		assertEquals(c, d);
+		assertEquals(c.hashCode(), d.hashCode());
+		assertEquals(0x20010000_9d3890d7L, c.getAddressHigh());
+		assertEquals(0x3ce3339d_f5c3c42bL, c.getAddressLow());
+
+		Map<InetPoint,String> map = new HashMap<InetPoint,String>();
+		map.put(a, "a");
+		map.put(c, "c");
+		assertEquals("a", map.get(b));
+		assertEquals("c", map.get(d));
+	}
+
+	@Test
+	public void testImmutable() {
+		byte[] address = new byte[] { 10, 0, 0, 1 };
+		InetPoint point = new InetPoint(address, 80);
+		address[3] = 2;
+		assertEquals(1, point.getAddress()[3]);
+		point.getAddress()[3] = 3;
+		assertEquals(1, point.getAddress()[3]);
+	}
+
+	@Test
+	public void testLong() throws UnknownHostException {
+		InetPoint point = new InetPoint("192.168.1.254", 65535, false);
+		assertEquals(0xC0A801FE_0000FFFFL, point.toLong());
+		assertEquals(point, InetPoint.fromLong(point.toLong(), false));
+		Random random = new Random(46751);
+		for ( int i = 0; i < 1000; i++ ) {
+			long key = random.nextLong();
+			assertEquals(key, InetPoint.fromLong(key, true).toLong());
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testLongIPv6() throws UnknownHostException {
+		new InetPoint("::1", 80, false).toLong();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidAddress() {
+		new InetPoint(new byte[] { 1, 2, 3 }, 80);
+	}
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Before;
@@ -64,6 +65,90 @@ public class CrcCccittTest {
 		assertTrue(CrcCccitt.isValidMsgCRC(msg));
 	}
 	
+	@Test
+	public void testSetMsgCRCInPlace() {
+		byte[] msg = "xx12345678900yy".getBytes();
+		CrcCccitt.setMsgCRC(msg, 2, 11);
+		assertEquals((byte)0x31, msg[11]);
+		assertEquals((byte)0xc3, msg[12]);
+		assertEquals((byte)'y', msg[13]);
+		assertTrue(CrcCccitt.isValidMsgCRC(msg, 2, 11));
+		
+		ByteBuffer direct = ByteBuffer.allocateDirect(15);
+		direct.put("xx12345678900yy".getBytes());
+		CrcCccitt.setBufferMsgCRC(direct, 2, 11);
+		assertEquals(15, direct.position());
+		assertEquals((byte)0x31, direct.get(11));
+		assertEquals((byte)0xc3, direct.get(12));
+		assertTrue(CrcCccitt.isValidBufferMsgCRC(direct, 2, 11));
+		assertTrue(CrcCccitt.isValidBufferMsgCRC(ByteBuffer.wrap(msg), 2, 11));
+	}
+	
+	@Test
+	public void testSlicingEquivalence() {
+		final int maxLength = 64*1024;
+		Random random = new Random(0x1021);
+		byte[] msg = new byte[maxLength + 16];
+		random.nextBytes(msg);
+		for ( int length = 0; length <= 1024; length++ )
+			testEquivalence(msg, random.nextInt(16), length);
+		for ( int i = 0; i < 256; i++ )
+			testEquivalence(msg, random.nextInt(16), random.nextInt(maxLength + 1));
+		testEquivalence(msg, 0, maxLength);
+	}
+	
+	@Test
+	public void testAccumulator() {
+		Random random = new Random(0x31c3);
+		byte[] msg = new byte[4096];
+		random.nextBytes(msg);
+		final int expected = CrcCccitt.calculateCrcCccitt(msg);
+		CrcCccitt.Accumulator accumulator = new CrcCccitt.Accumulator();
+		for ( int i = 0; i < 100; i++ ) {
+			accumulator.reset();
+			assertEquals(0, accumulator.value());
+			int offset = 0;
+			boolean direct = false;
+			while ( offset < msg.length ) {
+				int count = Math.min(random.nextInt(64), msg.length - offset);
+				switch ( random.nextInt(3) ) {
+				case 0:
+					accumulator.update(msg, offset, count);
+					break;
+				case 1:
+					ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(count) : ByteBuffer.allocate(count);
+					buffer.put(msg, offset, count).flip();
+					accumulator.update(buffer);
+					assertFalse(buffer.hasRemaining());
+					direct = !direct;
+					break;
+				default:
+					for ( int j = 0; j < count; j++ )
+						accumulator.update(msg[offset + j]);
+				}
+				offset += count;
+			}
+			assertEquals(expected, accumulator.value());
+		}
+		accumulator.reset();
+		assertEquals(0x31c3, accumulator.update("1234".getBytes()).update(ByteBuffer.wrap("56789".getBytes())).value());
+	}
+	
+	private void testEquivalence(byte[] msg, int offset, int length) {
+		final int expected = CrcCccitt.calculateCrcCccittBytewise(msg, offset, length);
+		assertEquals(expected, CrcCccitt.calculateCrcCccitt(msg, offset, length));
+		assertEquals(expected, CrcCccitt.calculateBufferCrcCccitt(ByteBuffer.wrap(msg), offset, length));
+		assertEquals(expected, CrcCccitt.calculateBufferCrcCccitt(ByteBuffer.wrap(msg).asReadOnlyBuffer(), offset, length));
+		ByteBuffer direct = ByteBuffer.allocateDirect(offset + length);
+		direct.put(msg, 0, offset + length);
+		assertEquals(expected, CrcCccitt.calculateBufferCrcCccitt(direct, offset, length));
+		direct.order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(expected, CrcCccitt.calculateBufferCrcCccitt(direct, offset, length));
+		direct.limit(offset + length).position(offset);
+		assertEquals(expected, CrcCccitt.calculateBufferCrcCccitt(direct));
+		assertEquals(offset, direct.position());
+	}
+	
 	public void testCalculateCrcCccitt(int expectedCheckSum, String text ) {
 		byte[] textBytes = text.getBytes();
 		int checkSum = CrcCccitt.calculateCrcCccitt(textBytes);